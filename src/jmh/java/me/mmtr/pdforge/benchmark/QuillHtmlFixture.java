@@ -0,0 +1,92 @@
+package me.mmtr.pdforge.benchmark;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Base64;
+
+public enum QuillHtmlFixture {
+    SMALL(1, 0, 0, 5),
+    MEDIUM(12, 2, 2, 25),
+    HUGE(120, 20, 20, 200);
+
+    private static final String PARAGRAPH = "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod "
+            + "tempor incididunt ut <strong>labore et dolore</strong> magna aliqua. Ut enim ad minim veniam, quis "
+            + "nostrud <em>exercitation ullamco</em> laboris nisi ut aliquip ex ea commodo consequat.";
+
+    private final int sections;
+    private final int tables;
+    private final int images;
+    private final int listItems;
+
+    QuillHtmlFixture(int sections, int tables, int images, int listItems) {
+        this.sections = sections;
+        this.tables = tables;
+        this.images = images;
+        this.listItems = listItems;
+    }
+
+    public String html() {
+        StringBuilder html = new StringBuilder("<html><head></head><body>");
+        String image = images > 0 ? imageDataUri() : null;
+
+        for (int section = 0; section < sections; section++) {
+            html.append("<h1>Section ").append(section + 1).append("</h1>");
+            for (int paragraph = 0; paragraph < 4; paragraph++) {
+                html.append("<p>").append(PARAGRAPH).append("</p>");
+            }
+
+            if (section < tables) {
+                appendTable(html);
+            }
+            if (section < images) {
+                html.append("<p><img src=\"").append(image).append("\"></p>");
+            }
+            appendList(html, section % 2 == 0 ? "ol" : "ul");
+        }
+
+        return html.append("</body></html>").toString();
+    }
+
+    private void appendList(StringBuilder html, String tag) {
+        html.append('<').append(tag).append('>');
+        for (int item = 0; item < listItems; item++) {
+            html.append("<li>List item ").append(item + 1).append(" with <u>some</u> text</li>");
+        }
+        html.append("</").append(tag).append('>');
+    }
+
+    private void appendTable(StringBuilder html) {
+        html.append("<table><tbody>");
+        for (int row = 0; row < 20; row++) {
+            html.append("<tr>");
+            for (int column = 0; column < 5; column++) {
+                html.append("<td>Cell ").append(row + 1).append('.').append(column + 1).append("</td>");
+            }
+            html.append("</tr>");
+        }
+        html.append("</tbody></table>");
+    }
+
+    private static String imageDataUri() {
+        BufferedImage image = new BufferedImage(640, 360, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        for (int x = 0; x < image.getWidth(); x += 20) {
+            graphics.setColor(new Color(x % 256, (x * 3) % 256, (x * 7) % 256));
+            graphics.fillRect(x, 0, 20, image.getHeight());
+        }
+        graphics.dispose();
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(image, "png", outputStream);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return "data:image/png;base64," + Base64.getEncoder().encodeToString(outputStream.toByteArray());
+    }
+}
@@ -0,0 +1,85 @@
+package me.mmtr.pdforge.benchmark;
+
+import me.mmtr.pdforge.service.PdfRendererPool;
+import me.mmtr.pdforge.service.RenderResources;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RenderBenchmark {
+
+    @Param({"SMALL", "MEDIUM", "HUGE"})
+    private QuillHtmlFixture fixture;
+
+    private String xhtml;
+
+    private PdfRendererPool rendererPool;
+
+    @Setup
+    public void setUp() {
+        Document document = Jsoup.parse(fixture.html(), "UTF-8");
+        document.outputSettings().syntax(Document.OutputSettings.Syntax.xml);
+        xhtml = document.html();
+
+        rendererPool = new PdfRendererPool(
+                new RenderResources(uri -> null, DataSize.ofMegabytes(64), DataSize.ofMegabytes(10),
+                        Duration.ofSeconds(5), true, "", 150, 0.8f, true),
+                1,
+                Duration.ofMinutes(1),
+                Duration.ofMinutes(1)
+        );
+    }
+
+    @Benchmark
+    public Object layout() throws IOException {
+        return rendererPool.execute(renderer -> {
+            renderer.setDocumentFromString(xhtml);
+            renderer.layout();
+            return renderer.getRootBox();
+        });
+    }
+
+    @Benchmark
+    public Object layoutAndCreatePdf() throws IOException {
+        return rendererPool.execute(renderer -> {
+            renderer.setDocumentFromString(xhtml);
+            renderer.layout();
+            renderer.createPDF(OutputStream.nullOutputStream());
+            return renderer.getRootBox();
+        });
+    }
+
+    @Benchmark
+    public byte[] layoutAndCreatePdfInMemory() throws IOException {
+        return rendererPool.execute(renderer -> {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            renderer.setDocumentFromString(xhtml);
+            renderer.layout();
+            renderer.createPDF(outputStream);
+            return outputStream.toByteArray();
+        });
+    }
+}
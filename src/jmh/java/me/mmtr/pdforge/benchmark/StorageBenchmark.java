@@ -0,0 +1,151 @@
+package me.mmtr.pdforge.benchmark;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.mongo.transitions.Mongod;
+import de.flapdoodle.embed.mongo.transitions.RunningMongodProcess;
+import de.flapdoodle.reverse.TransitionWalker;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import me.mmtr.pdforge.repository.DocumentSourceRepository;
+import me.mmtr.pdforge.service.AssetService;
+import me.mmtr.pdforge.service.DocumentRevisionService;
+import me.mmtr.pdforge.service.DocumentSearchService;
+import me.mmtr.pdforge.service.DocumentSourceService;
+import me.mmtr.pdforge.service.PdfLinearizer;
+import me.mmtr.pdforge.service.PdfRendererPool;
+import me.mmtr.pdforge.service.PdfService;
+import me.mmtr.pdforge.service.RenderResources;
+import me.mmtr.pdforge.service.ThumbnailService;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.repository.support.MongoRepositoryFactory;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class StorageBenchmark {
+
+    private static final String DATABASE = "pdforge-benchmark";
+    private static final String USER_ID = "benchmark";
+    private static final int CHUNK_SIZE = 1048576;
+
+    @Param({"SMALL", "MEDIUM", "HUGE"})
+    private QuillHtmlFixture fixture;
+
+    private TransitionWalker.ReachedState<RunningMongodProcess> mongod;
+    private MongoClient mongoClient;
+    private GridFSBucket gridFSBucket;
+    private PdfService pdfService;
+
+    private String html;
+    private byte[] pdf;
+    private ObjectId storedFileId;
+    private ObjectId storedDocumentId;
+
+    private final AtomicLong revision = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mongod = Mongod.instance().start(Version.Main.V7_0);
+        mongoClient = MongoClients.create("mongodb://" + mongod.current().getServerAddress());
+
+        MongoTemplate mongoTemplate = new MongoTemplate(mongoClient, DATABASE);
+        gridFSBucket = GridFSBuckets.create(mongoTemplate.getDb());
+
+        DocumentSourceRepository documentSourceRepository =
+                new MongoRepositoryFactory(mongoTemplate).getRepository(DocumentSourceRepository.class);
+        AssetService assetService = new AssetService(mongoTemplate, DataSize.ofMegabytes(10), Duration.ofHours(1));
+        RenderResources renderResources = new RenderResources(assetService, DataSize.ofMegabytes(64),
+                DataSize.ofMegabytes(10), Duration.ofSeconds(5), true, "", 150, 0.8f, true);
+        PdfRendererPool rendererPool = new PdfRendererPool(renderResources, 1, Duration.ofMinutes(1), Duration.ofMinutes(1));
+        DocumentRevisionService documentRevisionService = new DocumentRevisionService(mongoTemplate, 20, 3);
+        pdfService = new PdfService(
+                mongoTemplate,
+                rendererPool,
+                new DocumentSourceService(documentSourceRepository),
+                documentRevisionService,
+                new ThumbnailService(mongoTemplate, rendererPool, renderResources, 200, 500),
+                new DocumentSearchService(mongoTemplate, documentRevisionService, 200000, 20),
+                new PdfLinearizer(false, "qpdf", Duration.ofSeconds(30)),
+                assetService,
+                new SyncTaskExecutor(),
+                new SimpleMeterRegistry()
+        );
+        pdfService.createIndexes();
+
+        html = fixture.html();
+        storedDocumentId = pdfService.saveAsPdf(USER_ID, "fixture", html, "{\"ops\":[]}");
+        storedFileId = pdfService.getUserDocument(USER_ID, storedDocumentId).getFileId();
+        pdf = getAsResource();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mongoClient.close();
+        mongod.close();
+    }
+
+    @Benchmark
+    public ObjectId gridFSUpload() {
+        ObjectId fileId = gridFSBucket.uploadFromStream(
+                "benchmark.pdf",
+                new ByteArrayInputStream(pdf),
+                new GridFSUploadOptions().chunkSizeBytes(CHUNK_SIZE)
+        );
+        gridFSBucket.delete(fileId);
+        return fileId;
+    }
+
+    @Benchmark
+    public byte[] gridFSDownload() {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(pdf.length);
+        gridFSBucket.downloadToStream(storedFileId, outputStream);
+        return outputStream.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] getAsResource() throws IOException {
+        try (InputStream inputStream = pdfService.getAsResource(USER_ID, storedDocumentId).getInputStream()) {
+            return inputStream.readAllBytes();
+        }
+    }
+
+    @Benchmark
+    public ObjectId saveAsPdf() {
+        // A unique comment defeats the content-hash reuse so every invocation renders and uploads.
+        String uniqueHtml = html.replace("<body>", "<body><!-- " + revision.incrementAndGet() + " -->");
+        ObjectId documentId = pdfService.saveAsPdf(USER_ID, "fixture", uniqueHtml, "{\"ops\":[]}");
+        pdfService.deleteDocument(USER_ID, documentId);
+        return documentId;
+    }
+}
@@ -1,6 +1,7 @@
 package me.mmtr.pdforge.configuration;
 
 import me.mmtr.pdforge.handler.LoginSuccessHandler;
+import org.springframework.boot.actuate.autoconfigure.security.servlet.EndpointRequest;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
@@ -29,6 +30,7 @@ public class SecurityConfiguration {
                                 .requestMatchers("/register").permitAll()
                                 .requestMatchers("/login").permitAll()
                                 .requestMatchers("/fragments/**").permitAll()
+                                .requestMatchers(EndpointRequest.to("health", "prometheus")).permitAll()
                                 .anyRequest().authenticated())
                 .formLogin(formLogin ->
                         formLogin.loginPage("/login")
@@ -1,11 +1,14 @@
 package me.mmtr.pdforge.controller;
 
-import com.mongodb.client.gridfs.model.GridFSFile;
+import me.mmtr.pdforge.model.PdfDocument;
 import me.mmtr.pdforge.model.User;
+import me.mmtr.pdforge.model.UserPrincipal;
 import me.mmtr.pdforge.repository.UserRepository;
+import me.mmtr.pdforge.service.DocumentSourceService;
 import me.mmtr.pdforge.service.PdfService;
 import me.mmtr.pdforge.service.UserServiceImplementation;
 import org.bson.types.ObjectId;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.validation.BindingResult;
@@ -14,39 +17,36 @@ import org.springframework.web.bind.annotation.ModelAttribute;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 
-import java.security.Principal;
-import java.util.Objects;
-
 @Controller
 public class ApplicationMainController {
     private final UserServiceImplementation userService;
     private final UserRepository userRepository;
 
     private final PdfService pdfService;
+    private final DocumentSourceService documentSourceService;
 
     public ApplicationMainController(UserServiceImplementation userService,
                                      UserRepository userRepository,
-                                     PdfService pdfService) {
+                                     PdfService pdfService,
+                                     DocumentSourceService documentSourceService) {
         this.userService = userService;
         this.userRepository = userRepository;
         this.pdfService = pdfService;
+        this.documentSourceService = documentSourceService;
     }
 
     @GetMapping("/home")
-    public String home(Principal principal,
+    public String home(@AuthenticationPrincipal UserPrincipal principal,
                        @RequestParam(required = false) String objectId,
                        Model model) {
-
-        User principalUser = userRepository.findByUsername(principal.getName()).orElseThrow();
-
-        GridFSFile updatedDocument = null;
+        PdfDocument updatedDocument = null;
         String delta = null;
         if (objectId != null) {
             ObjectId docId = new ObjectId(objectId);
-            updatedDocument = pdfService.getAsGridFSFile(principalUser.getId(), docId);
-            delta = Objects.requireNonNull(
-                    updatedDocument.getMetadata()
-            ).get("delta").toString();
+            updatedDocument = pdfService.getUserDocument(principal.getId(), docId);
+            if (updatedDocument != null) {
+                delta = documentSourceService.getDelta(principal.getId(), docId);
+            }
         }
 
         model.addAttribute("updatedDocument", updatedDocument);
@@ -1,30 +1,70 @@
 package me.mmtr.pdforge.controller;
 
-import me.mmtr.pdforge.model.User;
-import me.mmtr.pdforge.repository.UserRepository;
+import me.mmtr.pdforge.model.DeletionJobSummary;
+import me.mmtr.pdforge.model.DocumentPage;
+import me.mmtr.pdforge.model.DocumentSort;
+import me.mmtr.pdforge.model.MergeFormat;
+import me.mmtr.pdforge.model.MergeJob;
+import me.mmtr.pdforge.model.MergeJobSummary;
+import me.mmtr.pdforge.model.PdfDocument;
+import me.mmtr.pdforge.model.RenderJobSummary;
+import me.mmtr.pdforge.model.SearchHit;
+import me.mmtr.pdforge.model.UserPrincipal;
+import me.mmtr.pdforge.service.AssetService;
+import me.mmtr.pdforge.service.DocumentDeletionService;
+import me.mmtr.pdforge.service.DocumentRevisionService;
+import me.mmtr.pdforge.service.DocumentSearchService;
+import me.mmtr.pdforge.service.GridFSFileResource;
+import me.mmtr.pdforge.service.InvalidDatasetException;
+import me.mmtr.pdforge.service.MailMergeService;
 import me.mmtr.pdforge.service.PdfService;
+import me.mmtr.pdforge.service.RenderJobService;
+import me.mmtr.pdforge.service.RenderRejectedException;
+import me.mmtr.pdforge.service.RenderTimeoutException;
 import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
 import org.springframework.http.*;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
-import org.springframework.web.bind.annotation.GetMapping;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.security.Principal;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.List;
 
 @Controller
 @RequestMapping("/pdf")
 public class PdfController {
 
     private final PdfService pdfService;
-    private final UserRepository userRepository;
+    private final RenderJobService renderJobService;
+    private final DocumentRevisionService documentRevisionService;
+    private final DocumentDeletionService documentDeletionService;
+    private final DocumentSearchService documentSearchService;
+    private final MailMergeService mailMergeService;
 
-    public PdfController(PdfService pdfService, UserRepository userRepository) {
+    private final int pageSize;
+
+    public PdfController(PdfService pdfService,
+                         RenderJobService renderJobService,
+                         DocumentRevisionService documentRevisionService,
+                         DocumentDeletionService documentDeletionService,
+                         DocumentSearchService documentSearchService,
+                         MailMergeService mailMergeService,
+                         @Value("${pdforge.documents.page-size:20}") int pageSize) {
         this.pdfService = pdfService;
-        this.userRepository = userRepository;
+        this.renderJobService = renderJobService;
+        this.documentRevisionService = documentRevisionService;
+        this.documentDeletionService = documentDeletionService;
+        this.documentSearchService = documentSearchService;
+        this.mailMergeService = mailMergeService;
+        this.pageSize = pageSize;
     }
 
     @PostMapping("/new")
@@ -32,47 +72,309 @@ public class PdfController {
                                  @RequestParam String delta,
                                  @RequestParam String htmlContent,
                                  @RequestParam(required = false) String objectId,
-                                 Principal principal) {
-        User principalUser = userRepository.findByUsername(principal.getName()).orElseThrow();
-
-        if (objectId != null) {
-            pdfService.deleteGridFSFile(new ObjectId(objectId));
-        }
-
-        pdfService.saveAsPdf(
-                principalUser.getId(),
+                                 @AuthenticationPrincipal UserPrincipal principal) {
+        renderJobService.enqueue(
+                principal.getId(),
                 filename,
                 htmlContent,
-                delta
+                delta,
+                objectId
         );
-        return "redirect:/home";
+        return "redirect:/pdf/user-documents";
+    }
+
+    @PostMapping("/merge")
+    public String mergePdfDocuments(@RequestParam String filename,
+                                    @RequestParam(name = "objectId") List<String> objectIds,
+                                    @AuthenticationPrincipal UserPrincipal principal) {
+        List<String> documentIds = objectIds.stream().filter(ObjectId::isValid).toList();
+
+        if (documentIds.isEmpty() || filename.isBlank()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
+        }
+
+        renderJobService.enqueueMerge(principal.getId(), filename, documentIds);
+        return "redirect:/pdf/user-documents";
+    }
+
+    @PostMapping("/merge-batch")
+    @ResponseBody
+    public ResponseEntity<MergeJobSummary> mergeBatch(@RequestParam String objectId,
+                                                      @RequestParam(required = false) String filename,
+                                                      @RequestHeader(HttpHeaders.CONTENT_TYPE) String contentType,
+                                                      InputStream dataset,
+                                                      @AuthenticationPrincipal UserPrincipal principal)
+            throws IOException {
+        MergeJob job = mailMergeService.startJob(
+                principal.getId(), templateId(objectId), filename, mergeFormat(contentType), dataset);
+
+        return ResponseEntity.accepted().body(MergeJobSummary.of(job));
+    }
+
+    @PostMapping(value = "/merge-batch", params = "output=zip")
+    public ResponseEntity<StreamingResponseBody> mergeBatchToZip(
+            @RequestParam String objectId,
+            @RequestParam(required = false) String filename,
+            @RequestHeader(HttpHeaders.CONTENT_TYPE) String contentType,
+            InputStream dataset,
+            @AuthenticationPrincipal UserPrincipal principal) throws IOException {
+        MailMergeService.ZipMerge merge = mailMergeService.prepareZip(
+                principal.getId(), templateId(objectId), filename, mergeFormat(contentType), dataset);
+
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType("application/zip"))
+                .header(HttpHeaders.CONTENT_DISPOSITION,
+                        ContentDisposition.attachment().filename("pdforge-merge.zip").build().toString())
+                .header("X-Merge-Rows", String.valueOf(merge.getRows()))
+                .cacheControl(CacheControl.noStore())
+                .body(outputStream -> mailMergeService.writeZip(merge, outputStream));
+    }
+
+    @GetMapping("/merge-batch/jobs/{jobId}")
+    @ResponseBody
+    public ResponseEntity<MergeJobSummary> mergeJob(@PathVariable String jobId,
+                                                    @AuthenticationPrincipal UserPrincipal principal) {
+        return ResponseEntity.of(mailMergeService.getUserJob(principal.getId(), jobId));
+    }
+
+    private ObjectId templateId(String objectId) {
+        if (!ObjectId.isValid(objectId)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
+        }
+        return new ObjectId(objectId);
+    }
+
+    private MergeFormat mergeFormat(String contentType) {
+        MergeFormat format = MergeFormat.forContentType(contentType);
+        if (format == null) {
+            throw new ResponseStatusException(HttpStatus.UNSUPPORTED_MEDIA_TYPE);
+        }
+        return format;
     }
 
     @GetMapping("/user-documents")
-    public String userPdfs(Principal principal, Model model) {
-        User principalUser = userRepository.findByUsername(principal.getName()).orElseThrow();
-        model.addAttribute("files", pdfService.getUserGridFSFiles(principalUser.getId()));
+    public String userPdfs(@AuthenticationPrincipal UserPrincipal principal,
+                           @RequestParam(defaultValue = "NEWEST") DocumentSort sort,
+                           @RequestParam(required = false) String cursor,
+                           @RequestParam(required = false) String q,
+                           Model model) {
+        if (q != null && !q.isBlank()) {
+            model.addAttribute("documents", List.of());
+            model.addAttribute("searchHits", documentSearchService.search(principal.getId(), q));
+        } else {
+            DocumentPage page = pdfService.getUserDocumentsPage(principal.getId(), sort, cursor, pageSize);
+
+            model.addAttribute("documents", page.documents());
+            model.addAttribute("nextCursor", page.nextCursor());
+        }
+        model.addAttribute("query", q);
+        model.addAttribute("sort", sort);
+        model.addAttribute("jobs", renderJobService.getUnfinishedOrFailedUserJobs(principal.getId()));
+        model.addAttribute("deletionJobs", documentDeletionService.getUnfinishedOrFailedUserJobs(principal.getId()));
 
         return "user-documents";
     }
 
+    @GetMapping("/search")
+    @ResponseBody
+    public List<SearchHit> searchDocuments(@RequestParam String q,
+                                           @AuthenticationPrincipal UserPrincipal principal) {
+        return documentSearchService.search(principal.getId(), q);
+    }
+
+    @GetMapping("/jobs")
+    @ResponseBody
+    public List<RenderJobSummary> renderJobs(@AuthenticationPrincipal UserPrincipal principal) {
+        return renderJobService.getUnfinishedOrFailedUserJobs(principal.getId());
+    }
+
+    @GetMapping("/jobs/{jobId}")
+    @ResponseBody
+    public ResponseEntity<RenderJobSummary> renderJob(@PathVariable String jobId,
+                                                      @AuthenticationPrincipal UserPrincipal principal) {
+        return ResponseEntity.of(renderJobService.getUserJob(principal.getId(), jobId));
+    }
+
+    @PostMapping("/jobs/dismiss")
+    public String dismissRenderJob(@RequestParam String jobId,
+                                   @AuthenticationPrincipal UserPrincipal principal) {
+        renderJobService.dismissFailedJob(principal.getId(), jobId);
+
+        return "redirect:/pdf/user-documents";
+    }
+
     @PostMapping("/delete")
-    public String deletePdfDocument(@RequestParam String objectId) {
-        pdfService.deleteGridFSFile(new ObjectId(objectId));
+    public String deletePdfDocument(@RequestParam String objectId,
+                                    @AuthenticationPrincipal UserPrincipal principal) {
+        pdfService.deleteDocument(principal.getId(), new ObjectId(objectId));
+
+        return "redirect:/pdf/user-documents";
+    }
+
+    @PostMapping("/delete/bulk")
+    public String deletePdfDocuments(@RequestParam(name = "objectId", required = false) List<String> objectIds,
+                                     @RequestParam(defaultValue = "false") boolean all,
+                                     @AuthenticationPrincipal UserPrincipal principal) {
+        if (all) {
+            documentDeletionService.deleteAllDocuments(principal.getId());
+            return "redirect:/pdf/user-documents";
+        }
+
+        List<ObjectId> documentIds = objectIds == null
+                ? List.of()
+                : objectIds.stream().filter(ObjectId::isValid).map(ObjectId::new).toList();
+
+        if (documentIds.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
+        }
+
+        documentDeletionService.deleteDocuments(principal.getId(), documentIds);
+        return "redirect:/pdf/user-documents";
+    }
+
+    @GetMapping("/delete/jobs/{jobId}")
+    @ResponseBody
+    public ResponseEntity<DeletionJobSummary> deletionJob(@PathVariable String jobId,
+                                                          @AuthenticationPrincipal UserPrincipal principal) {
+        return ResponseEntity.of(documentDeletionService.getUserJob(principal.getId(), jobId));
+    }
+
+    @PostMapping("/delete/jobs/dismiss")
+    public String dismissDeletionJob(@RequestParam String jobId,
+                                     @AuthenticationPrincipal UserPrincipal principal) {
+        documentDeletionService.dismissFailedJob(principal.getId(), jobId);
 
         return "redirect:/pdf/user-documents";
     }
 
     @GetMapping("/view")
-    public ResponseEntity<byte[]> viewPdfDocument(@RequestParam String objectId,
-                                                  @RequestParam String filename) throws IOException {
+    public ResponseEntity<Resource> viewPdfDocument(@RequestParam String objectId,
+                                                    @RequestParam String filename,
+                                                    @AuthenticationPrincipal UserPrincipal principal) throws IOException {
+        GridFSFileResource pdfFile = pdfService.getAsResource(principal.getId(), new ObjectId(objectId));
 
-        byte[] pdfFileBytes = pdfService.getAsByteArray(new ObjectId(objectId));
+        return inlinePdf(pdfFile, filename);
+    }
+
+    @GetMapping("/thumbnail")
+    public ResponseEntity<byte[]> documentThumbnail(@RequestParam String objectId,
+                                                    @AuthenticationPrincipal UserPrincipal principal)
+            throws FileNotFoundException {
+        byte[] thumbnail = pdfService.getThumbnail(principal.getId(), new ObjectId(objectId));
+
+        // The listing links thumbnails with the file id as a version parameter, so a cached copy never goes stale.
+        return ResponseEntity.ok()
+                .contentType(MediaType.IMAGE_PNG)
+                .cacheControl(CacheControl.maxAge(Duration.ofDays(365)).cachePrivate().immutable())
+                .body(thumbnail);
+    }
+
+    @GetMapping("/assets/{hash}")
+    public ResponseEntity<byte[]> asset(@PathVariable String hash,
+                                        @AuthenticationPrincipal UserPrincipal principal) {
+        AssetService.Asset asset = pdfService.getUserAsset(principal.getId(), hash);
+
+        if (asset == null) {
+            return ResponseEntity.notFound().build();
+        }
+        // Assets are addressed by their content hash, so a cached copy never goes stale.
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(asset.contentType()))
+                .cacheControl(CacheControl.maxAge(Duration.ofDays(365)).cachePrivate().immutable())
+                .body(asset.bytes());
+    }
+
+    @GetMapping("/export")
+    public ResponseEntity<StreamingResponseBody> exportDocuments(
+            @RequestParam(name = "objectId", required = false) List<String> objectIds,
+            @AuthenticationPrincipal UserPrincipal principal) {
+        String userId = principal.getId();
+        List<ObjectId> documentIds = objectIds == null
+                ? List.of()
+                : objectIds.stream().filter(ObjectId::isValid).map(ObjectId::new).toList();
+
+        if (objectIds != null && !objectIds.isEmpty() && documentIds.isEmpty()) {
+            return ResponseEntity.badRequest().build();
+        }
 
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.APPLICATION_PDF);
-        headers.setContentDisposition(ContentDisposition.inline().filename(filename).build());
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType("application/zip"))
+                .header(HttpHeaders.CONTENT_DISPOSITION,
+                        ContentDisposition.attachment().filename("pdforge-export.zip").build().toString())
+                .cacheControl(CacheControl.noStore())
+                .body(outputStream -> pdfService.exportDocuments(userId, documentIds, outputStream));
+    }
+
+    @GetMapping("/revisions")
+    public String documentRevisions(@RequestParam String objectId,
+                                    @AuthenticationPrincipal UserPrincipal principal,
+                                    Model model) throws FileNotFoundException {
+        ObjectId documentId = new ObjectId(objectId);
+
+        PdfDocument document = pdfService.getUserDocument(principal.getId(), documentId);
+        if (document == null) {
+            throw new FileNotFoundException("Document not found");
+        }
+
+        model.addAttribute("document", document);
+        model.addAttribute("revisions", documentRevisionService.getRevisions(principal.getId(), documentId));
+
+        return "document-revisions";
+    }
+
+    @GetMapping("/revisions/view")
+    public ResponseEntity<Resource> viewRevision(@RequestParam String objectId,
+                                                 @RequestParam long revision,
+                                                 @RequestParam String filename,
+                                                 @AuthenticationPrincipal UserPrincipal principal) throws IOException {
+        GridFSFileResource pdfFile = pdfService.getRevisionAsResource(
+                principal.getId(), new ObjectId(objectId), revision);
+
+        return inlinePdf(pdfFile, filename);
+    }
+
+    private ResponseEntity<Resource> inlinePdf(GridFSFileResource pdfFile, String filename) throws IOException {
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_PDF)
+                .header(HttpHeaders.CONTENT_DISPOSITION,
+                        ContentDisposition.inline().filename(filename).build().toString())
+                .cacheControl(CacheControl.noCache().cachePrivate())
+                .eTag(pdfFile.getETag())
+                .lastModified(pdfFile.lastModified())
+                .body(pdfFile);
+    }
+
+    @ExceptionHandler(FileNotFoundException.class)
+    public ResponseEntity<Void> handleFileNotFound() {
+        return ResponseEntity.notFound().build();
+    }
+
+    @ExceptionHandler(RenderRejectedException.class)
+    public ResponseEntity<String> handleRenderRejected(RenderRejectedException e) {
+        HttpStatus status = switch (e.getReason()) {
+            case CONTENT_TOO_LARGE -> HttpStatus.PAYLOAD_TOO_LARGE;
+            case TOO_MANY_USER_JOBS -> HttpStatus.TOO_MANY_REQUESTS;
+            case QUEUE_FULL -> HttpStatus.SERVICE_UNAVAILABLE;
+        };
+
+        ResponseEntity.BodyBuilder response = ResponseEntity.status(status).contentType(MediaType.TEXT_PLAIN);
+        if (e.getRetryAfter() != null) {
+            response.header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfter().toSeconds()));
+        }
+        return response.body(e.getMessage());
+    }
+
+    @ExceptionHandler(InvalidDatasetException.class)
+    public ResponseEntity<String> handleInvalidDataset(InvalidDatasetException e) {
+        return ResponseEntity.badRequest()
+                .contentType(MediaType.TEXT_PLAIN)
+                .body(e.getMessage());
+    }
 
-        return new ResponseEntity<>(pdfFileBytes, headers, HttpStatus.OK);
+    @ExceptionHandler(RenderTimeoutException.class)
+    public ResponseEntity<String> handleRenderTimeout(RenderTimeoutException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .contentType(MediaType.TEXT_PLAIN)
+                .body(e.getMessage());
     }
 }
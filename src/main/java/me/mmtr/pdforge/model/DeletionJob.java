@@ -0,0 +1,43 @@
+package me.mmtr.pdforge.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Document(collection = "deletion_jobs")
+public class DeletionJob {
+    @Id
+    private String id;
+
+    @Indexed
+    private String userId;
+
+    private List<String> documentIds;
+
+    @Indexed
+    private RenderJobStatus status;
+
+    private long total;
+
+    private long deleted;
+
+    private List<String> pendingDocumentIds;
+
+    private Map<String, Integer> pendingReferences;
+
+    private String error;
+
+    private Instant createdAt;
+
+    private Instant finishedAt;
+}
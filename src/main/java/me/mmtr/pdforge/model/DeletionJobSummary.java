@@ -0,0 +1,24 @@
+package me.mmtr.pdforge.model;
+
+import java.time.Instant;
+
+public record DeletionJobSummary(String id,
+                                 RenderJobStatus status,
+                                 long total,
+                                 long deleted,
+                                 String error,
+                                 Instant createdAt,
+                                 Instant finishedAt) {
+
+    public static DeletionJobSummary of(DeletionJob job) {
+        return new DeletionJobSummary(
+                job.getId(),
+                job.getStatus(),
+                job.getTotal(),
+                job.getDeleted(),
+                job.getError(),
+                job.getCreatedAt(),
+                job.getFinishedAt()
+        );
+    }
+}
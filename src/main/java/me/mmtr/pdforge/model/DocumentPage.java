@@ -0,0 +1,10 @@
+package me.mmtr.pdforge.model;
+
+import java.util.List;
+
+public record DocumentPage(List<PdfDocument> documents, String nextCursor) {
+
+    public boolean hasNext() {
+        return nextCursor != null;
+    }
+}
@@ -0,0 +1,42 @@
+package me.mmtr.pdforge.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.bson.types.ObjectId;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Document(collection = "document_revisions")
+public class DocumentRevision {
+    @Id
+    private String id;
+
+    private String documentId;
+
+    private String userId;
+
+    private long number;
+
+    private String filename;
+
+    private boolean snapshot;
+
+    private TextPatch delta;
+
+    private TextPatch html;
+
+    private List<String> assets;
+
+    private ObjectId fileId;
+
+    private Instant fileCachedAt;
+
+    private Instant createdAt;
+}
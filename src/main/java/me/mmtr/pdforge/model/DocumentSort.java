@@ -0,0 +1,23 @@
+package me.mmtr.pdforge.model;
+
+public enum DocumentSort {
+    NEWEST("updatedAt", false),
+    OLDEST("updatedAt", true),
+    NAME("filename", true);
+
+    private final String field;
+    private final boolean ascending;
+
+    DocumentSort(String field, boolean ascending) {
+        this.field = field;
+        this.ascending = ascending;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public boolean isAscending() {
+        return ascending;
+    }
+}
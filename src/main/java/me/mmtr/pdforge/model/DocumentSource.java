@@ -0,0 +1,28 @@
+package me.mmtr.pdforge.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Document(collection = "document_sources")
+public class DocumentSource {
+    @Id
+    private String id;
+
+    private String userId;
+
+    private String encoding;
+
+    private int originalLength;
+
+    private byte[] delta;
+
+    private List<String> assets;
+}
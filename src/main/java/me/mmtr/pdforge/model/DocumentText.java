@@ -0,0 +1,26 @@
+package me.mmtr.pdforge.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.TextScore;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Document(collection = "document_texts")
+public class DocumentText {
+    @Id
+    private String id;
+
+    private String userId;
+
+    private String filename;
+
+    private String text;
+
+    @TextScore
+    private Float score;
+}
@@ -0,0 +1,30 @@
+package me.mmtr.pdforge.model;
+
+import java.util.Locale;
+
+public enum MergeFormat {
+    CSV("text/csv"),
+    JSON_LINES("application/x-ndjson", "application/jsonl");
+
+    private final String[] contentTypes;
+
+    MergeFormat(String... contentTypes) {
+        this.contentTypes = contentTypes;
+    }
+
+    public static MergeFormat forContentType(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+
+        String mediaType = contentType.split(";", 2)[0].strip().toLowerCase(Locale.ROOT);
+        for (MergeFormat format : values()) {
+            for (String candidate : format.contentTypes) {
+                if (candidate.equals(mediaType)) {
+                    return format;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,51 @@
+package me.mmtr.pdforge.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.bson.types.ObjectId;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Document(collection = "merge_jobs")
+public class MergeJob {
+    @Id
+    private String id;
+
+    @Indexed
+    private String userId;
+
+    private String templateDocumentId;
+
+    private long templateRevision;
+
+    private String filename;
+
+    private MergeFormat format;
+
+    private ObjectId datasetFileId;
+
+    @Indexed
+    private RenderJobStatus status;
+
+    private long total;
+
+    private long processed;
+
+    private long failed;
+
+    private List<MergeRowError> errors;
+
+    private String error;
+
+    private Instant createdAt;
+
+    private Instant finishedAt;
+}
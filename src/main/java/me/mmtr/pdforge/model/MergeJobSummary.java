@@ -0,0 +1,29 @@
+package me.mmtr.pdforge.model;
+
+import java.time.Instant;
+import java.util.List;
+
+public record MergeJobSummary(String id,
+                              RenderJobStatus status,
+                              long total,
+                              long processed,
+                              long failed,
+                              List<MergeRowError> errors,
+                              String error,
+                              Instant createdAt,
+                              Instant finishedAt) {
+
+    public static MergeJobSummary of(MergeJob job) {
+        return new MergeJobSummary(
+                job.getId(),
+                job.getStatus(),
+                job.getTotal(),
+                job.getProcessed(),
+                job.getFailed(),
+                job.getErrors() != null ? job.getErrors() : List.of(),
+                job.getError(),
+                job.getCreatedAt(),
+                job.getFinishedAt()
+        );
+    }
+}
@@ -0,0 +1,31 @@
+package me.mmtr.pdforge.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.bson.types.ObjectId;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Document(collection = "documents")
+public class PdfDocument {
+    @Id
+    private String id;
+
+    private String userId;
+
+    private String filename;
+
+    private ObjectId fileId;
+
+    private Instant createdAt;
+
+    private Instant updatedAt;
+
+    private long revision;
+}
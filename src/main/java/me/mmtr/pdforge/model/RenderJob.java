@@ -0,0 +1,44 @@
+package me.mmtr.pdforge.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Document(collection = "render_jobs")
+public class RenderJob {
+    @Id
+    private String id;
+
+    @Indexed
+    private String userId;
+
+    private String filename;
+
+    private String htmlContent;
+
+    private String delta;
+
+    private String documentId;
+
+    private List<String> sourceDocumentIds;
+
+    @Indexed
+    private RenderJobStatus status;
+
+    private String resultObjectId;
+
+    private String error;
+
+    private Instant createdAt;
+
+    private Instant finishedAt;
+}
@@ -0,0 +1,9 @@
+package me.mmtr.pdforge.model;
+
+public enum RenderJobStatus {
+    UPLOADING,
+    PENDING,
+    RUNNING,
+    DONE,
+    FAILED
+}
@@ -0,0 +1,24 @@
+package me.mmtr.pdforge.model;
+
+import java.time.Instant;
+
+public record RenderJobSummary(String id,
+                               String filename,
+                               RenderJobStatus status,
+                               String objectId,
+                               String error,
+                               Instant createdAt,
+                               Instant finishedAt) {
+
+    public static RenderJobSummary of(RenderJob job) {
+        return new RenderJobSummary(
+                job.getId(),
+                job.getFilename(),
+                job.getStatus(),
+                job.getResultObjectId(),
+                job.getError(),
+                job.getCreatedAt(),
+                job.getFinishedAt()
+        );
+    }
+}
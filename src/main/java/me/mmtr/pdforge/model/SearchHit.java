@@ -0,0 +1,4 @@
+package me.mmtr.pdforge.model;
+
+public record SearchHit(String id, String filename, String snippet, float score) {
+}
@@ -0,0 +1,18 @@
+package me.mmtr.pdforge.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class TextPatch {
+    private int prefixLength;
+
+    private int suffixLength;
+
+    private int originalLength;
+
+    private byte[] replacement;
+}
@@ -0,0 +1,22 @@
+package me.mmtr.pdforge.model;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import org.springframework.security.core.authority.AuthorityUtils;
+
+import java.io.Serial;
+
+@Getter
+@EqualsAndHashCode(callSuper = true)
+public class UserPrincipal extends org.springframework.security.core.userdetails.User {
+
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    private final String id;
+
+    public UserPrincipal(String id, String username, String password) {
+        super(username, password, AuthorityUtils.NO_AUTHORITIES);
+        this.id = id;
+    }
+}
@@ -0,0 +1,27 @@
+package me.mmtr.pdforge.repository;
+
+import me.mmtr.pdforge.model.DeletionJob;
+import me.mmtr.pdforge.model.RenderJobStatus;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.Query;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface DeletionJobRepository extends MongoRepository<DeletionJob, String> {
+
+    @Query(value = "{ 'userId': ?0, 'status': { $in: ?1 } }",
+            fields = "{ 'documentIds': 0 }",
+            sort = "{ 'createdAt': -1 }")
+    List<DeletionJob> findSummariesByUserIdAndStatusIn(String userId, Collection<RenderJobStatus> statuses);
+
+    @Query(value = "{ 'status': { $in: ?0 } }", fields = "{ '_id': 1 }")
+    List<DeletionJob> findIdsByStatusIn(Collection<RenderJobStatus> statuses);
+
+    Optional<DeletionJob> findByIdAndUserId(String id, String userId);
+
+    void deleteByIdAndUserIdAndStatus(String id, String userId, RenderJobStatus status);
+}
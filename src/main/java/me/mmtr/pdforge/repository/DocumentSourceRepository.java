@@ -0,0 +1,12 @@
+package me.mmtr.pdforge.repository;
+
+import me.mmtr.pdforge.model.DocumentSource;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Optional;
+
+@Repository
+public interface DocumentSourceRepository extends MongoRepository<DocumentSource, String> {
+    Optional<DocumentSource> findByIdAndUserId(String id, String userId);
+}
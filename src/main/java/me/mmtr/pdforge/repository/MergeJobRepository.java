@@ -0,0 +1,20 @@
+package me.mmtr.pdforge.repository;
+
+import me.mmtr.pdforge.model.MergeJob;
+import me.mmtr.pdforge.model.RenderJobStatus;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.Query;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface MergeJobRepository extends MongoRepository<MergeJob, String> {
+
+    @Query(value = "{ 'status': { $in: ?0 } }", fields = "{ '_id': 1, 'datasetFileId': 1 }")
+    List<MergeJob> findIdsByStatusIn(Collection<RenderJobStatus> statuses);
+
+    Optional<MergeJob> findByIdAndUserId(String id, String userId);
+}
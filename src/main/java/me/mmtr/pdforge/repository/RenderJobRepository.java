@@ -0,0 +1,30 @@
+package me.mmtr.pdforge.repository;
+
+import me.mmtr.pdforge.model.RenderJob;
+import me.mmtr.pdforge.model.RenderJobStatus;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.Query;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface RenderJobRepository extends MongoRepository<RenderJob, String> {
+
+    @Query(value = "{ 'userId': ?0 }", fields = "{ 'htmlContent': 0, 'delta': 0 }", sort = "{ 'createdAt': -1 }")
+    List<RenderJob> findSummariesByUserId(String userId);
+
+    @Query(value = "{ 'userId': ?0, 'status': { $in: ?1 } }",
+            fields = "{ 'htmlContent': 0, 'delta': 0 }",
+            sort = "{ 'createdAt': -1 }")
+    List<RenderJob> findSummariesByUserIdAndStatusIn(String userId, Collection<RenderJobStatus> statuses);
+
+    @Query(value = "{ 'status': { $in: ?0 } }", fields = "{ '_id': 1 }")
+    List<RenderJob> findIdsByStatusIn(Collection<RenderJobStatus> statuses);
+
+    Optional<RenderJob> findByIdAndUserId(String id, String userId);
+
+    void deleteByIdAndUserIdAndStatus(String id, String userId, RenderJobStatus status);
+}
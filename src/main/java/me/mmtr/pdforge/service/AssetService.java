@@ -0,0 +1,261 @@
+package me.mmtr.pdforge.service;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.gridfs.GridFSUploadStream;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import me.mmtr.pdforge.model.DocumentRevision;
+import me.mmtr.pdforge.model.DocumentSource;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+@Service
+public class AssetService implements RenderResources.AssetLoader {
+
+    public static final String URL_PREFIX = "/pdf/assets/";
+
+    private static final String BUCKET = "assets";
+    private static final String HASH_FIELD = "metadata.hash";
+    private static final String REF_COUNT_FIELD = "metadata.refCount";
+    private static final String STORED_AT_FIELD = "metadata.storedAt";
+    private static final String ASSETS_FIELD = "assets";
+
+    // SVG is left inline: served from our own origin it could run scripts.
+    private static final Set<String> CONTENT_TYPES =
+            Set.of("image/png", "image/jpeg", "image/gif", "image/webp", "image/bmp");
+    private static final Pattern DATA_IMAGE =
+            Pattern.compile("data:(image/[a-z0-9.+-]+);base64,([A-Za-z0-9+/]+={0,2})", Pattern.CASE_INSENSITIVE);
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+    private static final Pattern ASSET_URL = Pattern.compile(Pattern.quote(URL_PREFIX) + "([0-9a-f]{64})");
+
+    private final MongoTemplate mongoTemplate;
+    private final long maxAssetBytes;
+    private final Duration releaseGrace;
+
+    public AssetService(MongoTemplate mongoTemplate,
+                        @Value("${pdforge.assets.max-size:10MB}") DataSize maxAssetSize,
+                        @Value("${pdforge.assets.release-grace:1h}") Duration releaseGrace) {
+        this.mongoTemplate = mongoTemplate;
+        this.maxAssetBytes = maxAssetSize.toBytes();
+        this.releaseGrace = releaseGrace;
+    }
+
+    public static boolean isAssetUri(String uri) {
+        return uri != null && uri.startsWith(URL_PREFIX);
+    }
+
+    public static Set<String> referencedHashes(String content) {
+        Set<String> hashes = new LinkedHashSet<>();
+        if (content != null && content.contains(URL_PREFIX)) {
+            Matcher matcher = ASSET_URL.matcher(content);
+            while (matcher.find()) {
+                hashes.add(matcher.group(1));
+            }
+        }
+        return hashes;
+    }
+
+    public String extractImages(String content) {
+        if (content == null || !content.contains("data:")) {
+            return content;
+        }
+
+        // Quill writes the same image into both the delta and the HTML, often more than once.
+        Map<String, String> urlsByData = new HashMap<>();
+        Matcher matcher = DATA_IMAGE.matcher(content);
+        StringBuilder extracted = new StringBuilder(content.length() / 4);
+        while (matcher.find()) {
+            String url = urlsByData.computeIfAbsent(matcher.group(), data -> {
+                try {
+                    byte[] bytes = Base64.getDecoder().decode(matcher.group(2));
+                    String hash = store(bytes, matcher.group(1));
+                    return hash != null ? URL_PREFIX + hash : null;
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            });
+            matcher.appendReplacement(extracted, Matcher.quoteReplacement(url != null ? url : matcher.group()));
+        }
+        matcher.appendTail(extracted);
+        return extracted.toString();
+    }
+
+    public String store(byte[] bytes, String contentType) {
+        String normalizedType = contentType != null ? contentType.toLowerCase(Locale.ROOT) : "";
+        if (!CONTENT_TYPES.contains(normalizedType) || bytes.length == 0 || bytes.length > maxAssetBytes) {
+            return null;
+        }
+
+        String hash = hash(bytes);
+        // Touching an existing asset keeps it from being removed before the file that will reference it is stored.
+        Date now = new Date();
+        if (files().updateOne(Filters.eq(HASH_FIELD, hash), Updates.set(STORED_AT_FIELD, now)).getMatchedCount() > 0) {
+            return hash;
+        }
+
+        GridFSBucket bucket = bucket();
+        GridFSUploadOptions options = new GridFSUploadOptions()
+                .metadata(new org.bson.Document("hash", hash)
+                        .append("contentType", normalizedType)
+                        .append("refCount", 0)
+                        .append("storedAt", now));
+        GridFSUploadStream uploadStream = bucket.openUploadStream(hash, options);
+        try {
+            uploadStream.write(bytes);
+            uploadStream.close();
+        } catch (MongoWriteException e) {
+            // Another save stored the same image first; only the chunks written here are dropped.
+            mongoTemplate.getCollection(BUCKET + ".chunks")
+                    .deleteMany(Filters.eq("files_id", uploadStream.getObjectId()));
+            if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                throw e;
+            }
+        }
+        return hash;
+    }
+
+    public Asset getAsset(String hash) {
+        if (hash == null || !HASH.matcher(hash).matches()) {
+            return null;
+        }
+
+        GridFSBucket bucket = bucket();
+        GridFSFile file = bucket.find(Filters.eq(HASH_FIELD, hash)).first();
+        if (file == null || file.getMetadata() == null) {
+            return null;
+        }
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream((int) file.getLength());
+        bucket.downloadToStream(file.getObjectId(), outputStream);
+        return new Asset(file.getMetadata().getString("contentType"), outputStream.toByteArray());
+    }
+
+    public void addReferences(Collection<String> hashes) {
+        if (!hashes.isEmpty()) {
+            files().updateMany(Filters.in(HASH_FIELD, hashes), Updates.inc(REF_COUNT_FIELD, 1));
+        }
+    }
+
+    public void releaseReferences(Map<String, Integer> references) {
+        if (references.isEmpty()) {
+            return;
+        }
+
+        files().bulkWrite(
+                references.entrySet().stream()
+                        .map(reference -> new UpdateOneModel<org.bson.Document>(
+                                Filters.eq(HASH_FIELD, reference.getKey()),
+                                Updates.inc(REF_COUNT_FIELD, -reference.getValue())))
+                        .toList(),
+                new BulkWriteOptions().ordered(false)
+        );
+        deleteUnreferenced(Filters.in(HASH_FIELD, references.keySet()));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void deleteUnreferencedAssets() {
+        // Picks up assets still within the grace period when their last file went, those of failed renders and
+        // those whose last source or revision has since been deleted.
+        deleteUnreferenced(Filters.exists(REF_COUNT_FIELD));
+    }
+
+    private void deleteUnreferenced(Bson filter) {
+        Bson unreferenced = Filters.and(filter,
+                Filters.lte(REF_COUNT_FIELD, 0),
+                Filters.lt(STORED_AT_FIELD, Date.from(Instant.now().minus(releaseGrace))));
+
+        List<org.bson.Document> candidates = files().find(unreferenced)
+                .projection(Projections.include("_id", HASH_FIELD))
+                .into(new ArrayList<>());
+        for (org.bson.Document candidate : candidates) {
+            ObjectId candidateId = candidate.getObjectId("_id");
+            if (isKeptBySource(candidate.get("metadata", org.bson.Document.class).getString("hash"))) {
+                continue;
+            }
+
+            // Deleted one by one with the filter re-checked, so an asset a save just touched again is kept.
+            if (files().findOneAndDelete(Filters.and(Filters.eq("_id", candidateId), unreferenced)) != null) {
+                mongoTemplate.getCollection(BUCKET + ".chunks").deleteMany(Filters.eq("files_id", candidateId));
+            }
+        }
+    }
+
+    private boolean isKeptBySource(String hash) {
+        // Sources and revisions hold no file, but re-rendering them later still needs their images.
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(DocumentSource.class))
+                .find(Filters.eq(ASSETS_FIELD, hash)).limit(1).first() != null
+                || mongoTemplate.getCollection(mongoTemplate.getCollectionName(DocumentRevision.class))
+                .find(Filters.eq(ASSETS_FIELD, hash)).limit(1).first() != null;
+    }
+
+    @Override
+    public byte[] load(String uri) {
+        Asset asset = isAssetUri(uri) ? getAsset(uri.substring(URL_PREFIX.length())) : null;
+        return asset != null ? asset.bytes() : null;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void createIndexes() {
+        files().createIndex(Indexes.ascending(HASH_FIELD), new IndexOptions().unique(true).sparse(true));
+        mongoTemplate.getCollection(mongoTemplate.getCollectionName(DocumentSource.class))
+                .createIndex(Indexes.ascending(ASSETS_FIELD), new IndexOptions().sparse(true));
+        mongoTemplate.getCollection(mongoTemplate.getCollectionName(DocumentRevision.class))
+                .createIndex(Indexes.ascending(ASSETS_FIELD), new IndexOptions().sparse(true));
+    }
+
+    private String hash(byte[] bytes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private MongoCollection<org.bson.Document> files() {
+        return mongoTemplate.getCollection(BUCKET + ".files");
+    }
+
+    private GridFSBucket bucket() {
+        return GridFSBuckets.create(mongoTemplate.getDb(), BUCKET);
+    }
+
+    public record Asset(String contentType, byte[] bytes) {
+    }
+}
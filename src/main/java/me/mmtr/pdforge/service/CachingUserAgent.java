@@ -0,0 +1,72 @@
+package me.mmtr.pdforge.service;
+
+import com.lowagie.text.Image;
+import org.xhtmlrenderer.pdf.ITextFSImage;
+import org.xhtmlrenderer.pdf.ITextOutputDevice;
+import org.xhtmlrenderer.pdf.ITextUserAgent;
+import org.xhtmlrenderer.resource.CSSResource;
+import org.xhtmlrenderer.resource.ImageResource;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+final class CachingUserAgent extends ITextUserAgent {
+
+    private final RenderResources resources;
+    private final int dotsPerPixel;
+
+    // A renderer lays out one document at a time, so these only ever see the current render.
+    private final Set<String> embeddedImages = new HashSet<>();
+    private long originalImageBytes;
+    private long embeddedImageBytes;
+
+    CachingUserAgent(ITextOutputDevice outputDevice, int dotsPerPixel, RenderResources resources) {
+        super(outputDevice, dotsPerPixel);
+        this.resources = resources;
+        this.dotsPerPixel = dotsPerPixel;
+    }
+
+    @Override
+    public String resolveURI(String uri) {
+        // Asset URLs are relative to the application, not to a document base, and are loaded by the cache.
+        return AssetService.isAssetUri(uri) ? uri : super.resolveURI(uri);
+    }
+
+    @Override
+    public ImageResource getImageResource(String uri) {
+        RenderResources.RenderImage renderImage = resources.getImage(uri);
+        if (renderImage == null) {
+            return new ImageResource(uri, null);
+        }
+
+        if (embeddedImages.add(uri)) {
+            originalImageBytes += renderImage.originalBytes();
+            embeddedImageBytes += renderImage.storedBytes();
+        }
+
+        Image image = renderImage.image();
+        image.scaleAbsolute(image.getPlainWidth() * dotsPerPixel, image.getPlainHeight() * dotsPerPixel);
+        return new ImageResource(uri, new ITextFSImage(image));
+    }
+
+    long getOriginalImageBytes() {
+        return originalImageBytes;
+    }
+
+    long getEmbeddedImageBytes() {
+        return embeddedImageBytes;
+    }
+
+    void resetImageStatistics() {
+        embeddedImages.clear();
+        originalImageBytes = 0;
+        embeddedImageBytes = 0;
+    }
+
+    @Override
+    public CSSResource getCSSResource(String uri) {
+        byte[] stylesheet = resources.getBytes(uri);
+        return new CSSResource(stylesheet != null ? new ByteArrayInputStream(stylesheet) : null);
+    }
+}
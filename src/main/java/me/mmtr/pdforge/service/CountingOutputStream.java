@@ -0,0 +1,54 @@
+package me.mmtr.pdforge.service;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+final class CountingOutputStream extends FilterOutputStream {
+
+    private final CRC32 checksum = new CRC32();
+
+    private long count;
+
+    CountingOutputStream(OutputStream outputStream) {
+        super(outputStream);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkNotInterrupted();
+        out.write(b);
+        checksum.update(b);
+        count++;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        checkNotInterrupted();
+        out.write(buffer, offset, length);
+        checksum.update(buffer, offset, length);
+        count += length;
+    }
+
+    private void checkNotInterrupted() throws InterruptedIOException {
+        // Layout cannot be interrupted, but an abandoned render stops here once it starts writing the PDF.
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Rendering was abandoned");
+        }
+    }
+
+    @Override
+    public void close() {
+        // The wrapped stream is closed by its owner, which may still need to abort it instead.
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    long getChecksum() {
+        return checksum.getValue();
+    }
+}
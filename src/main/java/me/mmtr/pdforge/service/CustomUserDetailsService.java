@@ -1,7 +1,9 @@
 package me.mmtr.pdforge.service;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import me.mmtr.pdforge.model.User;
-import me.mmtr.pdforge.repository.UserRepository;
+import me.mmtr.pdforge.model.UserPrincipal;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
@@ -10,21 +12,29 @@ import org.springframework.stereotype.Service;
 @Service
 public class CustomUserDetailsService implements UserDetailsService {
 
-    private final UserRepository userRepository;
+    private final UserLookupService userLookupService;
+    private final MeterRegistry meterRegistry;
 
-    public CustomUserDetailsService(UserRepository userRepository) {
-        this.userRepository = userRepository;
+    public CustomUserDetailsService(UserLookupService userLookupService, MeterRegistry meterRegistry) {
+        this.userLookupService = userLookupService;
+        this.meterRegistry = meterRegistry;
     }
 
     @Override
     public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
-        User user = userRepository.findByUsername(username).orElseThrow(() ->
-                new UsernameNotFoundException(username));
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "not_found";
+        try {
+            User user = userLookupService.findByUsername(username).orElseThrow(() ->
+                    new UsernameNotFoundException(username));
+            outcome = "found";
 
-        return org.springframework.security.core.userdetails.User.builder()
-                .username(user.getUsername())
-                .password(user.getPassword())
-                .build();
+            return new UserPrincipal(user.getId(), user.getUsername(), user.getPassword());
+        } finally {
+            sample.stop(Timer.builder("pdforge.auth.load-user")
+                    .description("Time spent loading a user for authentication")
+                    .tag("outcome", outcome)
+                    .register(meterRegistry));
+        }
     }
 }
-
@@ -0,0 +1,36 @@
+package me.mmtr.pdforge.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+final class DeflateCodec {
+
+    static final String ENCODING = "deflate";
+
+    private DeflateCodec() {
+    }
+
+    static byte[] compress(byte[] data) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(Math.max(32, data.length / 4));
+        try (DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(outputStream)) {
+            deflaterOutputStream.write(data);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return outputStream.toByteArray();
+    }
+
+    static String decompress(byte[] data, int originalLength) {
+        try (InputStream inflaterInputStream = new InflaterInputStream(new ByteArrayInputStream(data))) {
+            byte[] bytes = inflaterInputStream.readNBytes(originalLength);
+            return new String(bytes, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
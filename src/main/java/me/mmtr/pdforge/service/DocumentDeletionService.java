@@ -0,0 +1,158 @@
+package me.mmtr.pdforge.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import me.mmtr.pdforge.model.DeletionJob;
+import me.mmtr.pdforge.model.DeletionJobSummary;
+import me.mmtr.pdforge.model.PdfDocument;
+import me.mmtr.pdforge.model.RenderJobStatus;
+import me.mmtr.pdforge.repository.DeletionJobRepository;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+
+@Service
+public class DocumentDeletionService {
+
+    private final DeletionJobRepository deletionJobRepository;
+    private final MongoTemplate mongoTemplate;
+    private final PdfService pdfService;
+    private final TaskExecutor taskExecutor;
+
+    private final Counter deletedDocuments;
+
+    private final int batchSize;
+
+    public DocumentDeletionService(DeletionJobRepository deletionJobRepository,
+                                   MongoTemplate mongoTemplate,
+                                   PdfService pdfService,
+                                   TaskExecutor taskExecutor,
+                                   MeterRegistry meterRegistry,
+                                   @Value("${pdforge.documents.delete-batch-size:500}") int batchSize) {
+        this.deletionJobRepository = deletionJobRepository;
+        this.mongoTemplate = mongoTemplate;
+        this.pdfService = pdfService;
+        this.taskExecutor = taskExecutor;
+        this.batchSize = Math.max(1, batchSize);
+        this.deletedDocuments = Counter.builder("pdforge.documents.deleted")
+                .description("Documents removed by bulk deletions")
+                .register(meterRegistry);
+    }
+
+    public DeletionJob deleteDocuments(String userId, List<ObjectId> documentIds) {
+        return start(userId, documentIds.stream().map(ObjectId::toHexString).distinct().toList());
+    }
+
+    public DeletionJob deleteAllDocuments(String userId) {
+        return start(userId, null);
+    }
+
+    private DeletionJob start(String userId, List<String> documentIds) {
+        Criteria criteria = Criteria.where("userId").is(userId);
+        if (documentIds != null) {
+            criteria = criteria.and("_id").in(documentIds.stream().map(ObjectId::new).toList());
+        }
+
+        DeletionJob job = new DeletionJob();
+        job.setUserId(userId);
+        job.setDocumentIds(documentIds);
+        job.setStatus(RenderJobStatus.PENDING);
+        job.setTotal(mongoTemplate.count(Query.query(criteria), PdfDocument.class));
+        job.setCreatedAt(Instant.now());
+
+        DeletionJob savedJob = deletionJobRepository.save(job);
+        taskExecutor.execute(() -> process(savedJob.getId()));
+        return savedJob;
+    }
+
+    public List<DeletionJobSummary> getUnfinishedOrFailedUserJobs(String userId) {
+        return deletionJobRepository.findSummariesByUserIdAndStatusIn(
+                        userId,
+                        EnumSet.of(RenderJobStatus.PENDING, RenderJobStatus.RUNNING, RenderJobStatus.FAILED)
+                )
+                .stream()
+                .map(DeletionJobSummary::of)
+                .toList();
+    }
+
+    public Optional<DeletionJobSummary> getUserJob(String userId, String jobId) {
+        return deletionJobRepository.findByIdAndUserId(jobId, userId).map(DeletionJobSummary::of);
+    }
+
+    public void dismissFailedJob(String userId, String jobId) {
+        deletionJobRepository.deleteByIdAndUserIdAndStatus(jobId, userId, RenderJobStatus.FAILED);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeUnfinishedJobs() {
+        mongoTemplate.updateMulti(
+                Query.query(Criteria.where("status").is(RenderJobStatus.RUNNING)),
+                Update.update("status", RenderJobStatus.PENDING),
+                DeletionJob.class
+        );
+
+        deletionJobRepository.findIdsByStatusIn(EnumSet.of(RenderJobStatus.PENDING))
+                .forEach(job -> taskExecutor.execute(() -> process(job.getId())));
+    }
+
+    private void process(String jobId) {
+        DeletionJob job = mongoTemplate.findAndModify(
+                Query.query(Criteria.where("_id").is(jobId).and("status").is(RenderJobStatus.PENDING)),
+                Update.update("status", RenderJobStatus.RUNNING),
+                FindAndModifyOptions.options().returnNew(true),
+                DeletionJob.class
+        );
+
+        if (job == null) {
+            return;
+        }
+
+        List<ObjectId> documentIds = job.getDocumentIds() != null
+                ? job.getDocumentIds().stream().map(ObjectId::new).toList()
+                : null;
+        try {
+            int deleted;
+            // The job id doubles as the claim on each batch, so a job resumed after a restart finishes the batch
+            // it was holding before claiming the next one.
+            while ((deleted = pdfService.deleteDocuments(job.getUserId(), jobId, documentIds, batchSize)) > 0) {
+                mongoTemplate.updateFirst(
+                        Query.query(Criteria.where("_id").is(jobId)),
+                        new Update().inc("deleted", deleted),
+                        DeletionJob.class
+                );
+                deletedDocuments.increment(deleted);
+            }
+
+            mongoTemplate.updateFirst(
+                    Query.query(Criteria.where("_id").is(jobId)),
+                    new Update()
+                            .set("status", RenderJobStatus.DONE)
+                            .set("finishedAt", Instant.now())
+                            .unset("documentIds"),
+                    DeletionJob.class
+            );
+        } catch (RuntimeException e) {
+            mongoTemplate.updateFirst(
+                    Query.query(Criteria.where("_id").is(jobId)),
+                    new Update()
+                            .set("status", RenderJobStatus.FAILED)
+                            .set("error", e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName())
+                            .set("finishedAt", Instant.now()),
+                    DeletionJob.class
+            );
+        }
+    }
+}
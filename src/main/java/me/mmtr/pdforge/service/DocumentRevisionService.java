@@ -0,0 +1,234 @@
+package me.mmtr.pdforge.service;
+
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import me.mmtr.pdforge.model.DocumentRevision;
+import me.mmtr.pdforge.model.TextPatch;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+@Service
+public class DocumentRevisionService {
+
+    private final MongoTemplate mongoTemplate;
+
+    private final int snapshotInterval;
+    private final int cachedPdfsPerDocument;
+
+    public DocumentRevisionService(MongoTemplate mongoTemplate,
+                                   @Value("${pdforge.revisions.snapshot-interval:20}") int snapshotInterval,
+                                   @Value("${pdforge.revisions.cached-pdfs:3}") int cachedPdfsPerDocument) {
+        this.mongoTemplate = mongoTemplate;
+        this.snapshotInterval = Math.max(1, snapshotInterval);
+        this.cachedPdfsPerDocument = Math.max(1, cachedPdfsPerDocument);
+    }
+
+    public void recordRevision(ObjectId documentId,
+                               String userId,
+                               long number,
+                               String filename,
+                               String delta,
+                               String html) {
+        RevisionContent previous = (number - 1) % snapshotInterval == 0
+                ? null
+                : findContent(Criteria.where("documentId").is(documentId.toHexString()), number - 1);
+
+        DocumentRevision revision = new DocumentRevision();
+        revision.setDocumentId(documentId.toHexString());
+        revision.setUserId(userId);
+        revision.setNumber(number);
+        revision.setFilename(filename);
+        revision.setSnapshot(previous == null);
+        revision.setDelta(diff(previous != null ? previous.delta() : "", delta));
+        revision.setHtml(diff(previous != null ? previous.html() : "", html));
+        revision.setAssets(assets(delta, html));
+        revision.setCreatedAt(Instant.now());
+
+        mongoTemplate.insert(revision);
+    }
+
+    private static List<String> assets(String delta, String html) {
+        // Patches cannot be searched for URLs, so the assets a revision needs to re-render are listed on it.
+        Set<String> assets = AssetService.referencedHashes(delta);
+        assets.addAll(AssetService.referencedHashes(html));
+        return assets.isEmpty() ? null : List.copyOf(assets);
+    }
+
+    public List<DocumentRevision> getRevisions(String userId, ObjectId documentId) {
+        Query query = Query.query(ownedBy(userId, documentId))
+                .with(Sort.by(Sort.Direction.DESC, "number"));
+        query.fields().exclude("delta", "html", "assets");
+
+        return mongoTemplate.find(query, DocumentRevision.class);
+    }
+
+    public DocumentRevision getRevision(String userId, ObjectId documentId, long number) {
+        Query query = Query.query(ownedBy(userId, documentId).and("number").is(number));
+        query.fields().exclude("delta", "html", "assets");
+
+        return mongoTemplate.findOne(query, DocumentRevision.class);
+    }
+
+    public RevisionContent getRevisionContent(String userId, ObjectId documentId, long number) {
+        return findContent(ownedBy(userId, documentId), number);
+    }
+
+    public boolean attachFile(ObjectId documentId, long number, ObjectId fileId) {
+        return mongoTemplate.updateFirst(
+                Query.query(Criteria.where("documentId").is(documentId.toHexString())
+                        .and("number").is(number)
+                        .and("fileId").is(null)),
+                new Update()
+                        .set("fileId", fileId)
+                        .set("fileCachedAt", Instant.now()),
+                DocumentRevision.class
+        ).getModifiedCount() == 1;
+    }
+
+    public List<ObjectId> detachExcessFiles(ObjectId documentId) {
+        Query query = Query.query(Criteria.where("documentId").is(documentId.toHexString()).and("fileId").ne(null))
+                .with(Sort.by(Sort.Direction.DESC, "fileCachedAt"))
+                .skip(cachedPdfsPerDocument);
+        query.fields().include("fileId");
+
+        List<ObjectId> detachedFileIds = new ArrayList<>();
+        for (DocumentRevision revision : mongoTemplate.find(query, DocumentRevision.class)) {
+            DocumentRevision detached = mongoTemplate.findAndModify(
+                    Query.query(Criteria.where("_id").is(revision.getId()).and("fileId").is(revision.getFileId())),
+                    new Update().unset("fileId").unset("fileCachedAt"),
+                    DocumentRevision.class
+            );
+
+            if (detached != null) {
+                detachedFileIds.add(detached.getFileId());
+            }
+        }
+        return detachedFileIds;
+    }
+
+    public List<ObjectId> deleteRevisions(ObjectId documentId) {
+        Query query = Query.query(Criteria.where("documentId").is(documentId.toHexString()));
+        query.fields().include("fileId");
+
+        return mongoTemplate.findAllAndRemove(query, DocumentRevision.class)
+                .stream()
+                .map(DocumentRevision::getFileId)
+                .filter(Objects::nonNull)
+                .toList();
+    }
+
+    public List<ObjectId> getRevisionFileIds(Collection<ObjectId> documentIds) {
+        List<String> hexIds = documentIds.stream().map(ObjectId::toHexString).toList();
+
+        Query query = Query.query(Criteria.where("documentId").in(hexIds).and("fileId").ne(null));
+        query.fields().include("fileId");
+        return mongoTemplate.find(query, DocumentRevision.class)
+                .stream()
+                .map(DocumentRevision::getFileId)
+                .toList();
+    }
+
+    public List<ObjectId> deleteRevisions(Collection<ObjectId> documentIds) {
+        List<ObjectId> fileIds = getRevisionFileIds(documentIds);
+
+        List<String> hexIds = documentIds.stream().map(ObjectId::toHexString).toList();
+        mongoTemplate.remove(Query.query(Criteria.where("documentId").in(hexIds)), DocumentRevision.class);
+        return fileIds;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void createIndexes() {
+        mongoTemplate.getCollection(mongoTemplate.getCollectionName(DocumentRevision.class))
+                .createIndex(
+                        Indexes.compoundIndex(Indexes.ascending("documentId"), Indexes.descending("number")),
+                        new IndexOptions().unique(true)
+                );
+    }
+
+    private RevisionContent findContent(Criteria documentCriteria, long number) {
+        Query snapshotQuery = Query.query(Criteria.where("snapshot").is(true).and("number").lte(number)
+                        .andOperator(documentCriteria))
+                .with(Sort.by(Sort.Direction.DESC, "number"));
+        snapshotQuery.fields().include("number");
+
+        DocumentRevision snapshot = mongoTemplate.findOne(snapshotQuery, DocumentRevision.class);
+        if (snapshot == null) {
+            return null;
+        }
+
+        List<DocumentRevision> chain = mongoTemplate.find(
+                Query.query(Criteria.where("number").gte(snapshot.getNumber()).lte(number)
+                                .andOperator(documentCriteria))
+                        .with(Sort.by(Sort.Direction.ASC, "number")),
+                DocumentRevision.class
+        );
+
+        if (chain.size() != number - snapshot.getNumber() + 1) {
+            return null;
+        }
+
+        String delta = "";
+        String html = "";
+        for (DocumentRevision revision : chain) {
+            delta = apply(delta, revision.getDelta());
+            html = apply(html, revision.getHtml());
+        }
+        return new RevisionContent(delta, html);
+    }
+
+    private TextPatch diff(String base, String target) {
+        int maxLength = Math.min(base.length(), target.length());
+
+        int prefixLength = 0;
+        while (prefixLength < maxLength && base.charAt(prefixLength) == target.charAt(prefixLength)) {
+            prefixLength++;
+        }
+        // The replacement is stored as UTF-8, so the cut must not fall inside a surrogate pair.
+        if (prefixLength > 0 && Character.isHighSurrogate(target.charAt(prefixLength - 1))) {
+            prefixLength--;
+        }
+
+        int suffixLength = 0;
+        while (suffixLength < maxLength - prefixLength
+                && base.charAt(base.length() - 1 - suffixLength) == target.charAt(target.length() - 1 - suffixLength)) {
+            suffixLength++;
+        }
+        if (suffixLength > 0 && Character.isLowSurrogate(target.charAt(target.length() - suffixLength))) {
+            suffixLength--;
+        }
+
+        byte[] replacement = target.substring(prefixLength, target.length() - suffixLength)
+                .getBytes(StandardCharsets.UTF_8);
+
+        return new TextPatch(prefixLength, suffixLength, replacement.length, DeflateCodec.compress(replacement));
+    }
+
+    private String apply(String base, TextPatch patch) {
+        return base.substring(0, patch.getPrefixLength())
+                + DeflateCodec.decompress(patch.getReplacement(), patch.getOriginalLength())
+                + base.substring(base.length() - patch.getSuffixLength());
+    }
+
+    private Criteria ownedBy(String userId, ObjectId documentId) {
+        return Criteria.where("documentId").is(documentId.toHexString()).and("userId").is(userId);
+    }
+
+    public record RevisionContent(String delta, String html) {
+    }
+}
@@ -0,0 +1,216 @@
+package me.mmtr.pdforge.service;
+
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Variable;
+import me.mmtr.pdforge.model.DocumentText;
+import me.mmtr.pdforge.model.PdfDocument;
+import me.mmtr.pdforge.model.SearchHit;
+import org.bson.types.ObjectId;
+import org.jsoup.Jsoup;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.TextCriteria;
+import org.springframework.data.mongodb.core.query.TextQuery;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+@Service
+public class DocumentSearchService {
+
+    private static final Pattern QUERY_TERM = Pattern.compile("(-?)\"([^\"]*)\"|(\\S+)");
+    private static final int SNIPPET_CONTEXT = 60;
+    private static final int SNIPPET_LENGTH = 200;
+
+    private final MongoTemplate mongoTemplate;
+    private final DocumentRevisionService documentRevisionService;
+
+    private final int maxTextLength;
+    private final int maxResults;
+
+    public DocumentSearchService(MongoTemplate mongoTemplate,
+                                 DocumentRevisionService documentRevisionService,
+                                 @Value("${pdforge.search.max-text-length:200000}") int maxTextLength,
+                                 @Value("${pdforge.search.max-results:20}") int maxResults) {
+        this.mongoTemplate = mongoTemplate;
+        this.documentRevisionService = documentRevisionService;
+        this.maxTextLength = maxTextLength;
+        this.maxResults = maxResults;
+    }
+
+    public void saveText(ObjectId documentId, String userId, String filename, String text) {
+        mongoTemplate.save(documentText(documentId, userId, filename, text));
+    }
+
+    private DocumentText documentText(ObjectId documentId, String userId, String filename, String text) {
+        int length = Math.min(text.length(), maxTextLength);
+        if (length > 0 && length < text.length() && Character.isHighSurrogate(text.charAt(length - 1))) {
+            length--;
+        }
+
+        return new DocumentText(documentId.toHexString(), userId, filename, text.substring(0, length), null);
+    }
+
+    public void saveMergedText(ObjectId documentId, String userId, String filename, List<ObjectId> sourceIds) {
+        Map<String, String> textsById = mongoTemplate.find(
+                        Query.query(Criteria.where("_id").in(sourceIds).and("userId").is(userId)),
+                        DocumentText.class)
+                .stream()
+                .collect(Collectors.toMap(DocumentText::getId, DocumentText::getText));
+
+        saveText(documentId, userId, filename, sourceIds.stream()
+                .map(sourceId -> textsById.get(sourceId.toHexString()))
+                .filter(Objects::nonNull)
+                .collect(Collectors.joining("\n\n")));
+    }
+
+    public void deleteText(ObjectId documentId) {
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is(documentId)), DocumentText.class);
+    }
+
+    public void deleteTexts(Collection<ObjectId> documentIds) {
+        mongoTemplate.remove(Query.query(Criteria.where("_id").in(documentIds)), DocumentText.class);
+    }
+
+    public List<SearchHit> search(String userId, String query) {
+        if (query == null || query.isBlank()) {
+            return List.of();
+        }
+
+        // The text index is prefixed by userId, so only this user's index entries are scanned.
+        Query textQuery = TextQuery.queryText(TextCriteria.forDefaultLanguage().matching(query))
+                .sortByScore()
+                .addCriteria(Criteria.where("userId").is(userId))
+                .limit(maxResults);
+
+        Pattern terms = termPattern(query);
+        return mongoTemplate.find(textQuery, DocumentText.class)
+                .stream()
+                .map(text -> new SearchHit(
+                        text.getId(),
+                        text.getFilename(),
+                        snippet(text.getText(), terms),
+                        text.getScore() != null ? text.getScore() : 0
+                ))
+                .toList();
+    }
+
+    private Pattern termPattern(String query) {
+        List<String> terms = new ArrayList<>();
+        Matcher matcher = QUERY_TERM.matcher(query);
+        while (matcher.find()) {
+            if (matcher.group(2) != null) {
+                if (matcher.group(1).isEmpty() && !matcher.group(2).isBlank()) {
+                    terms.add(matcher.group(2).strip());
+                }
+            } else if (!matcher.group(3).startsWith("-")) {
+                terms.add(matcher.group(3));
+            }
+        }
+
+        return terms.isEmpty()
+                ? null
+                : Pattern.compile(
+                terms.stream().map(Pattern::quote).collect(Collectors.joining("|")),
+                Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE
+        );
+    }
+
+    private String snippet(String text, Pattern terms) {
+        if (text == null || text.isEmpty()) {
+            return "";
+        }
+
+        int start = 0;
+        Matcher matcher = terms != null ? terms.matcher(text) : null;
+        if (matcher != null && matcher.find() && matcher.start() > SNIPPET_CONTEXT) {
+            start = matcher.start() - SNIPPET_CONTEXT;
+            int wordStart = text.indexOf(' ', start);
+            if (wordStart >= 0 && wordStart < matcher.start()) {
+                start = wordStart + 1;
+            }
+        }
+
+        int end = Math.min(text.length(), start + SNIPPET_LENGTH);
+        if (end < text.length()) {
+            int wordEnd = text.lastIndexOf(' ', end);
+            if (wordEnd > start + SNIPPET_LENGTH / 2) {
+                end = wordEnd;
+            }
+        }
+
+        return (start > 0 ? "…" : "") + text.substring(start, end).strip() + (end < text.length() ? "…" : "");
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void createIndexes() {
+        mongoTemplate.getCollection(mongoTemplate.getCollectionName(DocumentText.class))
+                .createIndex(
+                        Indexes.compoundIndex(
+                                Indexes.ascending("userId"),
+                                Indexes.text("filename"),
+                                Indexes.text("text")
+                        ),
+                        new IndexOptions()
+                                .weights(new org.bson.Document("filename", 5).append("text", 1))
+                                .defaultLanguage("none")
+                );
+    }
+
+    public void indexUnsearchableDocuments() {
+        // Documents saved before search existed are indexed from their current revision.
+        String textCollection = mongoTemplate.getCollectionName(DocumentText.class);
+        List<org.bson.Document> documents = mongoTemplate.getCollection(mongoTemplate.getCollectionName(PdfDocument.class))
+                .aggregate(List.of(
+                        Aggregates.match(Filters.gt("revision", 0)),
+                        Aggregates.lookup(
+                                textCollection,
+                                List.of(new Variable<>("documentId", "$_id")),
+                                List.of(
+                                        Aggregates.match(Filters.expr(
+                                                new org.bson.Document("$eq", List.of("$_id", "$$documentId")))),
+                                        Aggregates.project(Projections.include("_id"))
+                                ),
+                                "texts"
+                        ),
+                        Aggregates.match(Filters.size("texts", 0)),
+                        Aggregates.project(Projections.include("userId", "filename", "revision"))
+                ))
+                .into(new ArrayList<>());
+
+        for (org.bson.Document document : documents) {
+            ObjectId documentId = document.getObjectId("_id");
+            String userId = document.getString("userId");
+            DocumentRevisionService.RevisionContent content = documentRevisionService.getRevisionContent(
+                    userId, documentId, document.get("revision", Number.class).longValue());
+
+            if (content == null) {
+                continue;
+            }
+
+            try {
+                // Inserted rather than saved, so a save that indexed the document meanwhile is not overwritten.
+                mongoTemplate.insert(documentText(
+                        documentId, userId, document.getString("filename"), Jsoup.parse(content.html()).text()));
+            } catch (DuplicateKeyException e) {
+                // Already indexed by a concurrent save.
+            }
+        }
+    }
+}
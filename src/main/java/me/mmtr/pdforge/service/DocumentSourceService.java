@@ -0,0 +1,50 @@
+package me.mmtr.pdforge.service;
+
+import me.mmtr.pdforge.model.DocumentSource;
+import me.mmtr.pdforge.repository.DocumentSourceRepository;
+import org.bson.types.ObjectId;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+@Service
+public class DocumentSourceService {
+
+    private final DocumentSourceRepository documentSourceRepository;
+
+    public DocumentSourceService(DocumentSourceRepository documentSourceRepository) {
+        this.documentSourceRepository = documentSourceRepository;
+    }
+
+    public void saveDelta(ObjectId documentId, String userId, String delta) {
+        byte[] deltaBytes = delta.getBytes(StandardCharsets.UTF_8);
+        Set<String> assets = AssetService.referencedHashes(delta);
+
+        // The delta is compressed, so the assets it uses are kept readable next to it.
+        documentSourceRepository.save(new DocumentSource(
+                documentId.toHexString(),
+                userId,
+                DeflateCodec.ENCODING,
+                deltaBytes.length,
+                DeflateCodec.compress(deltaBytes),
+                assets.isEmpty() ? null : List.copyOf(assets)
+        ));
+    }
+
+    public String getDelta(String userId, ObjectId documentId) {
+        return documentSourceRepository.findByIdAndUserId(documentId.toHexString(), userId)
+                .map(source -> DeflateCodec.decompress(source.getDelta(), source.getOriginalLength()))
+                .orElse(null);
+    }
+
+    public void deleteDelta(ObjectId documentId) {
+        documentSourceRepository.deleteById(documentId.toHexString());
+    }
+
+    public void deleteDeltas(Collection<ObjectId> documentIds) {
+        documentSourceRepository.deleteAllById(documentIds.stream().map(ObjectId::toHexString).toList());
+    }
+}
@@ -0,0 +1,57 @@
+package me.mmtr.pdforge.service;
+
+import com.mongodb.client.gridfs.model.GridFSFile;
+import org.springframework.core.io.AbstractResource;
+
+import java.io.InputStream;
+import java.util.function.Supplier;
+
+public class GridFSFileResource extends AbstractResource {
+
+    private final GridFSFile file;
+    private final Supplier<InputStream> inputStreamSupplier;
+
+    public GridFSFileResource(GridFSFile file, Supplier<InputStream> inputStreamSupplier) {
+        this.file = file;
+        this.inputStreamSupplier = inputStreamSupplier;
+    }
+
+    public GridFSFile getFile() {
+        return file;
+    }
+
+    public String getETag() {
+        return "\"" + file.getId().asObjectId().getValue().toHexString()
+                + "-" + file.getUploadDate().getTime() + "\"";
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return inputStreamSupplier.get();
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public long contentLength() {
+        return file.getLength();
+    }
+
+    @Override
+    public long lastModified() {
+        return file.getUploadDate().getTime();
+    }
+
+    @Override
+    public String getFilename() {
+        return file.getFilename();
+    }
+
+    @Override
+    public String getDescription() {
+        return "GridFS file [" + file.getId() + "]";
+    }
+}
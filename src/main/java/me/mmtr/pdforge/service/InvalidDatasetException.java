@@ -0,0 +1,8 @@
+package me.mmtr.pdforge.service;
+
+public class InvalidDatasetException extends RuntimeException {
+
+    public InvalidDatasetException(String message) {
+        super(message);
+    }
+}
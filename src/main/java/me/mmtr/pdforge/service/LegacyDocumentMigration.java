@@ -0,0 +1,105 @@
+package me.mmtr.pdforge.service;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import me.mmtr.pdforge.model.PdfDocument;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.Date;
+
+@Component
+public class LegacyDocumentMigration {
+
+    private static final String FILES_COLLECTION = "fs.files";
+    private static final String MIGRATIONS_COLLECTION = "migrations";
+
+    private final MongoTemplate mongoTemplate;
+    private final DocumentSourceService documentSourceService;
+    private final DocumentSearchService documentSearchService;
+
+    public LegacyDocumentMigration(MongoTemplate mongoTemplate,
+                                   DocumentSourceService documentSourceService,
+                                   DocumentSearchService documentSearchService) {
+        this.mongoTemplate = mongoTemplate;
+        this.documentSourceService = documentSourceService;
+        this.documentSearchService = documentSearchService;
+    }
+
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrate() {
+        runOnce("legacy-document-links", this::linkLegacyFiles);
+        runOnce("search-texts", documentSearchService::indexUnsearchableDocuments);
+    }
+
+    private void runOnce(String migrationId, Runnable migration) {
+        MongoCollection<Document> migrations = mongoTemplate.getCollection(MIGRATIONS_COLLECTION);
+        if (migrations.find(Filters.eq("_id", migrationId)).first() != null) {
+            return;
+        }
+
+        migration.run();
+
+        migrations.updateOne(Filters.eq("_id", migrationId),
+                Updates.setOnInsert("completedAt", new Date()),
+                new UpdateOptions().upsert(true));
+    }
+
+    public void linkLegacyFiles() {
+        MongoCollection<Document> files = mongoTemplate.getCollection(FILES_COLLECTION);
+
+        for (Document file : files.find(Filters.and(
+                Filters.exists("metadata.userId"),
+                Filters.ne("metadata.documentLinked", true)
+        ))) {
+            ObjectId fileId = file.getObjectId("_id");
+            Document metadata = file.get("metadata", Document.class);
+            String userId = metadata.getString("userId");
+
+            boolean documentCreated = false;
+            if (!mongoTemplate.exists(Query.query(Criteria.where("_id").is(fileId)), PdfDocument.class)) {
+                Instant uploadDate = file.getDate("uploadDate").toInstant();
+                mongoTemplate.insert(new PdfDocument(
+                        fileId.toHexString(),
+                        userId,
+                        file.getString("filename"),
+                        fileId,
+                        uploadDate,
+                        uploadDate,
+                        0
+                ));
+                documentCreated = true;
+            }
+
+            String legacyDelta = metadata.getString("delta");
+            if (legacyDelta != null) {
+                documentSourceService.saveDelta(fileId, userId, legacyDelta);
+            }
+
+            // A file that is already counted keeps its count; only the document created here adds a reference.
+            if (documentCreated) {
+                files.updateOne(Filters.eq("_id", fileId), Updates.inc("metadata.refCount", 1));
+            } else {
+                files.updateOne(Filters.and(Filters.eq("_id", fileId), Filters.exists("metadata.refCount", false)),
+                        Updates.set("metadata.refCount", 1));
+            }
+
+            files.updateOne(Filters.eq("_id", fileId), Updates.combine(
+                    Updates.set("metadata.documentLinked", true),
+                    Updates.unset("metadata.delta")
+            ));
+        }
+    }
+}
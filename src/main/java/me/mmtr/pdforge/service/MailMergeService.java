@@ -0,0 +1,667 @@
+package me.mmtr.pdforge.service;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.gridfs.GridFSUploadStream;
+import com.mongodb.client.model.Filters;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import me.mmtr.pdforge.model.MergeFormat;
+import me.mmtr.pdforge.model.MergeJob;
+import me.mmtr.pdforge.model.MergeJobSummary;
+import me.mmtr.pdforge.model.MergeRowError;
+import me.mmtr.pdforge.model.PdfDocument;
+import me.mmtr.pdforge.model.RenderJobStatus;
+import me.mmtr.pdforge.repository.MergeJobRepository;
+import org.bson.BsonObjectId;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+@Service
+public class MailMergeService {
+
+    public static final String ROW_PLACEHOLDER = "row";
+
+    private static final String DATASET_BUCKET = "merge_datasets";
+    private static final int MAX_REPORTED_ERRORS = 100;
+    private static final int MAX_FILENAME_LENGTH = 200;
+    private static final String ERRORS_ENTRY = "errors.csv";
+    private static final int MAX_RENDER_ATTEMPTS = 8;
+    private static final Duration MAX_RETRY_DELAY = Duration.ofSeconds(30);
+
+    private final MergeJobRepository mergeJobRepository;
+    private final MongoTemplate mongoTemplate;
+    private final PdfService pdfService;
+    private final DocumentRevisionService documentRevisionService;
+    private final RenderJobService renderJobService;
+    private final ThreadPoolExecutor jobExecutor;
+    private final ObjectMapper objectMapper;
+
+    private final Counter mergedRows;
+    private final Counter failedRows;
+
+    private final long maxDatasetBytes;
+    private final long maxRows;
+    private final long maxZipRows;
+    private final int maxUnfinishedMergesPerUser;
+
+    private final int workers;
+    private final Semaphore renderSlots;
+    private final Map<String, Integer> runningZipMerges = new HashMap<>();
+
+    public MailMergeService(MergeJobRepository mergeJobRepository,
+                            MongoTemplate mongoTemplate,
+                            PdfService pdfService,
+                            DocumentRevisionService documentRevisionService,
+                            PdfRendererPool rendererPool,
+                            RenderJobService renderJobService,
+                            ObjectMapper objectMapper,
+                            MeterRegistry meterRegistry,
+                            @Value("${pdforge.merge.max-dataset-size:50MB}") DataSize maxDatasetSize,
+                            @Value("${pdforge.merge.max-rows:10000}") long maxRows,
+                            @Value("${pdforge.merge.max-zip-rows:200}") long maxZipRows,
+                            @Value("${pdforge.merge.max-unfinished-per-user:1}") int maxUnfinishedMergesPerUser,
+                            @Value("${pdforge.merge.workers:0}") int workers,
+                            @Value("${pdforge.merge.job-threads:2}") int jobThreads,
+                            @Value("${pdforge.merge.queue-capacity:50}") int queueCapacity) {
+        this.mergeJobRepository = mergeJobRepository;
+        this.mongoTemplate = mongoTemplate;
+        this.pdfService = pdfService;
+        this.documentRevisionService = documentRevisionService;
+        this.renderJobService = renderJobService;
+        this.objectMapper = objectMapper;
+        this.maxDatasetBytes = maxDatasetSize.toBytes();
+        this.maxRows = maxRows;
+        this.maxZipRows = maxZipRows;
+        this.maxUnfinishedMergesPerUser = maxUnfinishedMergesPerUser;
+
+        // All merges together render on fewer renderers than the pool has, so interactive renders always find one.
+        int poolSize = rendererPool.getSize();
+        this.workers = Math.max(1, Math.min(workers > 0 ? workers : poolSize / 2, poolSize - 1));
+        this.renderSlots = new Semaphore(this.workers, true);
+
+        // Merges run for minutes, so they get their own threads instead of holding the shared task executor.
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.jobExecutor = new ThreadPoolExecutor(
+                jobThreads,
+                jobThreads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "merge-job-" + threadCounter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+        this.mergedRows = Counter.builder("pdforge.merge.rows")
+                .description("Dataset rows processed by mail merges")
+                .tag("result", "merged")
+                .register(meterRegistry);
+        this.failedRows = Counter.builder("pdforge.merge.rows")
+                .description("Dataset rows processed by mail merges")
+                .tag("result", "failed")
+                .register(meterRegistry);
+    }
+
+    public MergeJob startJob(String userId,
+                             ObjectId templateId,
+                             String filename,
+                             MergeFormat format,
+                             InputStream dataset) throws IOException {
+        Template template = loadTemplate(userId, templateId, null, filename);
+        admit(userId);
+
+        // Saved before the upload starts, so a dataset left behind by a crash is always owned by a job that a
+        // restart cleans up.
+        MergeJob job = new MergeJob();
+        job.setUserId(userId);
+        job.setTemplateDocumentId(templateId.toHexString());
+        job.setTemplateRevision(template.revision());
+        job.setFilename(template.filenamePattern());
+        job.setFormat(format);
+        job.setDatasetFileId(new ObjectId());
+        job.setStatus(RenderJobStatus.UPLOADING);
+        job.setErrors(List.of());
+        job.setCreatedAt(Instant.now());
+        MergeJob savedJob = mergeJobRepository.save(job);
+
+        ObjectId datasetFileId = savedJob.getDatasetFileId();
+        try {
+            // The dataset outlives the request, so a job can be resumed from it after a restart.
+            GridFSBucket bucket = datasetBucket();
+            GridFSUploadStream uploadStream =
+                    bucket.openUploadStream(new BsonObjectId(datasetFileId), templateId.toHexString());
+            try {
+                copyDataset(dataset, uploadStream);
+                uploadStream.close();
+            } catch (IOException | RuntimeException e) {
+                uploadStream.abort();
+                throw e;
+            }
+
+            savedJob.setTotal(validate(() -> bucket.openDownloadStream(datasetFileId), format, template, maxRows));
+        } catch (IOException | RuntimeException e) {
+            discard(savedJob.getId(), datasetFileId);
+            throw e;
+        }
+
+        mongoTemplate.updateFirst(
+                Query.query(Criteria.where("_id").is(savedJob.getId())),
+                new Update().set("status", RenderJobStatus.PENDING).set("total", savedJob.getTotal()),
+                MergeJob.class
+        );
+        savedJob.setStatus(RenderJobStatus.PENDING);
+        submit(savedJob.getId(), savedJob.getDatasetFileId());
+        return savedJob;
+    }
+
+    public ZipMerge prepareZip(String userId,
+                               ObjectId templateId,
+                               String filename,
+                               MergeFormat format,
+                               InputStream dataset) throws IOException {
+        Template template = loadTemplate(userId, templateId, null, filename);
+        admit(userId);
+
+        synchronized (runningZipMerges) {
+            runningZipMerges.merge(userId, 1, Integer::sum);
+        }
+        // The archive is written after the request body has been read, so the dataset is spooled to disk.
+        Path datasetFile = null;
+        try {
+            datasetFile = Files.createTempFile("pdforge-merge-", ".dataset");
+            try (OutputStream fileStream = Files.newOutputStream(datasetFile)) {
+                copyDataset(dataset, fileStream);
+            }
+
+            Path spooledDataset = datasetFile;
+            long rows = validate(() -> Files.newInputStream(spooledDataset), format, template, maxZipRows);
+            return new ZipMerge(userId, template, format, datasetFile, rows);
+        } catch (IOException | RuntimeException e) {
+            finishZipMerge(userId);
+            if (datasetFile != null) {
+                Files.deleteIfExists(datasetFile);
+            }
+            throw e;
+        }
+    }
+
+    public void writeZip(ZipMerge merge, OutputStream outputStream) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(outputStream);
+        Set<String> entryNames = new HashSet<>();
+        ReentrantLock zipLock = new ReentrantLock();
+        Queue<MergeRowError> errors = new ConcurrentLinkedQueue<>();
+        try {
+            merge(() -> Files.newInputStream(merge.dataset), merge.format, merge.template,
+                    (row, html, delta, filename) -> {
+                        ByteArrayOutputStream pdf = new ByteArrayOutputStream();
+                        pdfService.renderPdf(html, pdf);
+
+                        // Entries are written as rows finish, so the archive is in completion order, not row order.
+                        // Workers are virtual threads; a lock, unlike a monitor, does not pin them while they wait.
+                        zipLock.lock();
+                        try {
+                            String entryName = filename + ".pdf";
+                            if (!entryNames.add(entryName)) {
+                                entryName = filename + "-" + row + ".pdf";
+                                entryNames.add(entryName);
+                            }
+                            zip.putNextEntry(new ZipEntry(entryName));
+                            pdf.writeTo(zip);
+                            zip.closeEntry();
+                        } finally {
+                            zipLock.unlock();
+                        }
+                    },
+                    errors::add);
+
+            if (!errors.isEmpty()) {
+                zip.putNextEntry(new ZipEntry(ERRORS_ENTRY));
+                StringBuilder report = new StringBuilder("row,error\r\n");
+                errors.stream()
+                        .sorted(Comparator.comparingLong(MergeRowError::getRow))
+                        .forEach(error -> report.append(error.getRow()).append(",\"")
+                                .append(error.getMessage().replace("\"", "\"\"")).append("\"\r\n"));
+                zip.write(report.toString().getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+            zip.finish();
+        } finally {
+            finishZipMerge(merge.userId);
+            Files.deleteIfExists(merge.dataset);
+        }
+    }
+
+    private void finishZipMerge(String userId) {
+        synchronized (runningZipMerges) {
+            runningZipMerges.computeIfPresent(userId, (user, running) -> running > 1 ? running - 1 : null);
+        }
+    }
+
+    private void admit(String userId) {
+        // Merges render through the same pool as single documents, so they are held to the same admission checks.
+        renderJobService.admit(userId);
+
+        long unfinishedMerges = mongoTemplate.count(
+                Query.query(Criteria.where("userId").is(userId).and("status")
+                        .in(RenderJobStatus.UPLOADING, RenderJobStatus.PENDING, RenderJobStatus.RUNNING)),
+                MergeJob.class
+        );
+        synchronized (runningZipMerges) {
+            unfinishedMerges += runningZipMerges.getOrDefault(userId, 0);
+        }
+        if (unfinishedMerges >= maxUnfinishedMergesPerUser) {
+            throw new RenderRejectedException(
+                    RenderRejectedException.Reason.TOO_MANY_USER_JOBS,
+                    "You already have " + unfinishedMerges + " mail merges running, please wait for them to finish",
+                    Duration.ofSeconds(30)
+            );
+        }
+    }
+
+    public Optional<MergeJobSummary> getUserJob(String userId, String jobId) {
+        return mergeJobRepository.findByIdAndUserId(jobId, userId).map(MergeJobSummary::of);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeUnfinishedJobs() {
+        // Rows are merged in parallel, so there is no exact point to resume a running job from without
+        // creating some documents twice; such jobs are failed with the progress they made instead.
+        for (MergeJob job : mergeJobRepository.findIdsByStatusIn(EnumSet.of(RenderJobStatus.RUNNING))) {
+            fail(job.getId(), job.getDatasetFileId(), "Interrupted by a restart");
+        }
+        // Their request failed with the upload, so nobody knows about these jobs.
+        for (MergeJob job : mergeJobRepository.findIdsByStatusIn(EnumSet.of(RenderJobStatus.UPLOADING))) {
+            discard(job.getId(), job.getDatasetFileId());
+        }
+
+        mergeJobRepository.findIdsByStatusIn(EnumSet.of(RenderJobStatus.PENDING))
+                .forEach(job -> submit(job.getId(), job.getDatasetFileId()));
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        jobExecutor.shutdown();
+        jobExecutor.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    private void submit(String jobId, ObjectId datasetFileId) {
+        try {
+            jobExecutor.execute(() -> process(jobId));
+        } catch (RejectedExecutionException e) {
+            fail(jobId, datasetFileId, "Merge queue is full, please try again later");
+        }
+    }
+
+    private void process(String jobId) {
+        MergeJob job = mongoTemplate.findAndModify(
+                Query.query(Criteria.where("_id").is(jobId).and("status").is(RenderJobStatus.PENDING)),
+                Update.update("status", RenderJobStatus.RUNNING),
+                FindAndModifyOptions.options().returnNew(true),
+                MergeJob.class
+        );
+
+        if (job == null) {
+            return;
+        }
+
+        Query jobQuery = Query.query(Criteria.where("_id").is(jobId));
+        try {
+            Template template = loadTemplate(
+                    job.getUserId(),
+                    new ObjectId(job.getTemplateDocumentId()),
+                    job.getTemplateRevision(),
+                    job.getFilename()
+            );
+
+            GridFSBucket bucket = datasetBucket();
+            merge(() -> bucket.openDownloadStream(job.getDatasetFileId()), job.getFormat(), template,
+                    (row, html, delta, filename) -> {
+                        pdfService.saveAsPdf(job.getUserId(), filename, html, delta);
+                        mongoTemplate.updateFirst(jobQuery, new Update().inc("processed", 1), MergeJob.class);
+                    },
+                    error -> mongoTemplate.updateFirst(
+                            jobQuery,
+                            new Update().inc("processed", 1).inc("failed", 1)
+                                    .push("errors").slice(MAX_REPORTED_ERRORS).each(error),
+                            MergeJob.class
+                    ));
+
+            mongoTemplate.updateFirst(
+                    jobQuery,
+                    new Update()
+                            .set("status", RenderJobStatus.DONE)
+                            .set("finishedAt", Instant.now()),
+                    MergeJob.class
+            );
+            deleteDataset(job.getDatasetFileId());
+        } catch (IOException | RuntimeException e) {
+            String error = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            fail(jobId, job.getDatasetFileId(), error);
+        }
+    }
+
+    private void fail(String jobId, ObjectId datasetFileId, String error) {
+        mongoTemplate.updateFirst(
+                Query.query(Criteria.where("_id").is(jobId)),
+                new Update()
+                        .set("status", RenderJobStatus.FAILED)
+                        .set("error", error)
+                        .set("finishedAt", Instant.now()),
+                MergeJob.class
+        );
+
+        deleteDataset(datasetFileId);
+    }
+
+    private void discard(String jobId, ObjectId datasetFileId) {
+        deleteDataset(datasetFileId);
+        mergeJobRepository.deleteById(jobId);
+    }
+
+    private void deleteDataset(ObjectId datasetFileId) {
+        // Deleted directly rather than through the bucket, which fails when the upload never completed.
+        if (datasetFileId != null) {
+            mongoTemplate.getCollection(DATASET_BUCKET + ".files").deleteOne(Filters.eq("_id", datasetFileId));
+            mongoTemplate.getCollection(DATASET_BUCKET + ".chunks").deleteMany(Filters.eq("files_id", datasetFileId));
+        }
+    }
+
+    private Template loadTemplate(String userId, ObjectId templateId, Long revision, String filename)
+            throws FileNotFoundException {
+        PdfDocument document = pdfService.getUserDocument(userId, templateId);
+        if (document == null) {
+            throw new FileNotFoundException("Template document not found");
+        }
+
+        long number = revision != null ? revision : document.getRevision();
+        DocumentRevisionService.RevisionContent content =
+                documentRevisionService.getRevisionContent(userId, templateId, number);
+        if (content == null) {
+            throw new FileNotFoundException("Template revision not found");
+        }
+
+        String filenamePattern = filename != null && !filename.isBlank()
+                ? filename
+                : document.getFilename().replaceFirst("(?i)\\.pdf$", "") + "-{{" + ROW_PLACEHOLDER + "}}";
+
+        // Parsed once; every row only fills the placeholders of the already serialized template.
+        PdfService.PreparedHtml html = pdfService.prepare(content.html());
+        return new Template(
+                number,
+                filenamePattern,
+                MergeTemplate.compile(html.html()),
+                MergeTemplate.compile(html.xhtml()),
+                MergeTemplate.compile(html.text()),
+                MergeTemplate.compile(content.delta()),
+                MergeTemplate.compile(filenamePattern)
+        );
+    }
+
+    private void copyDataset(InputStream dataset, OutputStream outputStream) throws IOException {
+        byte[] buffer = new byte[8192];
+        long copied = 0;
+        int read;
+        while ((read = dataset.read(buffer)) != -1) {
+            copied += read;
+            if (copied > maxDatasetBytes) {
+                throw new InvalidDatasetException("The dataset is larger than " + maxDatasetBytes + " bytes");
+            }
+            outputStream.write(buffer, 0, read);
+        }
+    }
+
+    private long validate(DatasetSource source, MergeFormat format, Template template, long rowLimit)
+            throws IOException {
+        try (MergeDataset dataset = MergeDataset.open(source.open(), format, objectMapper)) {
+            if (dataset.columns() != null) {
+                for (String field : template.fields()) {
+                    if (!field.equals(ROW_PLACEHOLDER) && !dataset.columns().contains(field)) {
+                        throw new InvalidDatasetException("The dataset has no column for placeholder '" + field + "'");
+                    }
+                }
+            }
+
+            long rows = 0;
+            while (dataset.next() != null) {
+                if (++rows > rowLimit) {
+                    throw new InvalidDatasetException(rowLimit < maxRows
+                            ? "The dataset has more than " + rowLimit + " rows, merge it without output=zip instead"
+                            : "The dataset has more than " + rowLimit + " rows");
+                }
+            }
+            if (rows == 0) {
+                throw new InvalidDatasetException("The dataset has no rows");
+            }
+            return rows;
+        }
+    }
+
+    private void merge(DatasetSource source,
+                       MergeFormat format,
+                       Template template,
+                       RowHandler handler,
+                       ErrorHandler errorHandler) throws IOException {
+        try (MergeDataset dataset = MergeDataset.open(source.open(), format, objectMapper);
+             ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor()) {
+            // Each merge gets as many workers as all merges may render at once; renderSlots shares them out.
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                futures.add(workers.submit(() -> {
+                    MergeDataset.Row row;
+                    while ((row = dataset.next()) != null) {
+                        mergeRow(row, template, handler, errorHandler);
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while merging", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private void mergeRow(MergeDataset.Row row, Template template, RowHandler handler, ErrorHandler errorHandler) {
+        String error = row.error();
+        if (error == null) {
+            Map<String, String> values = new HashMap<>(row.values());
+            values.putIfAbsent(ROW_PLACEHOLDER, String.valueOf(row.number()));
+            try {
+                PdfService.PreparedHtml html = new PdfService.PreparedHtml(
+                        template.html().apply(values, MailMergeService::escapeXml),
+                        template.xhtml().apply(values, MailMergeService::escapeXml),
+                        template.text().apply(values, value -> value)
+                );
+                String delta = template.delta().apply(values, MailMergeService::escapeJson);
+                String filename = filename(template.filename().apply(values, value -> value), row.number());
+
+                render(() -> handler.merge(row.number(), html, delta, filename));
+                mergedRows.increment();
+                return;
+            } catch (IOException | RuntimeException e) {
+                error = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            }
+        }
+
+        failedRows.increment();
+        errorHandler.rowFailed(new MergeRowError(row.number(), error));
+    }
+
+    private void render(RenderTask task) throws IOException {
+        try {
+            for (int attempt = 1; ; attempt++) {
+                renderSlots.acquire();
+                try {
+                    task.run();
+                    return;
+                } catch (RendererUnavailableException e) {
+                    // The pool is busy with other work; the row waits for a renderer rather than failing.
+                    if (attempt == MAX_RENDER_ATTEMPTS) {
+                        throw e;
+                    }
+                } finally {
+                    renderSlots.release();
+                }
+                Thread.sleep(Math.min(MAX_RETRY_DELAY.toMillis(), 500L << attempt));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while merging", e);
+        }
+    }
+
+    private static String filename(String merged, long row) {
+        String filename = merged.replaceAll("[\\\\/:*?\"<>|\\p{Cntrl}]", "_").strip();
+        if (filename.length() > MAX_FILENAME_LENGTH) {
+            filename = filename.substring(0, MAX_FILENAME_LENGTH);
+        }
+        return filename.isEmpty() ? "document-" + row : filename;
+    }
+
+    private static String escapeXml(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&' -> escaped.append("&amp;");
+                case '<' -> escaped.append("&lt;");
+                case '>' -> escaped.append("&gt;");
+                case '"' -> escaped.append("&quot;");
+                case '\'' -> escaped.append("&#39;");
+                default -> {
+                    // Control characters other than whitespace are not allowed anywhere in XML.
+                    if (c >= 0x20 || c == '\t' || c == '\n' || c == '\r') {
+                        escaped.append(c);
+                    }
+                }
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static String escapeJson(String value) {
+        return new String(JsonStringEncoder.getInstance().quoteAsString(value));
+    }
+
+    private GridFSBucket datasetBucket() {
+        return GridFSBuckets.create(mongoTemplate.getDb(), DATASET_BUCKET);
+    }
+
+    @FunctionalInterface
+    private interface DatasetSource {
+        InputStream open() throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface RowHandler {
+        void merge(long row, PdfService.PreparedHtml html, String delta, String filename) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface RenderTask {
+        void run() throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface ErrorHandler {
+        void rowFailed(MergeRowError error);
+    }
+
+    private record Template(long revision,
+                            String filenamePattern,
+                            MergeTemplate html,
+                            MergeTemplate xhtml,
+                            MergeTemplate text,
+                            MergeTemplate delta,
+                            MergeTemplate filename) {
+
+        private Set<String> fields() {
+            Set<String> fields = new HashSet<>(html.fields());
+            fields.addAll(delta.fields());
+            fields.addAll(filename.fields());
+            return fields;
+        }
+    }
+
+    public static final class ZipMerge {
+
+        private final String userId;
+        private final Template template;
+        private final MergeFormat format;
+        private final Path dataset;
+        private final long rows;
+
+        private ZipMerge(String userId, Template template, MergeFormat format, Path dataset, long rows) {
+            this.userId = userId;
+            this.template = template;
+            this.format = format;
+            this.dataset = dataset;
+            this.rows = rows;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package me.mmtr.pdforge.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import me.mmtr.pdforge.model.MergeFormat;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+final class MergeDataset implements Closeable {
+
+    private static final int BYTE_ORDER_MARK = '\uFEFF';
+
+    private final BufferedReader reader;
+    private final MergeFormat format;
+    private final ObjectMapper objectMapper;
+
+    private List<String> columns;
+    private long rowNumber;
+    private boolean exhausted;
+
+    private MergeDataset(BufferedReader reader, MergeFormat format, ObjectMapper objectMapper) {
+        this.reader = reader;
+        this.format = format;
+        this.objectMapper = objectMapper;
+    }
+
+    static MergeDataset open(InputStream inputStream, MergeFormat format, ObjectMapper objectMapper)
+            throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+        MergeDataset dataset = new MergeDataset(reader, format, objectMapper);
+        try {
+            reader.mark(1);
+            if (reader.read() != BYTE_ORDER_MARK) {
+                reader.reset();
+            }
+
+            if (format == MergeFormat.CSV) {
+                dataset.readHeader();
+            }
+            return dataset;
+        } catch (IOException | RuntimeException e) {
+            reader.close();
+            throw e;
+        }
+    }
+
+    private void readHeader() throws IOException {
+        List<String> header = readRecord();
+        if (header == null) {
+            throw new InvalidDatasetException("The dataset is empty");
+        }
+
+        columns = header.stream().map(String::strip).toList();
+        if (columns.stream().anyMatch(String::isEmpty)) {
+            throw new InvalidDatasetException("The CSV header has an empty column name");
+        }
+        if (new HashSet<>(columns).size() != columns.size()) {
+            throw new InvalidDatasetException("The CSV header has duplicate column names");
+        }
+    }
+
+    List<String> columns() {
+        return columns;
+    }
+
+    // Workers merging in parallel share one dataset, so rows are handed out one at a time.
+    synchronized Row next() throws IOException {
+        if (exhausted) {
+            return null;
+        }
+
+        try {
+            Row row = format == MergeFormat.CSV ? nextCsvRow() : nextJsonRow();
+            exhausted = row == null;
+            return row;
+        } catch (IOException | RuntimeException e) {
+            exhausted = true;
+            throw e;
+        }
+    }
+
+    private Row nextCsvRow() throws IOException {
+        List<String> fields = readRecord();
+        if (fields == null) {
+            return null;
+        }
+
+        long number = ++rowNumber;
+        if (fields.size() > columns.size()) {
+            return new Row(number, Map.of(),
+                    "Row has " + fields.size() + " fields but the header has " + columns.size());
+        }
+
+        Map<String, String> values = new LinkedHashMap<>();
+        for (int i = 0; i < fields.size(); i++) {
+            values.put(columns.get(i), fields.get(i));
+        }
+        return new Row(number, values, null);
+    }
+
+    private List<String> readRecord() throws IOException {
+        int c = reader.read();
+        while (c == '\r' || c == '\n') {
+            c = reader.read();
+        }
+        if (c == -1) {
+            return null;
+        }
+
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        while (true) {
+            if (quoted) {
+                if (c == -1) {
+                    throw new InvalidDatasetException("Row " + (rowNumber + 1) + " has an unterminated quoted field");
+                }
+                if (c == '"') {
+                    c = reader.read();
+                    if (c != '"') {
+                        quoted = false;
+                        continue;
+                    }
+                }
+                field.append((char) c);
+            } else if (c == '"' && field.isEmpty()) {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\r' || c == '\n' || c == -1) {
+                fields.add(field.toString());
+                return fields;
+            } else {
+                field.append((char) c);
+            }
+            c = reader.read();
+        }
+    }
+
+    private Row nextJsonRow() throws IOException {
+        String line;
+        do {
+            line = reader.readLine();
+        } while (line != null && line.isBlank());
+
+        if (line == null) {
+            return null;
+        }
+
+        long number = ++rowNumber;
+        JsonNode node;
+        try {
+            node = objectMapper.readTree(line);
+        } catch (JsonProcessingException e) {
+            return new Row(number, Map.of(), "Invalid JSON: " + e.getOriginalMessage());
+        }
+        if (!node.isObject()) {
+            return new Row(number, Map.of(), "Line is not a JSON object");
+        }
+
+        Map<String, String> values = new LinkedHashMap<>();
+        node.properties().forEach(property -> {
+            JsonNode value = property.getValue();
+            values.put(property.getKey(),
+                    value.isNull() ? "" : value.isContainerNode() ? value.toString() : value.asText());
+        });
+        return new Row(number, values, null);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    record Row(long number, Map<String, String> values, String error) {
+    }
+}
@@ -0,0 +1,60 @@
+package me.mmtr.pdforge.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+final class MergeTemplate {
+
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\{\\{\\s*([^{}]+?)\\s*}}");
+
+    // Literal text surrounding the placeholders; always one more entry than there are placeholders.
+    private final List<String> literals;
+    private final List<String> fields;
+    private final int literalLength;
+
+    private MergeTemplate(List<String> literals, List<String> fields) {
+        this.literals = literals;
+        this.fields = fields;
+        this.literalLength = literals.stream().mapToInt(String::length).sum();
+    }
+
+    static MergeTemplate compile(String source) {
+        List<String> literals = new ArrayList<>();
+        List<String> fields = new ArrayList<>();
+
+        Matcher matcher = PLACEHOLDER.matcher(source);
+        int literalStart = 0;
+        while (matcher.find()) {
+            literals.add(source.substring(literalStart, matcher.start()));
+            fields.add(matcher.group(1));
+            literalStart = matcher.end();
+        }
+        literals.add(source.substring(literalStart));
+
+        return new MergeTemplate(literals, fields);
+    }
+
+    Set<String> fields() {
+        return new LinkedHashSet<>(fields);
+    }
+
+    String apply(Map<String, String> values, UnaryOperator<String> escape) {
+        StringBuilder merged = new StringBuilder(literalLength + fields.size() * 16);
+        for (int i = 0; i < fields.size(); i++) {
+            merged.append(literals.get(i));
+
+            String value = values.get(fields.get(i));
+            if (value == null) {
+                throw new IllegalArgumentException("No value for placeholder '" + fields.get(i) + "'");
+            }
+            merged.append(escape.apply(value));
+        }
+        return merged.append(literals.getLast()).toString();
+    }
+}
@@ -0,0 +1,79 @@
+package me.mmtr.pdforge.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@Component
+public class PdfLinearizer {
+
+    // qpdf exits with 3 when it succeeded but printed warnings about the input.
+    private static final int EXIT_SUCCESS = 0;
+    private static final int EXIT_WARNINGS = 3;
+
+    private final boolean enabled;
+    private final String qpdfPath;
+    private final Duration timeout;
+
+    public PdfLinearizer(@Value("${pdforge.renderer.linearize:false}") boolean enabled,
+                         @Value("${pdforge.renderer.qpdf-path:qpdf}") String qpdfPath,
+                         @Value("${pdforge.renderer.linearize-timeout:30s}") Duration timeout) {
+        this.enabled = enabled;
+        this.qpdfPath = qpdfPath;
+        this.timeout = timeout;
+
+        if (enabled) {
+            try {
+                run(List.of(qpdfPath, "--version"));
+            } catch (IOException e) {
+                throw new IllegalStateException("Linearization is enabled but " + qpdfPath + " could not be run", e);
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void linearize(Path input, Path output) throws IOException {
+        run(List.of(qpdfPath, "--linearize", input.toString(), output.toString()));
+    }
+
+    private void run(List<String> command) throws IOException {
+        Path errors = Files.createTempFile("pdforge-qpdf-", ".log");
+        Process process = null;
+        try {
+            process = new ProcessBuilder(command)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .redirectError(errors.toFile())
+                    .start();
+
+            if (!process.waitFor(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                throw new IOException(command.getFirst() + " did not finish within " + timeout);
+            }
+
+            int exitCode = process.exitValue();
+            if (exitCode != EXIT_SUCCESS && exitCode != EXIT_WARNINGS) {
+                String message = Files.readString(errors, StandardCharsets.UTF_8).strip();
+                throw new IOException(command.getFirst() + " failed with exit code " + exitCode
+                        + (message.isEmpty() ? "" : ": " + message));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while linearizing");
+        } finally {
+            if (process != null) {
+                process.destroyForcibly();
+            }
+            Files.deleteIfExists(errors);
+        }
+    }
+}
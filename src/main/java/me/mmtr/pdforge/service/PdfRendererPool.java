@@ -0,0 +1,337 @@
+package me.mmtr.pdforge.service;
+
+import com.lowagie.text.pdf.BaseFont;
+import com.lowagie.text.pdf.PdfStream;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.xhtmlrenderer.layout.SharedContext;
+import org.xhtmlrenderer.pdf.DefaultPDFCreationListener;
+import org.xhtmlrenderer.pdf.ITextRenderer;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Component
+public class PdfRendererPool implements MeterBinder {
+
+    private static final String EMPTY_DOCUMENT = "<html><head></head><body></body></html>";
+
+    private final RenderResources resources;
+
+    private final int size;
+    private final Duration checkoutTimeout;
+    private final Duration renderTimeout;
+
+    private final Semaphore permits;
+    private final Deque<ITextRenderer> idleRenderers = new ConcurrentLinkedDeque<>();
+    private final ExecutorService renderThreads;
+
+    private final AtomicLong checkouts = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong renderTimeouts = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    public PdfRendererPool(RenderResources resources,
+                           @Value("${pdforge.renderer.pool-size:0}") int size,
+                           @Value("${pdforge.renderer.checkout-timeout:30s}") Duration checkoutTimeout,
+                           @Value("${pdforge.renderer.render-timeout:60s}") Duration renderTimeout) {
+        this.resources = resources;
+        this.size = size > 0 ? size : Runtime.getRuntime().availableProcessors();
+        this.checkoutTimeout = checkoutTimeout;
+        this.renderTimeout = renderTimeout;
+        this.permits = new Semaphore(this.size, true);
+
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.renderThreads = Executors.newFixedThreadPool(this.size, runnable -> {
+            Thread thread = new Thread(runnable, "pdf-renderer-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public <T> T execute(RendererTask<T> task) throws IOException {
+        ITextRenderer renderer = checkout();
+
+        // Layout is CPU-bound; running it on a virtual thread would hold a carrier for its whole duration.
+        if (renderTimeout.isZero() && !Thread.currentThread().isVirtual()) {
+            boolean reusable = false;
+            try {
+                T result = task.render(renderer);
+                reusable = true;
+                return result;
+            } finally {
+                release(renderer, reusable);
+            }
+        }
+        return renderOnPlatformThread(task, renderer);
+    }
+
+    private <T> T renderOnPlatformThread(RendererTask<T> task, ITextRenderer renderer) throws IOException {
+        AtomicBoolean started = new AtomicBoolean();
+        AtomicBoolean abandoned = new AtomicBoolean();
+        CompletableFuture<Void> stopped = new CompletableFuture<>();
+        Future<T> future;
+        try {
+            // The render thread gives the permit back itself, so a runaway layout keeps counting against
+            // the pool until it actually stops, even after its caller has given up on it.
+            future = renderThreads.submit(() -> {
+                if (!started.compareAndSet(false, true)) {
+                    return null;
+                }
+
+                boolean reusable = false;
+                try {
+                    T result = task.render(renderer);
+                    reusable = !abandoned.get();
+                    return result;
+                } finally {
+                    stop(stopped, renderer, reusable);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            release(renderer, true);
+            throw new IllegalStateException("PDF renderer pool is shut down", e);
+        }
+
+        try {
+            return renderTimeout.isZero()
+                    ? future.get()
+                    : future.get(renderTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            abandon(future, started, abandoned, stopped, renderer);
+            renderTimeouts.incrementAndGet();
+            throw new RenderTimeoutException(renderTimeout, stopped);
+        } catch (InterruptedException e) {
+            abandon(future, started, abandoned, stopped, renderer);
+            Thread.currentThread().interrupt();
+            throw new RenderAbandonedException("Interrupted while rendering a PDF", stopped);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (cause instanceof Error error) {
+                throw error;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    public <T> T withPermit(PermitTask<T> task) throws IOException {
+        acquirePermit();
+        try {
+            return task.run();
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void abandon(Future<?> future, AtomicBoolean started, AtomicBoolean abandoned,
+                         CompletableFuture<Void> stopped, ITextRenderer renderer) {
+        abandoned.set(true);
+        future.cancel(true);
+        if (started.compareAndSet(false, true)) {
+            stop(stopped, renderer, true);
+        }
+    }
+
+    private void stop(CompletableFuture<Void> stopped, ITextRenderer renderer, boolean reusable) {
+        // Whatever the abandoning caller deferred to this point cleans up before the permit is handed on.
+        try {
+            stopped.complete(null);
+        } finally {
+            release(renderer, reusable);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        renderThreads.shutdownNow();
+    }
+
+    private ITextRenderer checkout() throws IOException {
+        acquirePermit();
+
+        ITextRenderer renderer = idleRenderers.pollFirst();
+        if (renderer != null) {
+            return renderer;
+        }
+
+        try {
+            return createRenderer();
+        } catch (IOException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void acquirePermit() {
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(checkoutTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new RendererUnavailableException(checkoutTimeout);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a PDF renderer", e);
+        }
+
+        long waited = System.nanoTime() - start;
+        checkouts.incrementAndGet();
+        totalWaitNanos.addAndGet(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+    }
+
+    private void release(ITextRenderer renderer, boolean reusable) {
+        try {
+            if (reusable && reset(renderer)) {
+                idleRenderers.offerFirst(renderer);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private boolean reset(ITextRenderer renderer) {
+        try {
+            // Drops the DOM and box tree of the last document so an idle renderer does not pin it in heap.
+            renderer.setDocumentFromString(EMPTY_DOCUMENT);
+            userAgent(renderer).resetImageStatistics();
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private ITextRenderer createRenderer() throws IOException {
+        ITextRenderer renderer = new ITextRenderer();
+        SharedContext sharedContext = renderer.getSharedContext();
+
+        sharedContext.setPrint(true);
+        sharedContext.setInteractive(false);
+
+        // The default user agent refetches and re-decodes every image per document; this one shares a bounded cache.
+        CachingUserAgent userAgent = new CachingUserAgent(
+                renderer.getOutputDevice(), sharedContext.getDotsPerPixel(), resources);
+        userAgent.setSharedContext(sharedContext);
+        sharedContext.setUserAgentCallback(userAgent);
+
+        // Identity-H fonts are always embedded as subsets, so only the glyphs a document uses end up in it.
+        for (String fontPath : resources.getFontPaths()) {
+            renderer.getFontResolver().addFont(fontPath, BaseFont.IDENTITY_H, BaseFont.EMBEDDED);
+        }
+
+        if (resources.isFullCompression()) {
+            renderer.setListener(new FullCompressionListener());
+        }
+        return renderer;
+    }
+
+    static CachingUserAgent userAgent(ITextRenderer renderer) {
+        return (CachingUserAgent) renderer.getSharedContext().getUserAgentCallback();
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public Statistics getStatistics() {
+        long count = checkouts.get();
+        return new Statistics(
+                size,
+                size - permits.availablePermits(),
+                idleRenderers.size(),
+                count,
+                timeouts.get(),
+                renderTimeouts.get(),
+                Duration.ofNanos(count == 0 ? 0 : totalWaitNanos.get() / count),
+                Duration.ofNanos(maxWaitNanos.get())
+        );
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("pdforge.renderer.pool.size", this, pool -> pool.size)
+                .description("Maximum number of concurrent PDF renderers")
+                .register(registry);
+        Gauge.builder("pdforge.renderer.pool.in-use", this, pool -> pool.size - pool.permits.availablePermits())
+                .description("PDF renderers currently checked out")
+                .register(registry);
+        Gauge.builder("pdforge.renderer.pool.idle", this, pool -> pool.idleRenderers.size())
+                .description("Created PDF renderers waiting for work")
+                .register(registry);
+        Gauge.builder("pdforge.renderer.pool.waiting", this, pool -> pool.permits.getQueueLength())
+                .description("Threads waiting for a PDF renderer")
+                .register(registry);
+        FunctionCounter.builder("pdforge.renderer.pool.checkouts", checkouts, AtomicLong::get)
+                .description("PDF renderer checkouts")
+                .register(registry);
+        FunctionCounter.builder("pdforge.renderer.pool.timeouts", timeouts, AtomicLong::get)
+                .description("Checkouts that gave up waiting for a PDF renderer")
+                .register(registry);
+        FunctionCounter.builder("pdforge.renderer.pool.render-timeouts", renderTimeouts, AtomicLong::get)
+                .description("Renders abandoned for running longer than the render timeout")
+                .register(registry);
+        FunctionTimer.builder("pdforge.renderer.pool.wait", this,
+                        pool -> pool.checkouts.get(),
+                        pool -> pool.totalWaitNanos.get(),
+                        TimeUnit.NANOSECONDS)
+                .description("Time spent waiting to check out a PDF renderer")
+                .register(registry);
+    }
+
+    private static final class FullCompressionListener extends DefaultPDFCreationListener {
+
+        @Override
+        public void preOpen(ITextRenderer renderer) {
+            // Packs the cross-reference table and most non-stream objects into compressed object streams (PDF 1.5).
+            renderer.getWriter().setFullCompression();
+            renderer.getWriter().setCompressionLevel(PdfStream.BEST_COMPRESSION);
+        }
+    }
+
+    @FunctionalInterface
+    public interface RendererTask<T> {
+        T render(ITextRenderer renderer) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface PermitTask<T> {
+        T run() throws IOException;
+    }
+
+    public record Statistics(int size,
+                             int inUse,
+                             int idle,
+                             long checkouts,
+                             long timeouts,
+                             long renderTimeouts,
+                             Duration averageWait,
+                             Duration maxWait) {
+    }
+}
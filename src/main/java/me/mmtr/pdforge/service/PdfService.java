@@ -1,107 +1,1057 @@
 package me.mmtr.pdforge.service;
 
+import com.lowagie.text.pdf.PdfCopy;
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.RandomAccessFileOrArray;
+import com.mongodb.MongoGridFSException;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.gridfs.GridFSBucket;
 import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.gridfs.GridFSUploadStream;
 import com.mongodb.client.gridfs.model.GridFSFile;
 import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndDeleteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import me.mmtr.pdforge.model.DeletionJob;
+import me.mmtr.pdforge.model.DocumentPage;
+import me.mmtr.pdforge.model.DocumentRevision;
+import me.mmtr.pdforge.model.DocumentSort;
+import me.mmtr.pdforge.model.PdfDocument;
+import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
-import org.xhtmlrenderer.layout.SharedContext;
-import org.xhtmlrenderer.pdf.ITextRenderer;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 @Service
 public class PdfService {
 
+    private static final String FILES_COLLECTION = "fs.files";
+    private static final String CHUNKS_COLLECTION = "fs.chunks";
+    private static final String DELETION_CLAIM = "deletionJobId";
+    private static final String RELEASED_BY = "metadata.releasedBy";
+    private static final String ASSETS_FIELD = "metadata.assets";
+    private static final String PDF_EXTENSION = ".pdf";
+    private static final char CURSOR_SEPARATOR = ':';
+
     private final MongoTemplate mongoTemplate;
 
-    private final ITextRenderer renderer;
+    private final PdfRendererPool rendererPool;
+
+    private final DocumentSourceService documentSourceService;
+
+    private final DocumentRevisionService documentRevisionService;
+
+    private final ThumbnailService thumbnailService;
+
+    private final DocumentSearchService documentSearchService;
+
+    private final PdfLinearizer pdfLinearizer;
+    private final AssetService assetService;
+
+    private final TaskExecutor taskExecutor;
+
+    private final MeterRegistry meterRegistry;
+    private final Timer parseTimer;
+    private final Timer layoutTimer;
+    private final Timer createPdfTimer;
+    private final Timer linearizeTimer;
+    private final Timer uploadTimer;
+    private final Timer downloadTimer;
+    private final DistributionSummary htmlLength;
+    private final DistributionSummary pageCount;
+    private final DistributionSummary storedBytes;
+    private final DistributionSummary downloadedBytes;
+    private final Counter renderCacheHits;
+    private final Counter renderCacheMisses;
 
-    public PdfService(MongoTemplate mongoTemplate) {
+    public PdfService(MongoTemplate mongoTemplate,
+                      PdfRendererPool rendererPool,
+                      DocumentSourceService documentSourceService,
+                      DocumentRevisionService documentRevisionService,
+                      ThumbnailService thumbnailService,
+                      DocumentSearchService documentSearchService,
+                      PdfLinearizer pdfLinearizer,
+                      AssetService assetService,
+                      TaskExecutor taskExecutor,
+                      MeterRegistry meterRegistry) {
         this.mongoTemplate = mongoTemplate;
-        this.renderer = new ITextRenderer();
-        SharedContext sharedContext = renderer.getSharedContext();
+        this.rendererPool = rendererPool;
+        this.documentSourceService = documentSourceService;
+        this.documentRevisionService = documentRevisionService;
+        this.thumbnailService = thumbnailService;
+        this.documentSearchService = documentSearchService;
+        this.pdfLinearizer = pdfLinearizer;
+        this.assetService = assetService;
+        this.taskExecutor = taskExecutor;
+        this.meterRegistry = meterRegistry;
 
-        sharedContext.setPrint(true);
-        sharedContext.setInteractive(false);
+        this.parseTimer = renderStageTimer("parse");
+        this.layoutTimer = renderStageTimer("layout");
+        this.createPdfTimer = renderStageTimer("create_pdf");
+        this.linearizeTimer = renderStageTimer("linearize");
+        this.uploadTimer = storageTimer("upload");
+        this.downloadTimer = storageTimer("download");
+        this.htmlLength = DistributionSummary.builder("pdforge.documents.html.length")
+                .description("Length of the submitted HTML")
+                .baseUnit("characters")
+                .register(meterRegistry);
+        this.pageCount = DistributionSummary.builder("pdforge.documents.pages")
+                .description("Pages per rendered PDF")
+                .baseUnit("pages")
+                .register(meterRegistry);
+        this.storedBytes = DistributionSummary.builder("pdforge.storage.gridfs.bytes")
+                .description("Bytes moved to or from GridFS")
+                .baseUnit("bytes")
+                .tag("operation", "upload")
+                .register(meterRegistry);
+        this.downloadedBytes = DistributionSummary.builder("pdforge.storage.gridfs.bytes")
+                .description("Bytes moved to or from GridFS")
+                .baseUnit("bytes")
+                .tag("operation", "download")
+                .register(meterRegistry);
+        this.renderCacheHits = Counter.builder("pdforge.render.cache")
+                .description("Saves answered by an already rendered file")
+                .tag("result", "hit")
+                .register(meterRegistry);
+        this.renderCacheMisses = Counter.builder("pdforge.render.cache")
+                .description("Saves answered by an already rendered file")
+                .tag("result", "miss")
+                .register(meterRegistry);
+    }
+
+    private Timer renderStageTimer(String stage) {
+        return Timer.builder("pdforge.render.stage")
+                .description("Time spent in each PDF rendering stage")
+                .tag("stage", stage)
+                .register(meterRegistry);
+    }
+
+    private Timer storageTimer(String operation) {
+        return Timer.builder("pdforge.storage.gridfs")
+                .description("Time spent moving PDF content to or from GridFS")
+                .tag("operation", operation)
+                .register(meterRegistry);
     }
 
     public ObjectId saveAsPdf(String userId, String filename, String html, String delta) {
-        try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream()) {
+        // Embedded images are stored once as assets, so sources, revisions and copies only hold their URLs.
+        return saveAsPdf(
+                userId, filename, prepare(assetService.extractImages(html)), assetService.extractImages(delta));
+    }
+
+    public ObjectId saveAsPdf(String userId, String filename, PreparedHtml html, String delta) {
+        ObjectId fileId = storePdf(userId, html);
+        ObjectId documentId = new ObjectId();
+
+        try {
+            documentSourceService.saveDelta(documentId, userId, delta);
+            documentSearchService.saveText(documentId, userId, filename + PDF_EXTENSION, html.text());
+            documentRevisionService.recordRevision(
+                    documentId, userId, 1, filename + PDF_EXTENSION, delta, html.html());
+
+            Instant now = Instant.now();
+            mongoTemplate.insert(new PdfDocument(
+                    documentId.toHexString(),
+                    userId,
+                    filename + PDF_EXTENSION,
+                    fileId,
+                    now,
+                    now,
+                    1
+            ));
+        } catch (RuntimeException e) {
+            releaseFile(fileId);
+            documentSourceService.deleteDelta(documentId);
+            documentSearchService.deleteText(documentId);
+            documentRevisionService.deleteRevisions(documentId);
+            throw e;
+        }
+        return documentId;
+    }
+
+    public ObjectId updatePdf(String userId, ObjectId documentId, String filename, String html, String delta)
+            throws FileNotFoundException {
+        if (!mongoTemplate.exists(ownedBy(userId, documentId), PdfDocument.class)) {
+            throw new FileNotFoundException("Document not found");
+        }
+
+        html = assetService.extractImages(html);
+        delta = assetService.extractImages(delta);
+        PreparedHtml preparedHtml = prepare(html);
+        ObjectId fileId = storePdf(userId, preparedHtml);
+
+        PdfDocument previousDocument;
+        try {
+            previousDocument = mongoTemplate.findAndModify(
+                    ownedBy(userId, documentId),
+                    new Update()
+                            .set("filename", filename + PDF_EXTENSION)
+                            .set("fileId", fileId)
+                            .set("updatedAt", Instant.now())
+                            .inc("revision", 1),
+                    PdfDocument.class
+            );
+        } catch (RuntimeException e) {
+            releaseFile(fileId);
+            throw e;
+        }
+
+        if (previousDocument == null) {
+            releaseFile(fileId);
+            throw new FileNotFoundException("Document not found");
+        }
+
+        // The source is only replaced once the swap went through, so a failed update never leaves
+        // the previous PDF paired with the new delta.
+        try {
+            documentSourceService.saveDelta(documentId, userId, delta);
+        } catch (RuntimeException e) {
+            restorePrevious(previousDocument, fileId);
+            throw e;
+        }
+
+        documentSearchService.saveText(documentId, userId, filename + PDF_EXTENSION, preparedHtml.text());
+
+        long revision = previousDocument.getRevision() + 1;
+        documentRevisionService.recordRevision(documentId, userId, revision, filename + PDF_EXTENSION, delta, html);
+
+        ObjectId previousFileId = previousDocument.getFileId();
+        long previousRevision = previousDocument.getRevision();
+        taskExecutor.execute(() -> retireFile(documentId, previousRevision, previousFileId));
+        return documentId;
+    }
+
+    private void restorePrevious(PdfDocument previousDocument, ObjectId fileId) {
+        PdfDocument restored = mongoTemplate.findAndModify(
+                Query.query(Criteria.where("_id").is(new ObjectId(previousDocument.getId())).and("fileId").is(fileId)),
+                new Update()
+                        .set("filename", previousDocument.getFilename())
+                        .set("fileId", previousDocument.getFileId())
+                        .set("updatedAt", previousDocument.getUpdatedAt())
+                        .set("revision", previousDocument.getRevision()),
+                PdfDocument.class
+        );
+
+        // A newer update already replaced the file and retires it as its previous version.
+        if (restored != null) {
+            releaseFile(fileId);
+        }
+    }
+
+    public GridFSFileResource getRevisionAsResource(String userId, ObjectId documentId, long number)
+            throws IOException {
+        PdfDocument document = getUserDocument(userId, documentId);
+
+        if (document == null) {
+            throw new FileNotFoundException("File not found");
+        }
+        if (document.getRevision() == number) {
+            return getAsResource(userId, documentId);
+        }
+
+        DocumentRevision revision = documentRevisionService.getRevision(userId, documentId, number);
+        if (revision == null) {
+            throw new FileNotFoundException("Revision not found");
+        }
+
+        GridFSBucket bucket = GridFSBuckets.create(mongoTemplate.getDb());
+        GridFSFile file = revision.getFileId() != null
+                ? bucket.find(new org.bson.Document("_id", revision.getFileId())).first()
+                : null;
+
+        if (file == null) {
+            DocumentRevisionService.RevisionContent content =
+                    documentRevisionService.getRevisionContent(userId, documentId, number);
+            if (content == null) {
+                throw new FileNotFoundException("Revision not found");
+            }
+
+            ObjectId fileId = storePdf(userId, prepare(content.html()));
+            retireFile(documentId, number, fileId);
+            file = bucket.find(new org.bson.Document("_id", fileId)).first();
+
+            if (file == null) {
+                throw new FileNotFoundException("File not found");
+            }
+        }
+
+        return resource(bucket, file);
+    }
+
+    private void retireFile(ObjectId documentId, long revision, ObjectId fileId) {
+        // A superseded file stays attached to its revision, so recently replaced versions open without a re-render.
+        if (!documentRevisionService.attachFile(documentId, revision, fileId)) {
+            releaseFile(fileId);
+            return;
+        }
+        documentRevisionService.detachExcessFiles(documentId).forEach(this::releaseFile);
+    }
+
+    public PreparedHtml prepare(String html) {
+        Document parsedHtml = parse(html);
+        return new PreparedHtml(html, parsedHtml.html(), parsedHtml.text());
+    }
+
+    public void renderPdf(PreparedHtml html, OutputStream outputStream) throws IOException {
+        htmlLength.record(html.html().length());
+        render(html.xhtml(), outputStream, new org.bson.Document());
+    }
+
+    private ObjectId storePdf(String userId, PreparedHtml html) {
+        htmlLength.record(html.html().length());
+
+        String xhtml = html.xhtml();
+        String contentHash = hash(xhtml);
+
+        ObjectId cachedFileId = reuseRenderedFile(userId, contentHash);
+        if (cachedFileId != null) {
+            renderCacheHits.increment();
+            return cachedFileId;
+        }
+        renderCacheMisses.increment();
+
+        org.bson.Document renderMetadata = new org.bson.Document();
+        return uploadPdf(userId, contentHash, AssetService.referencedHashes(html.html()), renderMetadata,
+                outputStream -> render(xhtml, outputStream, renderMetadata));
+    }
+
+    private void render(String xhtml, OutputStream outputStream, org.bson.Document renderMetadata)
+            throws IOException {
+        rendererPool.execute(renderer -> {
+            renderer.setDocumentFromString(xhtml);
+            layoutTimer.record(renderer::layout);
+            pageCount.record(renderer.getRootBox().getLayer().getPages().size());
+
+            long createPdfStart = System.nanoTime();
+            renderer.createPDF(outputStream);
+            createPdfTimer.record(System.nanoTime() - createPdfStart, TimeUnit.NANOSECONDS);
+
+            CachingUserAgent userAgent = PdfRendererPool.userAgent(renderer);
+            renderMetadata.append("imageBytes", userAgent.getOriginalImageBytes())
+                    .append("optimizedImageBytes", userAgent.getEmbeddedImageBytes());
+            return null;
+        });
+    }
+
+    private Document parse(String html) {
+        return parseTimer.record(() -> {
             Document document = Jsoup.parse(html, "UTF-8");
             document.outputSettings().syntax(Document.OutputSettings.Syntax.xml);
+            return document;
+        });
+    }
 
-            renderer.setDocumentFromString(document.html());
-            renderer.layout();
-            renderer.createPDF(byteArrayOutputStream);
+    private ObjectId uploadPdf(String userId,
+                               String contentHash,
+                               Set<String> assetHashes,
+                               org.bson.Document renderMetadata,
+                               PdfWriterTask task) {
+        GridFSBucket gridFSBucket = GridFSBuckets.create(mongoTemplate.getDb());
 
-            byteArrayOutputStream.close();
+        org.bson.Document metadata = new org.bson.Document()
+                .append("type", "PDF file")
+                .append("userId", userId)
+                .append("contentHash", contentHash)
+                .append("refCount", 1)
+                .append("documentLinked", true);
+        if (!assetHashes.isEmpty()) {
+            metadata.append(ASSETS_FIELD.substring("metadata.".length()), List.copyOf(assetHashes));
+        }
 
-            try (InputStream inputStream = new ByteArrayInputStream(byteArrayOutputStream.toByteArray())) {
+        final int MEGABYTE_IN_BYTES = 1048576;
+        GridFSUploadOptions options = new GridFSUploadOptions()
+                .chunkSizeBytes(MEGABYTE_IN_BYTES)
+                .metadata(metadata);
 
-                GridFSBucket gridFSBucket = GridFSBuckets.create(mongoTemplate.getDb());
+        // Counted before the file exists: a crash in between can only keep an asset too long, never drop one in use.
+        assetService.addReferences(assetHashes);
 
-                org.bson.Document metadata = new org.bson.Document()
-                        .append("type", "PDF file")
-                        .append("delta", delta)
-                        .append("userId", userId);
+        GridFSUploadStream uploadStream = gridFSBucket.openUploadStream(contentHash + PDF_EXTENSION, options);
+        CountingOutputStream countingStream = new CountingOutputStream(uploadStream);
+        try {
+            if (pdfLinearizer.isEnabled()) {
+                writeLinearized(task, countingStream);
+            } else {
+                task.writeTo(countingStream);
+            }
 
-                final int MEGABYTE_IN_BYTES = 1048576;
-                GridFSUploadOptions options = new GridFSUploadOptions()
-                        .chunkSizeBytes(MEGABYTE_IN_BYTES)
-                        .metadata(metadata);
+            long uploadStart = System.nanoTime();
+            uploadStream.close();
+            uploadTimer.record(System.nanoTime() - uploadStart, TimeUnit.NANOSECONDS);
+        } catch (IOException | RuntimeException e) {
+            meterRegistry.counter("pdforge.render.failures", "exception", e.getClass().getSimpleName()).increment();
+            // An abandoned render may still be writing into the upload, so it is only aborted once that stopped.
+            afterRenderStops(e, () -> {
+                abortUpload(uploadStream, e);
+                assetService.releaseReferences(counted(assetHashes));
+            });
+            throw e instanceof RuntimeException runtimeException ? runtimeException : new RuntimeException(e);
+        }
+
+        storedBytes.record(countingStream.getCount());
+
+        // Lets exports write the file as a STORED zip entry without reading it twice.
+        List<Bson> updates = new ArrayList<>();
+        updates.add(Updates.set("metadata.crc32", countingStream.getChecksum()));
+        renderMetadata.forEach((key, value) -> updates.add(Updates.set("metadata." + key, value)));
+        mongoTemplate.getCollection(FILES_COLLECTION).updateOne(
+                Filters.eq("_id", uploadStream.getObjectId()),
+                Updates.combine(updates)
+        );
+        return uploadStream.getObjectId();
+    }
+
+    private void writeLinearized(PdfWriterTask task, OutputStream outputStream) throws IOException {
+        // Linearizing rewrites the whole file, so the PDF is spooled to disk first instead of streamed into GridFS.
+        Path written = Files.createTempFile("pdforge-", PDF_EXTENSION);
+        Path linearized = Files.createTempFile("pdforge-linearized-", PDF_EXTENSION);
+        try {
+            try (OutputStream fileStream = Files.newOutputStream(written)) {
+                task.writeTo(fileStream);
+            }
+
+            long linearizeStart = System.nanoTime();
+            pdfLinearizer.linearize(written, linearized);
+            linearizeTimer.record(System.nanoTime() - linearizeStart, TimeUnit.NANOSECONDS);
 
-                final String PDF_EXTENSION = ".pdf";
+            Files.copy(linearized, outputStream);
+        } catch (IOException | RuntimeException e) {
+            afterRenderStops(e, () -> deleteTempFiles(written, linearized));
+            throw e;
+        }
+        deleteTempFiles(written, linearized);
+    }
 
-                return gridFSBucket.uploadFromStream(filename + PDF_EXTENSION, inputStream, options);
+    private static void afterRenderStops(Exception failure, Runnable cleanup) {
+        if (failure instanceof RenderAbandonedException abandoned) {
+            abandoned.whenRenderStops(cleanup);
+        } else {
+            cleanup.run();
+        }
+    }
+
+    private static void deleteTempFiles(Path... paths) {
+        for (Path path : paths) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                // Left for the OS to clean up with the rest of the temp directory.
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
         }
     }
 
-    public byte[] getAsByteArray(ObjectId id) throws IOException {
+    public ObjectId mergeDocuments(String userId, String filename, List<ObjectId> documentIds) throws IOException {
+        if (documentIds.isEmpty()) {
+            throw new IllegalArgumentException("No documents selected for merging");
+        }
+
+        Map<String, PdfDocument> documentsById = new HashMap<>();
+        mongoTemplate.find(Query.query(Criteria.where("userId").is(userId).and("_id").in(documentIds)),
+                        PdfDocument.class)
+                .forEach(document -> documentsById.put(document.getId(), document));
 
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         GridFSBucket bucket = GridFSBuckets.create(mongoTemplate.getDb());
+        List<GridFSFile> files = new ArrayList<>();
+        StringJoiner sourceHashes = new StringJoiner(",", "merge:", "");
+        for (ObjectId documentId : documentIds) {
+            PdfDocument document = documentsById.get(documentId.toHexString());
+            GridFSFile file = document != null
+                    ? bucket.find(new org.bson.Document("_id", document.getFileId())).first()
+                    : null;
+
+            if (file == null) {
+                throw new FileNotFoundException("Document not found");
+            }
+
+            String sourceHash = file.getMetadata() != null ? file.getMetadata().getString("contentHash") : null;
+            sourceHashes.add(sourceHash != null ? sourceHash : file.getObjectId().toHexString());
+            files.add(file);
+        }
+
+        String contentHash = hash(sourceHashes.toString());
+        ObjectId fileId = reuseRenderedFile(userId, contentHash);
+        if (fileId == null) {
+            fileId = uploadPdf(userId, contentHash, Set.of(), new org.bson.Document(),
+                    outputStream -> copyPages(bucket, files, outputStream));
+
+            // The merged first page is the first source's first page, so its preview can be reused as is.
+            byte[] preview = thumbnailService.getThumbnail(files.getFirst().getObjectId());
+            if (preview != null) {
+                thumbnailService.storeThumbnail(fileId, userId, preview);
+            }
+        }
+
+        ObjectId documentId = new ObjectId();
+        try {
+            documentSearchService.saveMergedText(documentId, userId, filename + PDF_EXTENSION, documentIds);
+
+            Instant now = Instant.now();
+            mongoTemplate.insert(new PdfDocument(
+                    documentId.toHexString(),
+                    userId,
+                    filename + PDF_EXTENSION,
+                    fileId,
+                    now,
+                    now,
+                    0
+            ));
+        } catch (RuntimeException e) {
+            releaseFile(fileId);
+            documentSearchService.deleteText(documentId);
+            throw e;
+        }
+        return documentId;
+    }
+
+    private void copyPages(GridFSBucket bucket, List<GridFSFile> files, OutputStream outputStream)
+            throws IOException {
+        com.lowagie.text.Document mergedDocument = new com.lowagie.text.Document();
+        PdfCopy copy = new PdfCopy(mergedDocument, outputStream);
+        mergedDocument.open();
+
+        int pages = 0;
+        for (GridFSFile file : files) {
+            // A partial PdfReader keeps only the xref table in heap and loads pages on demand,
+            // but it needs random access, so each source is spooled to a temporary file first.
+            Path spool = Files.createTempFile("pdforge-merge-", PDF_EXTENSION);
+            try {
+                try (InputStream inputStream = new TimedInputStream(
+                        bucket.openDownloadStream(file.getId()), downloadTimer, downloadedBytes)) {
+                    Files.copy(inputStream, spool, StandardCopyOption.REPLACE_EXISTING);
+                }
+
+                PdfReader reader = new PdfReader(new RandomAccessFileOrArray(spool.toString(), false, true), null);
+                try {
+                    for (int page = 1; page <= reader.getNumberOfPages(); page++) {
+                        copy.addPage(copy.getImportedPage(reader, page));
+                    }
+                    pages += reader.getNumberOfPages();
+                    copy.freeReader(reader);
+                } finally {
+                    reader.close();
+                }
+            } finally {
+                Files.deleteIfExists(spool);
+            }
+        }
+
+        mergedDocument.close();
+        pageCount.record(pages);
+    }
+
+    private void abortUpload(GridFSUploadStream uploadStream, Exception cause) {
+        try {
+            uploadStream.abort();
+        } catch (MongoGridFSException e) {
+            cause.addSuppressed(e);
+        }
+    }
+
+    private ObjectId reuseRenderedFile(String userId, String contentHash) {
+        org.bson.Document cachedFile = mongoTemplate.getCollection(FILES_COLLECTION).findOneAndUpdate(
+                Filters.and(
+                        Filters.eq("metadata.userId", userId),
+                        Filters.eq("metadata.contentHash", contentHash),
+                        Filters.gte("metadata.refCount", 1)
+                ),
+                Updates.inc("metadata.refCount", 1),
+                new FindOneAndUpdateOptions().projection(Projections.include("_id"))
+        );
+
+        return cachedFile != null ? cachedFile.getObjectId("_id") : null;
+    }
+
+    private void releaseFile(ObjectId fileId) {
+        org.bson.Document releasedFile = mongoTemplate.getCollection(FILES_COLLECTION).findOneAndUpdate(
+                Filters.eq("_id", fileId),
+                Updates.inc("metadata.refCount", -1),
+                new FindOneAndUpdateOptions()
+                        .projection(Projections.include("metadata.refCount"))
+                        .returnDocument(ReturnDocument.AFTER)
+        );
+
+        if (releasedFile == null) {
+            return;
+        }
+
+        org.bson.Document metadata = releasedFile.get("metadata", org.bson.Document.class);
+        Number refCount = metadata != null ? metadata.get("refCount", Number.class) : null;
 
-        GridFSFile file = bucket.find(new org.bson.Document("_id", id)).first();
+        if (refCount == null || refCount.intValue() <= 0) {
+            deleteFiles(List.of(fileId));
+        }
+    }
+
+    private void releaseFiles(String claim, Map<ObjectId, Integer> references) {
+        if (references.isEmpty()) {
+            return;
+        }
+
+        // Marking each file with the claim makes a release repeated by a resumed job a no-op.
+        MongoCollection<org.bson.Document> files = mongoTemplate.getCollection(FILES_COLLECTION);
+        files.bulkWrite(
+                references.entrySet().stream()
+                        .map(reference -> new UpdateOneModel<org.bson.Document>(
+                                Filters.and(Filters.eq("_id", reference.getKey()), Filters.ne(RELEASED_BY, claim)),
+                                Updates.combine(
+                                        Updates.inc("metadata.refCount", -reference.getValue()),
+                                        Updates.addToSet(RELEASED_BY, claim))))
+                        .toList(),
+                new BulkWriteOptions().ordered(false)
+        );
+
+        List<ObjectId> unreferencedFileIds = files
+                .find(Filters.and(
+                        Filters.in("_id", references.keySet()),
+                        Filters.lte("metadata.refCount", 0)))
+                .projection(Projections.include("_id"))
+                .map(file -> file.getObjectId("_id"))
+                .into(new ArrayList<>());
+
+        if (!unreferencedFileIds.isEmpty()) {
+            deleteFiles(unreferencedFileIds);
+        }
+    }
+
+    private void deleteFiles(List<ObjectId> fileIds) {
+        MongoCollection<org.bson.Document> files = mongoTemplate.getCollection(FILES_COLLECTION);
+
+        // Files with assets are removed one by one, so only the release that actually removed a file gives its
+        // asset references back.
+        Map<String, Integer> assetReferences = new HashMap<>();
+        List<ObjectId> filesWithAssets = files
+                .find(Filters.and(Filters.in("_id", fileIds), Filters.exists(ASSETS_FIELD)))
+                .projection(Projections.include("_id"))
+                .map(file -> file.getObjectId("_id"))
+                .into(new ArrayList<>());
+        for (ObjectId fileId : filesWithAssets) {
+            org.bson.Document removedFile = files.findOneAndDelete(Filters.eq("_id", fileId),
+                    new FindOneAndDeleteOptions().projection(Projections.include(ASSETS_FIELD)));
+            if (removedFile != null) {
+                removedFile.get("metadata", org.bson.Document.class).getList("assets", String.class)
+                        .forEach(hash -> assetReferences.merge(hash, 1, Integer::sum));
+            }
+        }
+
+        // Same removal GridFSBucket.delete does per file, but one round trip per collection for the whole batch,
+        // and a file another release already removed is not an error.
+        files.deleteMany(Filters.in("_id", fileIds));
+        mongoTemplate.getCollection(CHUNKS_COLLECTION).deleteMany(Filters.in("files_id", fileIds));
+        thumbnailService.deleteThumbnails(fileIds);
+        assetService.releaseReferences(assetReferences);
+    }
+
+    private Map<String, Integer> counted(Set<String> hashes) {
+        Map<String, Integer> references = new HashMap<>();
+        hashes.forEach(hash -> references.put(hash, 1));
+        return references;
+    }
+
+    public AssetService.Asset getUserAsset(String userId, String hash) {
+        // A hash alone grants nothing: the asset has to be used by one of the user's own files.
+        boolean referenced = mongoTemplate.getCollection(FILES_COLLECTION)
+                .find(Filters.and(Filters.eq(ASSETS_FIELD, hash), Filters.eq("metadata.userId", userId)))
+                .projection(Projections.include("_id"))
+                .first() != null;
+        return referenced ? assetService.getAsset(hash) : null;
+    }
+
+    private String hash(String xhtml) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(xhtml.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public GridFSFileResource getAsResource(String userId, ObjectId documentId) throws IOException {
+        PdfDocument document = getUserDocument(userId, documentId);
+
+        if (document == null) {
+            throw new FileNotFoundException("File not found");
+        }
+
+        GridFSBucket bucket = GridFSBuckets.create(mongoTemplate.getDb());
+        GridFSFile file = bucket.find(new org.bson.Document("_id", document.getFileId())).first();
 
         if (file == null) {
-            throw new IOException("File not found");
+            throw new FileNotFoundException("File not found");
+        }
+
+        return resource(bucket, file);
+    }
+
+    public byte[] getThumbnail(String userId, ObjectId documentId) throws FileNotFoundException {
+        PdfDocument document = getUserDocument(userId, documentId);
+
+        if (document == null) {
+            throw new FileNotFoundException("File not found");
+        }
+
+        byte[] thumbnail = thumbnailService.getThumbnail(document.getFileId());
+        if (thumbnail != null) {
+            return thumbnail;
+        }
+
+        // Rendered lazily, so saves and batch jobs never pay for a preview nobody looks at.
+        DocumentRevisionService.RevisionContent content = document.getRevision() > 0
+                ? documentRevisionService.getRevisionContent(userId, documentId, document.getRevision())
+                : null;
+        if (content == null) {
+            throw new FileNotFoundException("Thumbnail not found");
         }
 
-        bucket.downloadToStream(file.getObjectId(), outputStream);
-        return outputStream.toByteArray();
+        return thumbnailService.createThumbnail(document.getFileId(), userId, parse(content.html()).html());
     }
 
-    public List<GridFSFile> getUserGridFSFiles(String userId) {
+    private GridFSFileResource resource(GridFSBucket bucket, GridFSFile file) {
+        return new GridFSFileResource(file, () -> new TimedInputStream(
+                bucket.openDownloadStream(file.getId()), downloadTimer, downloadedBytes));
+    }
+
+    public void exportDocuments(String userId, List<ObjectId> documentIds, OutputStream outputStream)
+            throws IOException {
+        Criteria criteria = Criteria.where("userId").is(userId).and(DELETION_CLAIM).exists(false);
+        if (documentIds != null && !documentIds.isEmpty()) {
+            criteria = criteria.and("_id").in(documentIds);
+        }
+
+        Query query = Query.query(criteria).with(Sort.by(Sort.Direction.ASC, "filename", "_id"));
+        query.fields().include("filename", "fileId");
+
         GridFSBucket bucket = GridFSBuckets.create(mongoTemplate.getDb());
+        Set<String> entryNames = new HashSet<>();
+
+        ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream);
+        zipOutputStream.setMethod(ZipOutputStream.STORED);
+
+        try (Stream<PdfDocument> documents = mongoTemplate.stream(query, PdfDocument.class)) {
+            for (PdfDocument document : (Iterable<PdfDocument>) documents::iterator) {
+                GridFSFile file = bucket.find(new org.bson.Document("_id", document.getFileId())).first();
+                if (file == null) {
+                    continue;
+                }
+
+                ZipEntry entry = new ZipEntry(uniqueEntryName(document.getFilename(), entryNames));
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(file.getLength());
+                entry.setCompressedSize(file.getLength());
+                entry.setCrc(checksum(bucket, file));
+                entry.setTime(file.getUploadDate().getTime());
+
+                zipOutputStream.putNextEntry(entry);
+                try (InputStream inputStream = new TimedInputStream(
+                        bucket.openDownloadStream(file.getId()), downloadTimer, downloadedBytes)) {
+                    inputStream.transferTo(zipOutputStream);
+                }
+                zipOutputStream.closeEntry();
+            }
+        }
+
+        zipOutputStream.finish();
+    }
+
+    private long checksum(GridFSBucket bucket, GridFSFile file) throws IOException {
+        Number storedChecksum = file.getMetadata() != null ? file.getMetadata().get("crc32", Number.class) : null;
+        if (storedChecksum != null) {
+            return storedChecksum.longValue();
+        }
+
+        CRC32 checksum = new CRC32();
+        try (InputStream inputStream = new CheckedInputStream(bucket.openDownloadStream(file.getId()), checksum)) {
+            inputStream.transferTo(OutputStream.nullOutputStream());
+        }
+        return checksum.getValue();
+    }
+
+    private String uniqueEntryName(String filename, Set<String> entryNames) {
+        String name = filename.replace('/', '_').replace('\\', '_');
+        if (entryNames.add(name)) {
+            return name;
+        }
+
+        String baseName = name.endsWith(PDF_EXTENSION)
+                ? name.substring(0, name.length() - PDF_EXTENSION.length())
+                : name;
+        for (int copy = 2; ; copy++) {
+            String candidate = baseName + " (" + copy + ")" + PDF_EXTENSION;
+            if (entryNames.add(candidate)) {
+                return candidate;
+            }
+        }
+    }
+
+    public DocumentPage getUserDocumentsPage(String userId, DocumentSort sort, String cursor, int pageSize) {
+        Criteria criteria = Criteria.where("userId").is(userId).and(DELETION_CLAIM).exists(false);
+
+        Criteria afterCursor = decodeCursor(sort, cursor);
+        if (afterCursor != null) {
+            criteria = new Criteria().andOperator(criteria, afterCursor);
+        }
+
+        Sort.Direction direction = sort.isAscending() ? Sort.Direction.ASC : Sort.Direction.DESC;
+        Query query = Query.query(criteria)
+                .with(Sort.by(direction, sort.getField(), "_id"))
+                .limit(pageSize + 1);
+
+        List<PdfDocument> documents = mongoTemplate.find(query, PdfDocument.class);
+
+        if (documents.size() <= pageSize) {
+            return new DocumentPage(documents, null);
+        }
+
+        List<PdfDocument> page = new ArrayList<>(documents.subList(0, pageSize));
+        return new DocumentPage(page, encodeCursor(sort, page.getLast()));
+    }
+
+    private String encodeCursor(DocumentSort sort, PdfDocument lastDocument) {
+        String sortValue = sort == DocumentSort.NAME
+                ? lastDocument.getFilename()
+                : String.valueOf(lastDocument.getUpdatedAt().toEpochMilli());
+
+        String cursor = lastDocument.getId() + CURSOR_SEPARATOR + sortValue;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Criteria decodeCursor(DocumentSort sort, String cursor) {
+        if (cursor == null || cursor.isBlank()) {
+            return null;
+        }
+
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int separator = decoded.indexOf(CURSOR_SEPARATOR);
+
+            ObjectId lastId = new ObjectId(decoded.substring(0, separator));
+            String rawSortValue = decoded.substring(separator + 1);
+            Object sortValue = sort == DocumentSort.NAME
+                    ? rawSortValue
+                    : Instant.ofEpochMilli(Long.parseLong(rawSortValue));
+
+            return sort.isAscending()
+                    ? new Criteria().orOperator(
+                    Criteria.where(sort.getField()).gt(sortValue),
+                    Criteria.where(sort.getField()).is(sortValue).and("_id").gt(lastId))
+                    : new Criteria().orOperator(
+                    Criteria.where(sort.getField()).lt(sortValue),
+                    Criteria.where(sort.getField()).is(sortValue).and("_id").lt(lastId));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    @FunctionalInterface
+    private interface PdfWriterTask {
+        void writeTo(OutputStream outputStream) throws IOException;
+    }
+
+    public record PreparedHtml(String html, String xhtml, String text) {
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void createIndexes() {
+        mongoTemplate.getCollection(mongoTemplate.getCollectionName(PdfDocument.class))
+                .createIndex(Indexes.compoundIndex(
+                        Indexes.ascending("userId"),
+                        Indexes.descending("updatedAt", "_id")
+                ));
+        mongoTemplate.getCollection(mongoTemplate.getCollectionName(PdfDocument.class))
+                .createIndex(Indexes.ascending("userId", "filename", "_id"));
+        mongoTemplate.getCollection(mongoTemplate.getCollectionName(PdfDocument.class))
+                .createIndex(Indexes.ascending(DELETION_CLAIM), new IndexOptions().sparse(true));
+
+        mongoTemplate.getCollection(FILES_COLLECTION)
+                .createIndex(Indexes.ascending("metadata.userId", "metadata.contentHash"));
+        mongoTemplate.getCollection(FILES_COLLECTION)
+                .createIndex(Indexes.ascending(ASSETS_FIELD, "metadata.userId"), new IndexOptions().sparse(true));
+    }
+
+    public PdfDocument getUserDocument(String userId, ObjectId documentId) {
+        return mongoTemplate.findOne(ownedBy(userId, documentId), PdfDocument.class);
+    }
+
+    public void deleteDocument(String userId, ObjectId documentId) {
+        PdfDocument removedDocument = mongoTemplate.findAndRemove(ownedBy(userId, documentId), PdfDocument.class);
+
+        if (removedDocument == null) {
+            return;
+        }
 
-        return bucket.find(new org.bson.Document("metadata.userId", userId)).into(new ArrayList<>());
+        // Sources and revisions go first, as an asset they still list is kept when the files are released.
+        documentSourceService.deleteDelta(documentId);
+        documentSearchService.deleteText(documentId);
+        List<ObjectId> revisionFileIds = documentRevisionService.deleteRevisions(documentId);
+        releaseFile(removedDocument.getFileId());
+        revisionFileIds.forEach(this::releaseFile);
     }
 
-    public GridFSFile getAsGridFSFile(String userId, ObjectId objectId) {
-        return getUserGridFSFiles(userId)
+    public int deleteDocuments(String userId, String claim, List<ObjectId> documentIds, int limit) {
+        // A batch interrupted after its documents were recorded is finished before a new one is claimed.
+        int resumed = resumeDeletion(claim);
+        if (resumed > 0) {
+            return resumed;
+        }
+
+        Criteria candidates = Criteria.where("userId").is(userId).and(DELETION_CLAIM).exists(false);
+        if (documentIds != null) {
+            candidates = candidates.and("_id").in(documentIds);
+        }
+
+        Query candidateQuery = Query.query(candidates).limit(limit);
+        candidateQuery.fields().include("_id");
+        List<ObjectId> candidateIds = mongoTemplate.find(candidateQuery, PdfDocument.class)
                 .stream()
-                .filter(gridFSFile ->
-                        gridFSFile.getObjectId().equals(objectId))
-                .findFirst()
-                .orElse(null);
+                .map(document -> new ObjectId(document.getId()))
+                .toList();
+
+        // Claimed documents are invisible to single deletes and updates, so no file is released twice when both
+        // race for the same document.
+        if (!candidateIds.isEmpty()) {
+            mongoTemplate.updateMulti(
+                    Query.query(Criteria.where("_id").in(candidateIds)
+                            .and("userId").is(userId)
+                            .and(DELETION_CLAIM).exists(false)),
+                    Update.update(DELETION_CLAIM, claim),
+                    PdfDocument.class
+            );
+        }
+
+        Query claimedQuery = Query.query(Criteria.where(DELETION_CLAIM).is(claim));
+        claimedQuery.fields().include("fileId");
+        List<ObjectId> claimedIds;
+        Map<ObjectId, Integer> references = new HashMap<>();
+        try {
+            List<PdfDocument> claimedDocuments = mongoTemplate.find(claimedQuery, PdfDocument.class);
+            if (claimedDocuments.isEmpty()) {
+                return 0;
+            }
+
+            claimedIds = claimedDocuments.stream()
+                    .map(document -> new ObjectId(document.getId()))
+                    .toList();
+            claimedDocuments.forEach(document -> references.merge(document.getFileId(), 1, Integer::sum));
+            documentRevisionService.getRevisionFileIds(claimedIds)
+                    .forEach(fileId -> references.merge(fileId, 1, Integer::sum));
+
+            // Recorded before anything is removed, so a job resumed after a crash can still release the files.
+            mongoTemplate.updateFirst(
+                    Query.query(Criteria.where("_id").is(claim)),
+                    new Update()
+                            .set("pendingDocumentIds", claimedIds.stream().map(ObjectId::toHexString).toList())
+                            .set("pendingReferences", hexKeys(references)),
+                    DeletionJob.class
+            );
+        } catch (RuntimeException e) {
+            mongoTemplate.updateMulti(
+                    Query.query(Criteria.where(DELETION_CLAIM).is(claim)),
+                    new Update().unset(DELETION_CLAIM),
+                    PdfDocument.class
+            );
+            throw e;
+        }
+
+        return finishDeletion(claim, claimedIds, references);
     }
 
-    public void deleteGridFSFile(ObjectId id) {
-        GridFSBucket bucket = GridFSBuckets.create(mongoTemplate.getDb());
-        bucket.find(new org.bson.Document("_id", id))
-                .forEach(file -> bucket.delete(file.getObjectId()));
+    private int resumeDeletion(String claim) {
+        Query pendingQuery = Query.query(Criteria.where("_id").is(claim).and("pendingDocumentIds").exists(true));
+        pendingQuery.fields().include("pendingDocumentIds", "pendingReferences");
+        DeletionJob pendingJob = mongoTemplate.findOne(pendingQuery, DeletionJob.class);
+        if (pendingJob == null) {
+            return 0;
+        }
+
+        Map<ObjectId, Integer> references = new HashMap<>();
+        if (pendingJob.getPendingReferences() != null) {
+            pendingJob.getPendingReferences().forEach((fileId, count) -> references.put(new ObjectId(fileId), count));
+        }
+        return finishDeletion(claim,
+                pendingJob.getPendingDocumentIds().stream().map(ObjectId::new).toList(),
+                references);
+    }
+
+    private int finishDeletion(String claim, List<ObjectId> documentIds, Map<ObjectId, Integer> references) {
+        // Every step is safe to repeat, so the batch can be finished again from the recorded state.
+        mongoTemplate.remove(
+                Query.query(Criteria.where("_id").in(documentIds).and(DELETION_CLAIM).is(claim)),
+                PdfDocument.class
+        );
+        documentRevisionService.deleteRevisions(documentIds);
+        documentSourceService.deleteDeltas(documentIds);
+        documentSearchService.deleteTexts(documentIds);
+        releaseFiles(claim, references);
+
+        mongoTemplate.updateFirst(
+                Query.query(Criteria.where("_id").is(claim)),
+                new Update().unset("pendingDocumentIds").unset("pendingReferences"),
+                DeletionJob.class
+        );
+        if (!references.isEmpty()) {
+            mongoTemplate.getCollection(FILES_COLLECTION)
+                    .updateMany(Filters.in("_id", references.keySet()), Updates.pull(RELEASED_BY, claim));
+        }
+
+        return documentIds.size();
+    }
+
+    private Map<String, Integer> hexKeys(Map<ObjectId, Integer> references) {
+        Map<String, Integer> hexReferences = new HashMap<>();
+        references.forEach((fileId, count) -> hexReferences.put(fileId.toHexString(), count));
+        return hexReferences;
+    }
+
+    private Query ownedBy(String userId, ObjectId documentId) {
+        return Query.query(Criteria.where("_id").is(documentId)
+                .and("userId").is(userId)
+                .and(DELETION_CLAIM).exists(false));
     }
 }
@@ -0,0 +1,18 @@
+package me.mmtr.pdforge.service;
+
+import java.util.concurrent.CompletionStage;
+
+public class RenderAbandonedException extends RuntimeException {
+
+    private final CompletionStage<Void> renderStopped;
+
+    public RenderAbandonedException(String message, CompletionStage<Void> renderStopped) {
+        super(message);
+        this.renderStopped = renderStopped;
+    }
+
+    // Runs once the abandoned render has stopped writing, still holding its renderer permit.
+    public void whenRenderStops(Runnable action) {
+        renderStopped.thenRun(action);
+    }
+}
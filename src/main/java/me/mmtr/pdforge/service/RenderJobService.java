@@ -0,0 +1,339 @@
+package me.mmtr.pdforge.service;
+
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import me.mmtr.pdforge.model.RenderJob;
+import me.mmtr.pdforge.model.RenderJobStatus;
+import me.mmtr.pdforge.model.RenderJobSummary;
+import me.mmtr.pdforge.repository.RenderJobRepository;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Service
+public class RenderJobService {
+
+    private final RenderJobRepository renderJobRepository;
+    private final MongoTemplate mongoTemplate;
+    private final PdfService pdfService;
+
+    private final MeterRegistry meterRegistry;
+    private final Timer queueWaitTimer;
+    private final Timer processTimer;
+
+    private final ThreadPoolExecutor executor;
+    private final int threads;
+
+    private final long maxHtmlBytes;
+    private final int maxUnfinishedJobsPerUser;
+    private final Duration retention;
+
+    public RenderJobService(RenderJobRepository renderJobRepository,
+                            MongoTemplate mongoTemplate,
+                            PdfService pdfService,
+                            MeterRegistry meterRegistry,
+                            @Value("${pdforge.render-jobs.workers:0}") int workers,
+                            @Value("${pdforge.render-jobs.queue-capacity:500}") int queueCapacity,
+                            @Value("${pdforge.render-jobs.max-html-size:8MB}") DataSize maxHtmlSize,
+                            @Value("${pdforge.render-jobs.max-unfinished-per-user:10}") int maxUnfinishedJobsPerUser,
+                            @Value("${pdforge.render-jobs.retention:7d}") Duration retention,
+                            @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads) {
+        this.renderJobRepository = renderJobRepository;
+        this.mongoTemplate = mongoTemplate;
+        this.pdfService = pdfService;
+        this.meterRegistry = meterRegistry;
+        this.queueWaitTimer = Timer.builder("pdforge.render.jobs.wait")
+                .description("Time render jobs spend queued before a worker picks them up")
+                .register(meterRegistry);
+        this.processTimer = Timer.builder("pdforge.render.jobs.process")
+                .description("Time a worker spends rendering and storing a job")
+                .register(meterRegistry);
+
+        this.maxHtmlBytes = maxHtmlSize.toBytes();
+        this.maxUnfinishedJobsPerUser = maxUnfinishedJobsPerUser;
+        this.retention = retention;
+
+        this.threads = workers > 0 ? workers : Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadCounter = new AtomicInteger();
+        // Virtual workers only wait on Mongo; PdfRendererPool moves the rendering itself onto platform threads.
+        ThreadFactory threadFactory = virtualThreads
+                ? Thread.ofVirtual().name("render-worker-", 1).factory()
+                : runnable -> {
+            Thread thread = new Thread(runnable, "render-worker-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        this.executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                threadFactory
+        );
+
+        Gauge.builder("pdforge.render.jobs.queued", executor, pool -> pool.getQueue().size())
+                .description("Render jobs waiting for a worker")
+                .register(meterRegistry);
+        Gauge.builder("pdforge.render.jobs.active", executor, ThreadPoolExecutor::getActiveCount)
+                .description("Render jobs currently being processed")
+                .register(meterRegistry);
+    }
+
+    public RenderJob enqueue(String userId, String filename, String htmlContent, String delta, String documentId) {
+        if (exceedsMaxSize(htmlContent) || exceedsMaxSize(delta)) {
+            throw new RenderRejectedException(
+                    RenderRejectedException.Reason.CONTENT_TOO_LARGE,
+                    "Document is larger than " + DataSize.ofBytes(maxHtmlBytes).toKilobytes() + " KB",
+                    null
+            );
+        }
+        admit(userId);
+
+        RenderJob job = new RenderJob();
+        job.setUserId(userId);
+        job.setFilename(filename);
+        job.setHtmlContent(htmlContent);
+        job.setDelta(delta);
+        job.setDocumentId(documentId);
+        job.setStatus(RenderJobStatus.PENDING);
+        job.setCreatedAt(Instant.now());
+
+        RenderJob savedJob = renderJobRepository.save(job);
+        submit(savedJob.getId());
+        return savedJob;
+    }
+
+    public RenderJob enqueueMerge(String userId, String filename, List<String> sourceDocumentIds) {
+        admit(userId);
+
+        RenderJob job = new RenderJob();
+        job.setUserId(userId);
+        job.setFilename(filename);
+        job.setSourceDocumentIds(sourceDocumentIds);
+        job.setStatus(RenderJobStatus.PENDING);
+        job.setCreatedAt(Instant.now());
+
+        RenderJob savedJob = renderJobRepository.save(job);
+        submit(savedJob.getId());
+        return savedJob;
+    }
+
+    public void admit(String userId) {
+        // Checked before the job is stored, so a saturated node answers quickly instead of persisting work
+        // it can only fail later.
+        if (executor.getQueue().remainingCapacity() == 0) {
+            rejected("queue_full");
+            throw new RenderRejectedException(
+                    RenderRejectedException.Reason.QUEUE_FULL,
+                    "Render queue is full, please try again later",
+                    estimatedWait(executor.getQueue().size())
+            );
+        }
+
+        long unfinishedJobs = mongoTemplate.count(
+                Query.query(Criteria.where("userId").is(userId)
+                        .and("status").in(RenderJobStatus.PENDING, RenderJobStatus.RUNNING)),
+                RenderJob.class
+        );
+        if (unfinishedJobs >= maxUnfinishedJobsPerUser) {
+            rejected("user_limit");
+            throw new RenderRejectedException(
+                    RenderRejectedException.Reason.TOO_MANY_USER_JOBS,
+                    "You already have " + unfinishedJobs + " documents rendering, please wait for them to finish",
+                    estimatedWait(unfinishedJobs)
+            );
+        }
+    }
+
+    private boolean exceedsMaxSize(String content) {
+        // A UTF-8 character takes at most three bytes per UTF-16 char, so most content is settled by its length.
+        if (content.length() > maxHtmlBytes) {
+            return true;
+        }
+        if ((long) content.length() * 3 <= maxHtmlBytes) {
+            return false;
+        }
+
+        long bytes = 0;
+        for (int i = 0; i < content.length(); i++) {
+            char c = content.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                // A surrogate pair is one four-byte character; its low half adds nothing further.
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes > maxHtmlBytes;
+    }
+
+    private Duration estimatedWait(long jobsAhead) {
+        double averageSeconds = processTimer.count() > 0 ? processTimer.mean(TimeUnit.SECONDS) : 1;
+        long seconds = (long) Math.ceil(averageSeconds * Math.max(1, jobsAhead) / threads);
+        return Duration.ofSeconds(Math.clamp(seconds, 1, 120));
+    }
+
+    private void rejected(String reason) {
+        meterRegistry.counter("pdforge.render.jobs.rejected", "reason", reason).increment();
+    }
+
+    public List<RenderJobSummary> getUserJobs(String userId) {
+        return renderJobRepository.findSummariesByUserId(userId)
+                .stream()
+                .map(RenderJobSummary::of)
+                .toList();
+    }
+
+    public List<RenderJobSummary> getUnfinishedOrFailedUserJobs(String userId) {
+        return renderJobRepository.findSummariesByUserIdAndStatusIn(
+                        userId,
+                        EnumSet.of(RenderJobStatus.PENDING, RenderJobStatus.RUNNING, RenderJobStatus.FAILED)
+                )
+                .stream()
+                .map(RenderJobSummary::of)
+                .toList();
+    }
+
+    public Optional<RenderJobSummary> getUserJob(String userId, String jobId) {
+        return renderJobRepository.findByIdAndUserId(jobId, userId).map(RenderJobSummary::of);
+    }
+
+    public void dismissFailedJob(String userId, String jobId) {
+        renderJobRepository.deleteByIdAndUserIdAndStatus(jobId, userId, RenderJobStatus.FAILED);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void createIndexes() {
+        // Finished jobs are only shown until they are dismissed or a while has passed.
+        mongoTemplate.getCollection(mongoTemplate.getCollectionName(RenderJob.class))
+                .createIndex(Indexes.ascending("finishedAt"),
+                        new IndexOptions().expireAfter(retention.toSeconds(), TimeUnit.SECONDS));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeUnfinishedJobs() {
+        mongoTemplate.updateMulti(
+                Query.query(Criteria.where("status").is(RenderJobStatus.RUNNING)),
+                Update.update("status", RenderJobStatus.PENDING),
+                RenderJob.class
+        );
+
+        renderJobRepository.findIdsByStatusIn(EnumSet.of(RenderJobStatus.PENDING))
+                .forEach(job -> submit(job.getId()));
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    private void submit(String jobId) {
+        try {
+            executor.execute(() -> process(jobId));
+        } catch (RejectedExecutionException e) {
+            fail(jobId, "Render queue is full, please try again later");
+        }
+    }
+
+    private void process(String jobId) {
+        RenderJob job = mongoTemplate.findAndModify(
+                Query.query(Criteria.where("_id").is(jobId).and("status").is(RenderJobStatus.PENDING)),
+                Update.update("status", RenderJobStatus.RUNNING),
+                FindAndModifyOptions.options().returnNew(true),
+                RenderJob.class
+        );
+
+        if (job == null) {
+            return;
+        }
+
+        queueWaitTimer.record(Duration.between(job.getCreatedAt(), Instant.now()));
+        long start = System.nanoTime();
+        try {
+            ObjectId objectId = job.getSourceDocumentIds() != null
+                    ? pdfService.mergeDocuments(
+                    job.getUserId(),
+                    job.getFilename(),
+                    job.getSourceDocumentIds().stream().map(ObjectId::new).toList())
+                    : job.getDocumentId() == null
+                    ? pdfService.saveAsPdf(
+                    job.getUserId(),
+                    job.getFilename(),
+                    job.getHtmlContent(),
+                    job.getDelta())
+                    : pdfService.updatePdf(
+                    job.getUserId(),
+                    new ObjectId(job.getDocumentId()),
+                    job.getFilename(),
+                    job.getHtmlContent(),
+                    job.getDelta());
+
+            mongoTemplate.updateFirst(
+                    Query.query(Criteria.where("_id").is(jobId)),
+                    new Update()
+                            .set("status", RenderJobStatus.DONE)
+                            .set("resultObjectId", objectId.toHexString())
+                            .set("finishedAt", Instant.now())
+                            .unset("htmlContent")
+                            .unset("delta"),
+                    RenderJob.class
+            );
+            countOutcome(RenderJobStatus.DONE);
+        } catch (IOException | RuntimeException e) {
+            fail(jobId, e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+        } finally {
+            processTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void fail(String jobId, String error) {
+        mongoTemplate.updateFirst(
+                Query.query(Criteria.where("_id").is(jobId)),
+                new Update()
+                        .set("status", RenderJobStatus.FAILED)
+                        .set("error", error)
+                        .set("finishedAt", Instant.now())
+                        .unset("htmlContent")
+                        .unset("delta"),
+                RenderJob.class
+        );
+        countOutcome(RenderJobStatus.FAILED);
+    }
+
+    private void countOutcome(RenderJobStatus status) {
+        meterRegistry.counter("pdforge.render.jobs", "status", status.name().toLowerCase(Locale.ROOT)).increment();
+    }
+}
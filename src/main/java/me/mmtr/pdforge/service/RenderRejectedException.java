@@ -0,0 +1,29 @@
+package me.mmtr.pdforge.service;
+
+import java.time.Duration;
+
+public class RenderRejectedException extends RuntimeException {
+
+    private final Reason reason;
+    private final Duration retryAfter;
+
+    public RenderRejectedException(Reason reason, String message, Duration retryAfter) {
+        super(message);
+        this.reason = reason;
+        this.retryAfter = retryAfter;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+
+    public enum Reason {
+        CONTENT_TOO_LARGE,
+        TOO_MANY_USER_JOBS,
+        QUEUE_FULL
+    }
+}
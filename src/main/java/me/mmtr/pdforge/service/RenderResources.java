@@ -0,0 +1,472 @@
+package me.mmtr.pdforge.service;
+
+import com.lowagie.text.Image;
+import com.lowagie.text.pdf.BaseFont;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+@Component
+public class RenderResources implements MeterBinder {
+
+    private static final String DATA_SCHEME = "data:";
+    private static final int MAX_REDIRECTS = 5;
+    // A4; nothing in a document is drawn larger than its page, so pixels beyond this at the target DPI are never seen.
+    private static final float PAGE_WIDTH_INCHES = 8.27f;
+    private static final float PAGE_HEIGHT_INCHES = 11.69f;
+
+    private final long maxCacheBytes;
+    private final long maxResourceBytes;
+    private final Duration fetchTimeout;
+    private final boolean offline;
+    private final AssetLoader assetLoader;
+    private final List<String> fontPaths;
+    private final int maxImageDpi;
+    private final float jpegQuality;
+    private final boolean fullCompression;
+
+    private final HttpClient httpClient;
+
+    private final Map<String, CachedResource> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+
+    public RenderResources(AssetLoader assetLoader,
+                           @Value("${pdforge.renderer.resources.cache-size:64MB}") DataSize cacheSize,
+                           @Value("${pdforge.renderer.resources.max-size:10MB}") DataSize maxResourceSize,
+                           @Value("${pdforge.renderer.resources.fetch-timeout:5s}") Duration fetchTimeout,
+                           @Value("${pdforge.renderer.resources.offline:false}") boolean offline,
+                           @Value("${pdforge.renderer.fonts-directory:}") String fontsDirectory,
+                           @Value("${pdforge.renderer.optimize.max-image-dpi:150}") int maxImageDpi,
+                           @Value("${pdforge.renderer.optimize.jpeg-quality:0.8}") float jpegQuality,
+                           @Value("${pdforge.renderer.optimize.full-compression:true}") boolean fullCompression) {
+        this.assetLoader = assetLoader;
+        this.maxCacheBytes = cacheSize.toBytes();
+        this.maxResourceBytes = maxResourceSize.toBytes();
+        this.fetchTimeout = fetchTimeout;
+        this.offline = offline;
+        this.fontPaths = loadFonts(fontsDirectory);
+        this.maxImageDpi = maxImageDpi;
+        this.jpegQuality = jpegQuality;
+        this.fullCompression = fullCompression;
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(fetchTimeout)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .build();
+    }
+
+    private static List<String> loadFonts(String fontsDirectory) {
+        if (fontsDirectory == null || fontsDirectory.isBlank()) {
+            return List.of();
+        }
+
+        try (Stream<Path> files = Files.list(Path.of(fontsDirectory))) {
+            List<String> fontPaths = files
+                    .filter(file -> {
+                        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+                        return name.endsWith(".ttf") || name.endsWith(".otf");
+                    })
+                    .map(Path::toString)
+                    .sorted()
+                    .toList();
+
+            // BaseFont keeps parsed fonts in a static cache, so each pooled renderer registers them without re-parsing.
+            for (String fontPath : fontPaths) {
+                BaseFont.createFont(fontPath, BaseFont.IDENTITY_H, BaseFont.EMBEDDED);
+            }
+            return fontPaths;
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not load fonts from " + fontsDirectory, e);
+        }
+    }
+
+    public List<String> getFontPaths() {
+        return fontPaths;
+    }
+
+    public boolean isFullCompression() {
+        return fullCompression;
+    }
+
+    public byte[] getBytes(String uri) {
+        CachedResource resource = getResource(uri);
+        return resource != null ? resource.bytes() : null;
+    }
+
+    public RenderImage getImage(String uri) {
+        CachedResource resource = getResource(uri);
+        if (resource == null) {
+            return null;
+        }
+
+        RenderImage image = resource.image();
+        if (image == null) {
+            try {
+                image = optimize(resource.bytes());
+            } catch (IOException | RuntimeException e) {
+                return null;
+            }
+            cacheImage(resource, image);
+        }
+        // Renderers scale the instance they are given, so each render gets its own copy over the shared data.
+        return new RenderImage(Image.getInstance(image.image()), image.originalBytes(), image.storedBytes());
+    }
+
+    private RenderImage optimize(byte[] bytes) throws IOException {
+        int[] size = maxImageDpi > 0 ? pixelSize(bytes) : null;
+        double scale = size != null
+                ? Math.min(PAGE_WIDTH_INCHES * maxImageDpi / size[0], PAGE_HEIGHT_INCHES * maxImageDpi / size[1])
+                : 1;
+        if (scale >= 1) {
+            return new RenderImage(Image.getInstance(bytes), bytes.length, bytes.length);
+        }
+
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(bytes));
+        if (decoded == null) {
+            return new RenderImage(Image.getInstance(bytes), bytes.length, bytes.length);
+        }
+
+        boolean transparent = decoded.getColorModel().hasAlpha();
+        int width = Math.max(1, (int) Math.round(decoded.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(decoded.getHeight() * scale));
+        BufferedImage downsampled = new BufferedImage(
+                width, height, transparent ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = downsampled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(decoded, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        byte[] encoded = transparent ? encodePng(downsampled) : encodeJpeg(downsampled);
+        if (encoded.length >= bytes.length) {
+            return new RenderImage(Image.getInstance(bytes), bytes.length, bytes.length);
+        }
+
+        // Keeps the intrinsic size of the original, so the page lays out exactly as with the full-resolution image.
+        Image image = Image.getInstance(encoded);
+        image.scaleAbsolute(size[0], size[1]);
+        return new RenderImage(image, bytes.length, encoded.length);
+    }
+
+    private int[] pixelSize(byte[] bytes) throws IOException {
+        try (ImageInputStream inputStream = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes))) {
+            Iterator<ImageReader> readers = inputStream != null ? ImageIO.getImageReaders(inputStream) : null;
+            if (readers == null || !readers.hasNext()) {
+                return null;
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(inputStream, true, true);
+                return new int[]{reader.getWidth(0), reader.getHeight(0)};
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private byte[] encodePng(BufferedImage image) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", outputStream);
+        return outputStream.toByteArray();
+    }
+
+    private byte[] encodeJpeg(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam parameters = writer.getDefaultWriteParam();
+        parameters.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        parameters.setCompressionQuality(jpegQuality);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (ImageOutputStream imageStream = ImageIO.createImageOutputStream(outputStream)) {
+            writer.setOutput(imageStream);
+            writer.write(null, new IIOImage(image, null, null), parameters);
+        } finally {
+            writer.dispose();
+        }
+        return outputStream.toByteArray();
+    }
+
+    private CachedResource getResource(String uri) {
+        if (uri == null) {
+            return null;
+        }
+
+        // Keys are hashes, so large data: URIs are not kept in memory a second time.
+        String key = hash(uri);
+        synchronized (cache) {
+            CachedResource resource = cache.get(key);
+            if (resource != null) {
+                hits.incrementAndGet();
+                return resource;
+            }
+        }
+        misses.incrementAndGet();
+
+        byte[] bytes = load(uri);
+        if (bytes == null) {
+            return null;
+        }
+
+        CachedResource resource = new CachedResource(key, bytes);
+        synchronized (cache) {
+            CachedResource previous = cache.put(key, resource);
+            if (previous != null) {
+                cachedBytes -= previous.weight();
+            }
+            cachedBytes += resource.weight();
+            evict();
+        }
+        return resource;
+    }
+
+    private void cacheImage(CachedResource resource, RenderImage image) {
+        synchronized (cache) {
+            if (resource.image() != null) {
+                return;
+            }
+
+            // The decoded image can outweigh the bytes it came from, so it counts against the cache size too.
+            resource.setImage(image, decodedBytes(image.image(), resource.bytes()));
+            if (cache.get(resource.key()) == resource) {
+                cachedBytes += resource.imageBytes();
+                evict();
+            }
+        }
+    }
+
+    private static long decodedBytes(Image image, byte[] source) {
+        long size = 0;
+        for (Image part = image; part != null; part = part.getImageMask()) {
+            byte[] data = part.getRawData();
+            if (data != null && data != source) {
+                size += data.length;
+            }
+        }
+        return size;
+    }
+
+    private void evict() {
+        Iterator<CachedResource> eldest = cache.values().iterator();
+        while (cachedBytes > maxCacheBytes && eldest.hasNext()) {
+            cachedBytes -= eldest.next().weight();
+            eldest.remove();
+        }
+    }
+
+    private byte[] load(String uri) {
+        if (uri.regionMatches(true, 0, DATA_SCHEME, 0, DATA_SCHEME.length())) {
+            return decodeDataUri(uri);
+        }
+        if (AssetService.isAssetUri(uri)) {
+            byte[] bytes = assetLoader.load(uri);
+            return bytes != null && bytes.length <= maxResourceBytes ? bytes : null;
+        }
+
+        URI parsedUri;
+        try {
+            parsedUri = URI.create(uri);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        if (!isRemote(parsedUri)) {
+            return null;
+        }
+        if (offline) {
+            blocked.incrementAndGet();
+            return null;
+        }
+
+        try {
+            return fetch(parsedUri);
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private static boolean isRemote(URI uri) {
+        // Only remote resources are fetched; file: and jar: URIs would expose the server's own files.
+        String scheme = uri.getScheme();
+        return ("http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme)) && uri.getHost() != null;
+    }
+
+    private byte[] fetch(URI uri) throws IOException, InterruptedException {
+        // Redirects are followed here rather than by the client, so every hop passes the same checks as the first.
+        for (int redirects = 0; redirects <= MAX_REDIRECTS; redirects++) {
+            HttpResponse<InputStream> response = httpClient.send(
+                    HttpRequest.newBuilder(uri).timeout(fetchTimeout).GET().build(),
+                    HttpResponse.BodyHandlers.ofInputStream()
+            );
+
+            try (InputStream body = response.body()) {
+                int status = response.statusCode();
+                if (status == 301 || status == 302 || status == 303 || status == 307 || status == 308) {
+                    String location = response.headers().firstValue("Location").orElse(null);
+                    URI target = location != null ? uri.resolve(location) : null;
+                    boolean downgrade = "https".equalsIgnoreCase(uri.getScheme())
+                            && target != null && !"https".equalsIgnoreCase(target.getScheme());
+                    if (target == null || downgrade || !isRemote(target)) {
+                        return null;
+                    }
+                    uri = target;
+                    continue;
+                }
+                if (status != 200) {
+                    return null;
+                }
+
+                byte[] bytes = body.readNBytes((int) Math.min(Integer.MAX_VALUE - 8, maxResourceBytes + 1));
+                return bytes.length > maxResourceBytes ? null : bytes;
+            }
+        }
+        return null;
+    }
+
+    private byte[] decodeDataUri(String uri) {
+        int comma = uri.indexOf(',');
+        if (comma < 0) {
+            return null;
+        }
+
+        String header = uri.substring(DATA_SCHEME.length(), comma);
+        String data = uri.substring(comma + 1);
+        try {
+            byte[] bytes = header.toLowerCase(Locale.ROOT).endsWith(";base64")
+                    ? Base64.getMimeDecoder().decode(data)
+                    : URLDecoder.decode(data, StandardCharsets.UTF_8).getBytes(StandardCharsets.UTF_8);
+            return bytes.length > maxResourceBytes ? null : bytes;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private String hash(String uri) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(uri.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public long getCachedBytes() {
+        synchronized (cache) {
+            return cachedBytes;
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("pdforge.renderer.resources.cached", this, RenderResources::getCachedBytes)
+                .description("Bytes of images and stylesheets cached for rendering")
+                .baseUnit("bytes")
+                .register(registry);
+        FunctionCounter.builder("pdforge.renderer.resources.requests", hits, AtomicLong::get)
+                .description("Image and stylesheet lookups made while rendering")
+                .tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder("pdforge.renderer.resources.requests", misses, AtomicLong::get)
+                .description("Image and stylesheet lookups made while rendering")
+                .tag("result", "miss")
+                .register(registry);
+        FunctionCounter.builder("pdforge.renderer.resources.blocked", blocked, AtomicLong::get)
+                .description("Remote resources skipped because rendering is offline")
+                .register(registry);
+    }
+
+    private static final class CachedResource {
+
+        private final String key;
+        private final byte[] bytes;
+
+        private volatile RenderImage image;
+        private long imageBytes;
+
+        private CachedResource(String key, byte[] bytes) {
+            this.key = key;
+            this.bytes = bytes;
+        }
+
+        private String key() {
+            return key;
+        }
+
+        private byte[] bytes() {
+            return bytes;
+        }
+
+        private RenderImage image() {
+            return image;
+        }
+
+        private long imageBytes() {
+            return imageBytes;
+        }
+
+        private long weight() {
+            return bytes.length + imageBytes;
+        }
+
+        private void setImage(RenderImage image, long imageBytes) {
+            this.image = image;
+            this.imageBytes = imageBytes;
+        }
+    }
+
+    @FunctionalInterface
+    public interface AssetLoader {
+        byte[] load(String uri);
+    }
+
+    public record RenderImage(Image image, int originalBytes, int storedBytes) {
+    }
+}
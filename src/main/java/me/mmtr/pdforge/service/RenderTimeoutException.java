@@ -0,0 +1,11 @@
+package me.mmtr.pdforge.service;
+
+import java.time.Duration;
+import java.util.concurrent.CompletionStage;
+
+public class RenderTimeoutException extends RenderAbandonedException {
+
+    public RenderTimeoutException(Duration renderTimeout, CompletionStage<Void> renderStopped) {
+        super("Rendering took longer than " + renderTimeout.toSeconds() + " seconds and was aborted", renderStopped);
+    }
+}
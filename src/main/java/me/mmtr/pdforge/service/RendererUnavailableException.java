@@ -0,0 +1,10 @@
+package me.mmtr.pdforge.service;
+
+import java.time.Duration;
+
+public class RendererUnavailableException extends IllegalStateException {
+
+    public RendererUnavailableException(Duration checkoutTimeout) {
+        super("No PDF renderer became available within " + checkoutTimeout.toMillis() + " ms");
+    }
+}
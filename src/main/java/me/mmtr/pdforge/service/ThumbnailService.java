@@ -0,0 +1,232 @@
+package me.mmtr.pdforge.service;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.gridfs.GridFSUploadStream;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Service;
+import org.xhtmlrenderer.resource.CSSResource;
+import org.xhtmlrenderer.resource.ImageResource;
+import org.xhtmlrenderer.resource.XMLResource;
+import org.xhtmlrenderer.swing.AWTFSImage;
+import org.xhtmlrenderer.swing.Java2DRenderer;
+import org.xhtmlrenderer.swing.NaiveUserAgent;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+@Service
+public class ThumbnailService {
+
+    private static final String BUCKET = "thumbnails";
+    private static final String FILE_ID_FIELD = "metadata.fileId";
+    private static final int PAGE_WIDTH = 794;
+    private static final int PAGE_HEIGHT = 1123;
+
+    private final MongoTemplate mongoTemplate;
+    private final PdfRendererPool rendererPool;
+    private final RenderResources resources;
+
+    private final int width;
+    private final int height;
+
+    private final Map<ObjectId, byte[]> cache;
+
+    public ThumbnailService(MongoTemplate mongoTemplate,
+                            PdfRendererPool rendererPool,
+                            RenderResources resources,
+                            @Value("${pdforge.thumbnails.width:200}") int width,
+                            @Value("${pdforge.thumbnails.cache-size:500}") int cacheSize) {
+        this.mongoTemplate = mongoTemplate;
+        this.rendererPool = rendererPool;
+        this.resources = resources;
+        this.width = width;
+        this.height = Math.round(width * (float) PAGE_HEIGHT / PAGE_WIDTH);
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ObjectId, byte[]> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    public byte[] getThumbnail(ObjectId fileId) {
+        synchronized (cache) {
+            byte[] cachedThumbnail = cache.get(fileId);
+            if (cachedThumbnail != null) {
+                return cachedThumbnail;
+            }
+        }
+
+        GridFSBucket bucket = bucket();
+        GridFSFile file = bucket.find(byFileId(List.of(fileId))).first();
+        if (file == null) {
+            return null;
+        }
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream((int) file.getLength());
+        bucket.downloadToStream(file.getObjectId(), outputStream);
+        return cache(fileId, outputStream.toByteArray());
+    }
+
+    public byte[] createThumbnail(ObjectId fileId, String userId, String xhtml) {
+        byte[] thumbnail;
+        try {
+            // Thumbnails count against the same rendering concurrency limit, without tying up a PDF renderer.
+            thumbnail = rendererPool.withPermit(() -> render(xhtml));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        storeThumbnail(fileId, userId, thumbnail);
+        return thumbnail;
+    }
+
+    public void storeThumbnail(ObjectId fileId, String userId, byte[] thumbnail) {
+        GridFSUploadOptions options = new GridFSUploadOptions()
+                .metadata(new org.bson.Document()
+                        .append("type", "Thumbnail")
+                        .append("userId", userId)
+                        .append("fileId", fileId));
+
+        GridFSBucket bucket = bucket();
+        if (bucket.find(byFileId(List.of(fileId))).first() == null) {
+            GridFSUploadStream uploadStream = bucket.openUploadStream(fileId.toHexString() + ".png", options);
+            try {
+                uploadStream.write(thumbnail);
+                uploadStream.close();
+            } catch (MongoWriteException e) {
+                // Another request stored the thumbnail first; only the chunks written here are dropped.
+                mongoTemplate.getCollection(BUCKET + ".chunks")
+                        .deleteMany(Filters.eq("files_id", uploadStream.getObjectId()));
+                if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                    throw e;
+                }
+            }
+        }
+        cache(fileId, thumbnail);
+    }
+
+    public void deleteThumbnails(Collection<ObjectId> fileIds) {
+        synchronized (cache) {
+            fileIds.forEach(cache::remove);
+        }
+
+        MongoCollection<org.bson.Document> files = mongoTemplate.getCollection(BUCKET + ".files");
+        List<ObjectId> thumbnailIds = files.find(byFileId(fileIds))
+                .projection(Projections.include("_id"))
+                .map(file -> file.getObjectId("_id"))
+                .into(new ArrayList<>());
+        if (thumbnailIds.isEmpty()) {
+            return;
+        }
+
+        files.deleteMany(Filters.in("_id", thumbnailIds));
+        mongoTemplate.getCollection(BUCKET + ".chunks").deleteMany(Filters.in("files_id", thumbnailIds));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void createIndexes() {
+        mongoTemplate.getCollection(BUCKET + ".files")
+                .createIndex(Indexes.ascending(FILE_ID_FIELD), new IndexOptions().unique(true).sparse(true));
+    }
+
+    private Bson byFileId(Collection<ObjectId> fileIds) {
+        return Filters.in(FILE_ID_FIELD, fileIds);
+    }
+
+    private byte[] cache(ObjectId fileId, byte[] thumbnail) {
+        synchronized (cache) {
+            cache.put(fileId, thumbnail);
+        }
+        return thumbnail;
+    }
+
+    private byte[] render(String xhtml) throws IOException {
+        org.w3c.dom.Document document = XMLResource.load(new StringReader(xhtml)).getDocument();
+        Java2DRenderer pageRenderer = new Java2DRenderer(document, PAGE_WIDTH, PAGE_HEIGHT);
+        pageRenderer.getSharedContext().setUserAgentCallback(new CachingAwtUserAgent(resources));
+        BufferedImage page = pageRenderer.getImage();
+
+        BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = thumbnail.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            graphics.drawImage(page, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ImageIO.write(thumbnail, "png", outputStream);
+        return outputStream.toByteArray();
+    }
+
+    private GridFSBucket bucket() {
+        return GridFSBuckets.create(mongoTemplate.getDb(), BUCKET);
+    }
+
+    private static final class CachingAwtUserAgent extends NaiveUserAgent {
+
+        private final RenderResources resources;
+
+        private CachingAwtUserAgent(RenderResources resources) {
+            this.resources = resources;
+        }
+
+        @Override
+        public String resolveURI(String uri) {
+            // Asset URLs are relative to the application, not to a document base, and are loaded by the cache.
+            return AssetService.isAssetUri(uri) ? uri : super.resolveURI(uri);
+        }
+
+        @Override
+        public ImageResource getImageResource(String uri) {
+            byte[] bytes = resources.getBytes(uri);
+            BufferedImage image = null;
+            if (bytes != null) {
+                try {
+                    image = ImageIO.read(new ByteArrayInputStream(bytes));
+                } catch (IOException e) {
+                    // Unreadable images are left out, as the default user agent does.
+                }
+            }
+            return new ImageResource(uri, image != null ? AWTFSImage.createImage(image) : null);
+        }
+
+        @Override
+        public CSSResource getCSSResource(String uri) {
+            byte[] stylesheet = resources.getBytes(uri);
+            return new CSSResource(stylesheet != null ? new ByteArrayInputStream(stylesheet) : null);
+        }
+    }
+}
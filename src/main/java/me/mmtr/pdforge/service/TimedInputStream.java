@@ -0,0 +1,63 @@
+package me.mmtr.pdforge.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Timer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+final class TimedInputStream extends FilterInputStream {
+
+    private final Timer timer;
+    private final DistributionSummary bytesRead;
+    private final long startNanos = System.nanoTime();
+
+    private long count;
+    private boolean closed;
+
+    TimedInputStream(InputStream inputStream, Timer timer, DistributionSummary bytesRead) {
+        super(inputStream);
+        this.timer = timer;
+        this.bytesRead = bytesRead;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int value = super.read();
+        if (value != -1) {
+            count++;
+        }
+        return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int read = super.read(buffer, offset, length);
+        if (read > 0) {
+            count += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        count += skipped;
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if (!closed) {
+                closed = true;
+                timer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+                bytesRead.record(count);
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package me.mmtr.pdforge.service;
+
+import me.mmtr.pdforge.model.User;
+import me.mmtr.pdforge.repository.UserRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+@Service
+public class UserLookupService {
+
+    private final UserRepository userRepository;
+    private final Duration timeToLive;
+
+    private final Map<String, CachedUser> cache;
+
+    public UserLookupService(UserRepository userRepository,
+                             @Value("${pdforge.users.cache.max-size:10000}") int maxSize,
+                             @Value("${pdforge.users.cache.ttl:5m}") Duration timeToLive) {
+        this.userRepository = userRepository;
+        this.timeToLive = timeToLive;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedUser> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public Optional<User> findByUsername(String username) {
+        Instant now = Instant.now();
+
+        synchronized (cache) {
+            CachedUser cachedUser = cache.get(username);
+            if (cachedUser != null && cachedUser.expiresAt().isAfter(now)) {
+                return Optional.of(cachedUser.user());
+            }
+            if (cachedUser != null) {
+                cache.remove(username);
+            }
+        }
+
+        // Misses are not cached, so a user registered a moment ago is found on the next lookup.
+        Optional<User> user = userRepository.findByUsername(username);
+        user.ifPresent(found -> {
+            synchronized (cache) {
+                cache.put(username, new CachedUser(found, now.plus(timeToLive)));
+            }
+        });
+        return user;
+    }
+
+    public void evict(String username) {
+        synchronized (cache) {
+            cache.remove(username);
+        }
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    private record CachedUser(User user, Instant expiresAt) {
+    }
+}
@@ -10,10 +10,14 @@ public class UserServiceImplementation {
 
     private final UserRepository userRepository;
     private final PasswordEncoder passwordEncoder;
+    private final UserLookupService userLookupService;
 
-    public UserServiceImplementation(UserRepository userRepository, PasswordEncoder passwordEncoder) {
+    public UserServiceImplementation(UserRepository userRepository,
+                                     PasswordEncoder passwordEncoder,
+                                     UserLookupService userLookupService) {
         this.userRepository = userRepository;
         this.passwordEncoder = passwordEncoder;
+        this.userLookupService = userLookupService;
     }
 
     public void registerUser(String username, String password) {
@@ -22,5 +26,6 @@ public class UserServiceImplementation {
         user.setPassword(passwordEncoder.encode(password));
 
         userRepository.save(user);
+        userLookupService.evict(username);
     }
 }
@@ -0,0 +1,202 @@
+package me.mmtr.pdforge;
+
+import io.micrometer.core.instrument.LongTaskTimer;
+import io.micrometer.core.instrument.MeterRegistry;
+import me.mmtr.pdforge.model.User;
+import me.mmtr.pdforge.repository.UserRepository;
+import me.mmtr.pdforge.service.PdfService;
+import me.mmtr.pdforge.service.UserServiceImplementation;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.net.CookieManager;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Tag("load")
+public class ThreadingModeLoadTests {
+
+    private static final int TOMCAT_THREADS = 8;
+    private static final int CONCURRENT_CLIENTS = 200;
+    private static final int REQUESTS_PER_CLIENT = 10;
+
+    @SpringBootTest(
+            webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+            properties = {
+                    "spring.threads.virtual.enabled=false",
+                    "server.tomcat.threads.max=" + TOMCAT_THREADS,
+                    "management.server.port=0"
+            }
+    )
+    public static class PlatformThreads extends LoadScenario {
+        @Test
+        public void shouldServeConcurrentDownloads() throws Exception {
+            run("platform threads");
+        }
+    }
+
+    @SpringBootTest(
+            webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+            properties = {
+                    "spring.threads.virtual.enabled=true",
+                    "server.tomcat.threads.max=" + TOMCAT_THREADS,
+                    "management.server.port=0"
+            }
+    )
+    public static class VirtualThreads extends LoadScenario {
+        @Test
+        public void shouldServeConcurrentDownloads() throws Exception {
+            run("virtual threads");
+        }
+    }
+
+    // Static nested classes don't inherit the outer tag, only the one on their superclass.
+    @Tag("load")
+    abstract static class LoadScenario {
+
+        private final String username = UUID.randomUUID().toString();
+        private final String password = UUID.randomUUID().toString();
+
+        @LocalServerPort
+        private int port;
+
+        @Autowired
+        private UserServiceImplementation userService;
+
+        @Autowired
+        private UserRepository userRepository;
+
+        @Autowired
+        private PdfService pdfService;
+
+        @Autowired
+        private MeterRegistry meterRegistry;
+
+        private User user;
+        private ObjectId documentId;
+        private HttpClient httpClient;
+
+        @BeforeEach
+        public void setUp() throws Exception {
+            userService.registerUser(username, password);
+            user = userRepository.findByUsername(username).orElseThrow();
+            documentId = pdfService.saveAsPdf(
+                    user.getId(),
+                    "load-test",
+                    "<p>" + "Lorem ipsum dolor sit amet. ".repeat(2000) + "</p>",
+                    "{\"ops\":[]}"
+            );
+
+            httpClient = HttpClient.newBuilder()
+                    .cookieHandler(new CookieManager())
+                    .executor(Executors.newVirtualThreadPerTaskExecutor())
+                    .build();
+
+            HttpResponse<Void> login = httpClient.send(
+                    HttpRequest.newBuilder(uri("/login"))
+                            .header("Content-Type", "application/x-www-form-urlencoded")
+                            .POST(HttpRequest.BodyPublishers.ofString("username=" + username + "&password=" + password))
+                            .build(),
+                    HttpResponse.BodyHandlers.discarding()
+            );
+            Assertions.assertEquals(302, login.statusCode());
+        }
+
+        @AfterEach
+        public void tearDown() {
+            pdfService.deleteDocument(user.getId(), documentId);
+            userRepository.delete(user);
+        }
+
+        protected void run(String mode) throws Exception {
+            HttpRequest request = HttpRequest.newBuilder(
+                            uri("/pdf/view?objectId=" + documentId.toHexString() + "&filename=load-test.pdf"))
+                    .timeout(Duration.ofSeconds(60))
+                    .build();
+
+            AtomicInteger peakActiveRequests = new AtomicInteger();
+            AtomicBoolean running = new AtomicBoolean(true);
+            Thread sampler = Thread.ofPlatform().daemon().start(() -> {
+                while (running.get()) {
+                    LongTaskTimer active = meterRegistry.find("http.server.requests.active").longTaskTimer();
+                    if (active != null) {
+                        peakActiveRequests.accumulateAndGet(active.activeTasks(), Math::max);
+                    }
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+
+            List<Long> latencies = new ArrayList<>();
+            long start = System.nanoTime();
+            try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+                List<Future<List<Long>>> results = new ArrayList<>();
+                for (int i = 0; i < CONCURRENT_CLIENTS; i++) {
+                    results.add(clients.submit(() -> {
+                        List<Long> clientLatencies = new ArrayList<>();
+                        for (int j = 0; j < REQUESTS_PER_CLIENT; j++) {
+                            long requestStart = System.nanoTime();
+                            HttpResponse<byte[]> response = httpClient.send(
+                                    request, HttpResponse.BodyHandlers.ofByteArray());
+                            clientLatencies.add(System.nanoTime() - requestStart);
+
+                            Assertions.assertEquals(200, response.statusCode());
+                        }
+                        return clientLatencies;
+                    }));
+                }
+                for (Future<List<Long>> result : results) {
+                    latencies.addAll(result.get());
+                }
+            } finally {
+                running.set(false);
+                sampler.join();
+            }
+            long elapsed = System.nanoTime() - start;
+
+            latencies.sort(Long::compare);
+            System.out.printf(
+                    "[%s] %d requests in %d ms (%.0f req/s), p50 %.1f ms, p99 %.1f ms, peak in-flight %d%n",
+                    mode,
+                    latencies.size(),
+                    Duration.ofNanos(elapsed).toMillis(),
+                    latencies.size() / (elapsed / 1e9),
+                    percentile(latencies, 0.50),
+                    percentile(latencies, 0.99),
+                    peakActiveRequests.get()
+            );
+
+            Assertions.assertEquals(CONCURRENT_CLIENTS * REQUESTS_PER_CLIENT, latencies.size());
+        }
+
+        private double percentile(List<Long> sortedLatencies, double percentile) {
+            int index = (int) Math.ceil(percentile * sortedLatencies.size()) - 1;
+            return sortedLatencies.get(Math.max(0, index)) / 1e6;
+        }
+
+        private URI uri(String path) {
+            return URI.create("http://localhost:" + port + path);
+        }
+    }
+}
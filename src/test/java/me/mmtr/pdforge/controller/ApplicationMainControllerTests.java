@@ -1,12 +1,11 @@
 package me.mmtr.pdforge.controller;
 
-import com.mongodb.client.gridfs.model.GridFSFile;
+import me.mmtr.pdforge.model.PdfDocument;
 import me.mmtr.pdforge.model.User;
 import me.mmtr.pdforge.repository.UserRepository;
+import me.mmtr.pdforge.service.DocumentSourceService;
 import me.mmtr.pdforge.service.PdfService;
 import me.mmtr.pdforge.service.UserServiceImplementation;
-import org.bson.BsonObjectId;
-import org.bson.Document;
 import org.bson.types.ObjectId;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
@@ -16,13 +15,11 @@ import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.context.annotation.Bean;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configurers.AbstractHttpConfigurer;
-import org.springframework.security.test.context.support.WithMockUser;
 import org.springframework.security.web.SecurityFilterChain;
 import org.springframework.test.context.bean.override.mockito.MockitoBean;
 import org.springframework.test.web.servlet.MockMvc;
 
 import java.time.Instant;
-import java.util.Date;
 import java.util.Optional;
 
 import static org.mockito.ArgumentMatchers.*;
@@ -46,31 +43,48 @@ public class ApplicationMainControllerTests {
     @MockitoBean
     private PdfService pdfService;
 
+    @MockitoBean
+    private DocumentSourceService documentSourceService;
+
     @Test
-    @WithMockUser(username = "Test")
+    @WithMockUserPrincipal(username = "Test")
     public void shouldCorrectlyReturnHomePage() throws Exception {
         User testUser = new User("1", "Test", "password");
-        when(userRepository.findByUsername(anyString())).thenReturn(Optional.of(testUser));
 
         ObjectId testObjectId = new ObjectId("64e8c4f1f5a4c9453a6c2b91");
-        Document metadata = new Document("delta", "some delta");
-        GridFSFile file = new GridFSFile(
-                new BsonObjectId(testObjectId),
-                "Test",
-                5L,
-                1048576,
-                Date.from(Instant.now()),
-                metadata
+        PdfDocument document = new PdfDocument(
+                testObjectId.toHexString(),
+                testUser.getId(),
+                "Test.pdf",
+                new ObjectId(),
+                Instant.now(),
+                Instant.now(),
+                1
         );
 
-        when(pdfService.getAsGridFSFile(eq(testUser.getId()), any(ObjectId.class)))
-                .thenReturn(file);
+        when(pdfService.getUserDocument(eq(testUser.getId()), any(ObjectId.class)))
+                .thenReturn(document);
+        when(documentSourceService.getDelta(testUser.getId(), testObjectId)).thenReturn("some delta");
 
         mockMvc.perform(get("/home")
                         .param("objectId", testObjectId.toString()))
                 .andExpect(status().isOk())
                 .andExpect(model().attributeExists("updatedDocument"))
-                .andExpect(model().attributeExists("delta"))
+                .andExpect(model().attribute("delta", "some delta"))
+                .andExpect(view().name("home"));
+    }
+
+    @Test
+    @WithMockUserPrincipal(username = "Test")
+    public void shouldReturnEmptyEditorWhenDocumentIsNotOwnedByUser() throws Exception {
+        User testUser = new User("1", "Test", "password");
+        when(pdfService.getUserDocument(eq(testUser.getId()), any(ObjectId.class))).thenReturn(null);
+
+        mockMvc.perform(get("/home")
+                        .param("objectId", new ObjectId().toString()))
+                .andExpect(status().isOk())
+                .andExpect(model().attribute("updatedDocument", (Object) null))
+                .andExpect(model().attribute("delta", (Object) null))
                 .andExpect(view().name("home"));
     }
 
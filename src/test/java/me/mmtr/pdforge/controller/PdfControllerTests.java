@@ -1,9 +1,29 @@
 package me.mmtr.pdforge.controller;
 
 import com.mongodb.client.gridfs.model.GridFSFile;
+import me.mmtr.pdforge.model.DeletionJobSummary;
+import me.mmtr.pdforge.model.DocumentPage;
+import me.mmtr.pdforge.model.DocumentRevision;
+import me.mmtr.pdforge.model.DocumentSort;
+import me.mmtr.pdforge.model.MergeFormat;
+import me.mmtr.pdforge.model.MergeJob;
+import me.mmtr.pdforge.model.MergeJobSummary;
+import me.mmtr.pdforge.model.MergeRowError;
+import me.mmtr.pdforge.model.PdfDocument;
+import me.mmtr.pdforge.model.RenderJobStatus;
+import me.mmtr.pdforge.model.RenderJobSummary;
+import me.mmtr.pdforge.model.SearchHit;
 import me.mmtr.pdforge.model.User;
-import me.mmtr.pdforge.repository.UserRepository;
+import me.mmtr.pdforge.service.AssetService;
+import me.mmtr.pdforge.service.DocumentDeletionService;
+import me.mmtr.pdforge.service.DocumentRevisionService;
+import me.mmtr.pdforge.service.DocumentSearchService;
+import me.mmtr.pdforge.service.GridFSFileResource;
+import me.mmtr.pdforge.service.InvalidDatasetException;
+import me.mmtr.pdforge.service.MailMergeService;
 import me.mmtr.pdforge.service.PdfService;
+import me.mmtr.pdforge.service.RenderJobService;
+import me.mmtr.pdforge.service.RenderRejectedException;
 import org.bson.BsonObjectId;
 import org.bson.Document;
 import org.bson.types.ObjectId;
@@ -15,17 +35,22 @@ import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.context.annotation.Bean;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configurers.AbstractHttpConfigurer;
-import org.springframework.security.test.context.support.WithMockUser;
 import org.springframework.security.web.SecurityFilterChain;
 import org.springframework.test.context.bean.override.mockito.MockitoBean;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.OutputStream;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Date;
 import java.util.List;
 import java.util.Optional;
 
 import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
@@ -37,7 +62,19 @@ public class PdfControllerTests {
     private PdfService pdfService;
 
     @MockitoBean
-    private UserRepository userRepository;
+    private RenderJobService renderJobService;
+
+    @MockitoBean
+    private DocumentRevisionService documentRevisionService;
+
+    @MockitoBean
+    private DocumentDeletionService documentDeletionService;
+
+    @MockitoBean
+    private DocumentSearchService documentSearchService;
+
+    @MockitoBean
+    private MailMergeService mailMergeService;
 
     @Autowired
     private MockMvc mockMvc;
@@ -50,35 +87,78 @@ public class PdfControllerTests {
     public void setUp() {
         testUser = new User("1", "test", "secret password");
         testObjectId = new ObjectId("64e8c4f1f5a4c9453a6c2b91");
-
-        when(userRepository.findByUsername("test"))
-                .thenReturn(Optional.of(new User("1", "test", "secret password")));
     }
 
     @Test
-    @WithMockUser(username = "test")
-    public void shouldCorrectlySaveNewDocument() throws Exception {
+    @WithMockUserPrincipal
+    public void shouldCorrectlyEnqueueNewDocument() throws Exception {
         mockMvc.perform(post("/pdf/new")
                         .param("filename", "test.pdf")
                         .param("delta", "some delta")
                         .param("htmlContent", "some html content")
                 ).andExpect(status().is3xxRedirection())
-                .andExpect(redirectedUrl("/home"));
+                .andExpect(redirectedUrl("/pdf/user-documents"));
 
-        verify(pdfService, times(1)).saveAsPdf(
+        verify(renderJobService, times(1)).enqueue(
                 "1",
                 "test.pdf",
                 "some html content",
-                "some delta"
+                "some delta",
+                null
         );
 
-        verify(pdfService, never()).deleteGridFSFile(any(ObjectId.class));
+        verify(pdfService, never()).saveAsPdf(anyString(), anyString(), anyString(), anyString());
+        verify(pdfService, never()).deleteDocument(anyString(), any(ObjectId.class));
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldAnswerTooManyRequestsWithRetryAfterWhenUserLimitIsReached() throws Exception {
+        when(renderJobService.enqueue(anyString(), anyString(), anyString(), anyString(), any()))
+                .thenThrow(new RenderRejectedException(
+                        RenderRejectedException.Reason.TOO_MANY_USER_JOBS, "Too many", Duration.ofSeconds(7)));
+
+        mockMvc.perform(post("/pdf/new")
+                        .param("filename", "test.pdf")
+                        .param("delta", "some delta")
+                        .param("htmlContent", "some html content"))
+                .andExpect(status().isTooManyRequests())
+                .andExpect(header().string("Retry-After", "7"));
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldAnswerServiceUnavailableWhenRenderQueueIsFull() throws Exception {
+        when(renderJobService.enqueue(anyString(), anyString(), anyString(), anyString(), any()))
+                .thenThrow(new RenderRejectedException(
+                        RenderRejectedException.Reason.QUEUE_FULL, "Full", Duration.ofSeconds(30)));
+
+        mockMvc.perform(post("/pdf/new")
+                        .param("filename", "test.pdf")
+                        .param("delta", "some delta")
+                        .param("htmlContent", "some html content"))
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(header().string("Retry-After", "30"));
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldAnswerPayloadTooLargeForOversizedDocuments() throws Exception {
+        when(renderJobService.enqueue(anyString(), anyString(), anyString(), anyString(), any()))
+                .thenThrow(new RenderRejectedException(
+                        RenderRejectedException.Reason.CONTENT_TOO_LARGE, "Too large", null));
 
+        mockMvc.perform(post("/pdf/new")
+                        .param("filename", "test.pdf")
+                        .param("delta", "some delta")
+                        .param("htmlContent", "some html content"))
+                .andExpect(status().isPayloadTooLarge())
+                .andExpect(header().doesNotExist("Retry-After"));
     }
 
     @Test
-    @WithMockUser("test")
-    public void shouldCorrectlyDeleteExistingDocumentAndSaveUpdatedVersion() throws Exception {
+    @WithMockUserPrincipal
+    public void shouldCorrectlyEnqueueUpdatedVersionOfExistingDocument() throws Exception {
 
         mockMvc.perform(post("/pdf/new")
                         .param("filename", "test.pdf")
@@ -86,55 +166,145 @@ public class PdfControllerTests {
                         .param("htmlContent", "some html content")
                         .param("objectId", testObjectId.toString())
                 ).andExpect(status().is3xxRedirection())
-                .andExpect(redirectedUrl("/home"));
+                .andExpect(redirectedUrl("/pdf/user-documents"));
 
-        verify(pdfService, times(1)).saveAsPdf(
+        verify(renderJobService, times(1)).enqueue(
                 "1",
                 "test.pdf",
                 "some html content",
-                "some delta"
+                "some delta",
+                testObjectId.toString()
         );
 
-        verify(pdfService, times(1)).deleteGridFSFile(testObjectId);
+        verify(pdfService, never()).deleteDocument(anyString(), any(ObjectId.class));
     }
 
     @Test
-    @WithMockUser("test")
+    @WithMockUserPrincipal
+    public void shouldCorrectlyReturnUsersRenderJobsAsJson() throws Exception {
+        RenderJobSummary job = new RenderJobSummary(
+                "job-1",
+                "test",
+                RenderJobStatus.PENDING,
+                null,
+                null,
+                Instant.now(),
+                null
+        );
+        when(renderJobService.getUnfinishedOrFailedUserJobs(testUser.getId())).thenReturn(List.of(job));
+
+        mockMvc.perform(get("/pdf/jobs"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].id").value("job-1"))
+                .andExpect(jsonPath("$[0].status").value("PENDING"));
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldReturnNotFoundForUnknownRenderJob() throws Exception {
+        when(renderJobService.getUserJob(testUser.getId(), "missing")).thenReturn(Optional.empty());
+
+        mockMvc.perform(get("/pdf/jobs/missing"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    @WithMockUserPrincipal
     public void shouldCorrectlyReturnListOfUsersSavedDocuments() throws Exception {
-        List<GridFSFile> files = List.of(new GridFSFile(
-                new BsonObjectId(testObjectId),
-                "Test",
-                5L,
-                1048576,
-                Date.from(Instant.now()),
-                new Document()
+        List<PdfDocument> documents = List.of(new PdfDocument(
+                testObjectId.toHexString(),
+                testUser.getId(),
+                "Test.pdf",
+                new ObjectId(),
+                Instant.now(),
+                Instant.now(),
+                1
         ));
-        when(pdfService.getUserGridFSFiles(testUser.getId())).thenReturn(files);
+        when(pdfService.getUserDocumentsPage(testUser.getId(), DocumentSort.NEWEST, null, 20))
+                .thenReturn(new DocumentPage(documents, null));
 
         mockMvc.perform(get("/pdf/user-documents"))
                 .andExpect(status().isOk())
-                .andExpect(model().attribute("files", files))
+                .andExpect(model().attribute("documents", documents))
+                .andExpect(model().attribute("nextCursor", (Object) null))
+                .andExpect(model().attributeExists("jobs"))
+                .andExpect(view().name("user-documents"));
+
+        verify(pdfService, times(1)).getUserDocumentsPage(testUser.getId(), DocumentSort.NEWEST, null, 20);
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldListSearchHitsInsteadOfDocumentsPage() throws Exception {
+        List<SearchHit> hits = List.of(new SearchHit(testObjectId.toString(), "invoice.pdf", "…due in May…", 1.5f));
+        when(documentSearchService.search(testUser.getId(), "invoice")).thenReturn(hits);
+
+        mockMvc.perform(get("/pdf/user-documents").param("q", "invoice"))
+                .andExpect(status().isOk())
+                .andExpect(model().attribute("searchHits", hits))
+                .andExpect(model().attribute("query", "invoice"))
                 .andExpect(view().name("user-documents"));
 
-        verify(pdfService, times(1)).getUserGridFSFiles(testUser.getId());
+        verify(pdfService, never()).getUserDocumentsPage(any(), any(), any(), anyInt());
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldReturnSearchHitsAsJson() throws Exception {
+        when(documentSearchService.search(testUser.getId(), "invoice")).thenReturn(
+                List.of(new SearchHit(testObjectId.toString(), "invoice.pdf", "…due in May…", 1.5f)));
+
+        mockMvc.perform(get("/pdf/search").param("q", "invoice"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].id").value(testObjectId.toString()))
+                .andExpect(jsonPath("$[0].filename").value("invoice.pdf"))
+                .andExpect(jsonPath("$[0].snippet").value("…due in May…"));
     }
 
     @Test
+    @WithMockUserPrincipal
+    public void shouldPassSortAndCursorToNextPageRequest() throws Exception {
+        when(pdfService.getUserDocumentsPage(testUser.getId(), DocumentSort.NAME, "cursor", 20))
+                .thenReturn(new DocumentPage(List.of(), "next-cursor"));
+
+        mockMvc.perform(get("/pdf/user-documents")
+                        .param("sort", "NAME")
+                        .param("cursor", "cursor"))
+                .andExpect(status().isOk())
+                .andExpect(model().attribute("sort", DocumentSort.NAME))
+                .andExpect(model().attribute("nextCursor", "next-cursor"));
+    }
+
+    @Test
+    @WithMockUserPrincipal
     public void shouldCorrectlyDeletePdfDocument() throws Exception {
         mockMvc.perform(post("/pdf/delete")
                         .param("objectId", testObjectId.toString())
                 ).andExpect(status().is3xxRedirection())
                 .andExpect(redirectedUrl("/pdf/user-documents"));
 
-        verify(pdfService, times(1)).deleteGridFSFile(testObjectId);
+        verify(pdfService, times(1)).deleteDocument(testUser.getId(), testObjectId);
+    }
+
+    private GridFSFileResource testPdfResource(byte[] content) {
+        GridFSFile file = new GridFSFile(
+                new BsonObjectId(testObjectId),
+                "test.pdf",
+                content.length,
+                1048576,
+                Date.from(Instant.parse("2025-01-01T10:00:00Z")),
+                new Document()
+        );
+        return new GridFSFileResource(file, () -> new ByteArrayInputStream(content));
     }
 
     @Test
+    @WithMockUserPrincipal
     public void shouldCorrectlyViewPdfDocument() throws Exception {
         String filename = "test.pdf";
         byte[] testPdfBytes = "pdf content".getBytes();
 
-        when(pdfService.getAsByteArray(testObjectId)).thenReturn(testPdfBytes);
+        when(pdfService.getAsResource(testUser.getId(), testObjectId)).thenReturn(testPdfResource(testPdfBytes));
 
         mockMvc.perform(get("/pdf/view")
                         .param("objectId", testObjectId.toString())
@@ -145,10 +315,348 @@ public class PdfControllerTests {
                         "Content-Disposition",
                         "inline; filename=\"" + filename + "\"")
                 )
+                .andExpect(header().string("Accept-Ranges", "bytes"))
+                .andExpect(header().exists("ETag"))
+                .andExpect(header().exists("Last-Modified"))
                 .andExpect(content().bytes(testPdfBytes));
 
-        verify(pdfService, times(1)).getAsByteArray(testObjectId);
+        verify(pdfService, times(1)).getAsResource(testUser.getId(), testObjectId);
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldReturnRequestedByteRangeOfPdfDocument() throws Exception {
+        byte[] testPdfBytes = "pdf content".getBytes();
+
+        when(pdfService.getAsResource(testUser.getId(), testObjectId)).thenReturn(testPdfResource(testPdfBytes));
+
+        mockMvc.perform(get("/pdf/view")
+                        .param("objectId", testObjectId.toString())
+                        .param("filename", "test.pdf")
+                        .header("Range", "bytes=4-10"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string("Content-Range", "bytes 4-10/11"))
+                .andExpect(content().bytes("content".getBytes()));
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldReturnNotModifiedWhenETagMatches() throws Exception {
+        GridFSFileResource resource = testPdfResource("pdf content".getBytes());
+
+        when(pdfService.getAsResource(testUser.getId(), testObjectId)).thenReturn(resource);
+
+        mockMvc.perform(get("/pdf/view")
+                        .param("objectId", testObjectId.toString())
+                        .param("filename", "test.pdf")
+                        .header("If-None-Match", resource.getETag()))
+                .andExpect(status().isNotModified())
+                .andExpect(content().bytes(new byte[0]));
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldReturnNotFoundWhenViewingDocumentOfAnotherUser() throws Exception {
+        when(pdfService.getAsResource(testUser.getId(), testObjectId))
+                .thenThrow(new FileNotFoundException("File not found"));
+
+        mockMvc.perform(get("/pdf/view")
+                        .param("objectId", testObjectId.toString())
+                        .param("filename", "test.pdf"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldListDocumentRevisions() throws Exception {
+        PdfDocument document = new PdfDocument(
+                testObjectId.toHexString(),
+                testUser.getId(),
+                "Test.pdf",
+                new ObjectId(),
+                Instant.now(),
+                Instant.now(),
+                2
+        );
+        DocumentRevision revision = new DocumentRevision();
+        revision.setNumber(1);
+        revision.setFilename("Test.pdf");
+        revision.setCreatedAt(Instant.now());
+
+        when(pdfService.getUserDocument(testUser.getId(), testObjectId)).thenReturn(document);
+        when(documentRevisionService.getRevisions(testUser.getId(), testObjectId)).thenReturn(List.of(revision));
+
+        mockMvc.perform(get("/pdf/revisions").param("objectId", testObjectId.toString()))
+                .andExpect(status().isOk())
+                .andExpect(model().attribute("document", document))
+                .andExpect(model().attribute("revisions", List.of(revision)))
+                .andExpect(view().name("document-revisions"));
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldReturnNotFoundWhenListingRevisionsOfMissingDocument() throws Exception {
+        mockMvc.perform(get("/pdf/revisions").param("objectId", testObjectId.toString()))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldViewDocumentRevision() throws Exception {
+        byte[] testPdfBytes = "old pdf content".getBytes();
+
+        when(pdfService.getRevisionAsResource(testUser.getId(), testObjectId, 1))
+                .thenReturn(testPdfResource(testPdfBytes));
+
+        mockMvc.perform(get("/pdf/revisions/view")
+                        .param("objectId", testObjectId.toString())
+                        .param("revision", "1")
+                        .param("filename", "test.pdf"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Type", "application/pdf"))
+                .andExpect(content().bytes(testPdfBytes));
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldServeThumbnailWithLongLivedCacheHeaders() throws Exception {
+        byte[] thumbnail = "png content".getBytes();
+        when(pdfService.getThumbnail(testUser.getId(), testObjectId)).thenReturn(thumbnail);
+
+        mockMvc.perform(get("/pdf/thumbnail").param("objectId", testObjectId.toString()))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Type", "image/png"))
+                .andExpect(header().string("Cache-Control", "max-age=31536000, private, immutable"))
+                .andExpect(content().bytes(thumbnail));
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldReturnNotFoundForMissingThumbnail() throws Exception {
+        when(pdfService.getThumbnail(testUser.getId(), testObjectId))
+                .thenThrow(new FileNotFoundException("Thumbnail not found"));
+
+        mockMvc.perform(get("/pdf/thumbnail").param("objectId", testObjectId.toString()))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldServeAssetsAsImmutable() throws Exception {
+        String hash = "a".repeat(64);
+        byte[] image = "jpeg content".getBytes();
+        when(pdfService.getUserAsset(testUser.getId(), hash)).thenReturn(new AssetService.Asset("image/jpeg", image));
+
+        mockMvc.perform(get("/pdf/assets/" + hash))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Type", "image/jpeg"))
+                .andExpect(header().string("Cache-Control", "max-age=31536000, private, immutable"))
+                .andExpect(content().bytes(image));
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldReturnNotFoundForMissingOrForeignAsset() throws Exception {
+        mockMvc.perform(get("/pdf/assets/" + "b".repeat(64)))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldEnqueueMergeInSelectedOrder() throws Exception {
+        ObjectId otherObjectId = new ObjectId();
+
+        mockMvc.perform(post("/pdf/merge")
+                        .param("filename", "merged")
+                        .param("objectId", otherObjectId.toString())
+                        .param("objectId", testObjectId.toString()))
+                .andExpect(status().is3xxRedirection())
+                .andExpect(redirectedUrl("/pdf/user-documents"));
+
+        verify(renderJobService).enqueueMerge(
+                testUser.getId(), "merged", List.of(otherObjectId.toString(), testObjectId.toString()));
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldRejectMergeWithoutValidDocuments() throws Exception {
+        mockMvc.perform(post("/pdf/merge")
+                        .param("filename", "merged")
+                        .param("objectId", "not an id"))
+                .andExpect(status().isBadRequest());
+
+        verify(renderJobService, never()).enqueueMerge(any(), any(), any());
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldStreamSelectedDocumentsAsZip() throws Exception {
+        byte[] archiveBytes = "zip content".getBytes();
+
+        doAnswer(invocation -> {
+            invocation.<OutputStream>getArgument(2).write(archiveBytes);
+            return null;
+        }).when(pdfService).exportDocuments(eq(testUser.getId()), eq(List.of(testObjectId)), any(OutputStream.class));
+
+        MvcResult result = mockMvc.perform(get("/pdf/export")
+                        .param("objectId", testObjectId.toString())
+                        .param("objectId", "not an id"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Type", "application/zip"))
+                .andExpect(header().string("Content-Disposition", "attachment; filename=\"pdforge-export.zip\""))
+                .andExpect(content().bytes(archiveBytes));
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldExportAllDocumentsWhenNoneAreSelected() throws Exception {
+        MvcResult result = mockMvc.perform(get("/pdf/export"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk());
+
+        verify(pdfService).exportDocuments(eq(testUser.getId()), eq(List.of()), any(OutputStream.class));
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldRejectExportWithOnlyInvalidIds() throws Exception {
+        mockMvc.perform(get("/pdf/export").param("objectId", "not an id"))
+                .andExpect(status().isBadRequest());
+
+        verify(pdfService, never()).exportDocuments(any(), any(), any());
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldStartBulkDeletionOfSelectedDocuments() throws Exception {
+        ObjectId otherObjectId = new ObjectId();
+
+        mockMvc.perform(post("/pdf/delete/bulk")
+                        .param("objectId", testObjectId.toString())
+                        .param("objectId", otherObjectId.toString())
+                        .param("objectId", "not an id"))
+                .andExpect(status().is3xxRedirection())
+                .andExpect(redirectedUrl("/pdf/user-documents"));
+
+        verify(documentDeletionService).deleteDocuments(testUser.getId(), List.of(testObjectId, otherObjectId));
+        verify(documentDeletionService, never()).deleteAllDocuments(any());
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldStartDeletionOfAllDocuments() throws Exception {
+        mockMvc.perform(post("/pdf/delete/bulk").param("all", "true"))
+                .andExpect(status().is3xxRedirection())
+                .andExpect(redirectedUrl("/pdf/user-documents"));
+
+        verify(documentDeletionService).deleteAllDocuments(testUser.getId());
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldRejectBulkDeletionWithoutValidDocuments() throws Exception {
+        mockMvc.perform(post("/pdf/delete/bulk").param("objectId", "not an id"))
+                .andExpect(status().isBadRequest());
+
+        verify(documentDeletionService, never()).deleteDocuments(any(), any());
+        verify(documentDeletionService, never()).deleteAllDocuments(any());
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldReportDeletionProgress() throws Exception {
+        when(documentDeletionService.getUserJob(testUser.getId(), "job-1")).thenReturn(Optional.of(
+                new DeletionJobSummary("job-1", RenderJobStatus.RUNNING, 300, 120, null, Instant.now(), null)));
+
+        mockMvc.perform(get("/pdf/delete/jobs/job-1"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.status").value("RUNNING"))
+                .andExpect(jsonPath("$.total").value(300))
+                .andExpect(jsonPath("$.deleted").value(120));
+
+        mockMvc.perform(get("/pdf/delete/jobs/missing"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldAcceptMergeBatchAsBackgroundJob() throws Exception {
+        when(mailMergeService.startJob(eq(testUser.getId()), eq(testObjectId), eq("invoice {{name}}"),
+                eq(MergeFormat.CSV), any())).thenReturn(new MergeJob("job-1", testUser.getId(),
+                testObjectId.toHexString(), 1, "invoice {{name}}", MergeFormat.CSV, new ObjectId(),
+                RenderJobStatus.PENDING, 2, 0, 0, null, null, Instant.now(), null));
+
+        mockMvc.perform(post("/pdf/merge-batch")
+                        .param("objectId", testObjectId.toHexString())
+                        .param("filename", "invoice {{name}}")
+                        .contentType("text/csv")
+                        .content("name\nAlice\nBob\n"))
+                .andExpect(status().isAccepted())
+                .andExpect(jsonPath("$.id").value("job-1"))
+                .andExpect(jsonPath("$.status").value("PENDING"))
+                .andExpect(jsonPath("$.total").value(2))
+                .andExpect(jsonPath("$.errors").isEmpty());
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldRejectMergeBatchWithUnsupportedOrInvalidDataset() throws Exception {
+        mockMvc.perform(post("/pdf/merge-batch")
+                        .param("objectId", testObjectId.toHexString())
+                        .contentType("application/pdf")
+                        .content("%PDF"))
+                .andExpect(status().isUnsupportedMediaType());
+
+        when(mailMergeService.startJob(any(), any(), any(), any(), any()))
+                .thenThrow(new InvalidDatasetException("The dataset has no rows"));
+
+        mockMvc.perform(post("/pdf/merge-batch")
+                        .param("objectId", testObjectId.toHexString())
+                        .contentType("application/x-ndjson")
+                        .content("\n"))
+                .andExpect(status().isBadRequest())
+                .andExpect(content().string("The dataset has no rows"));
+
+        doThrow(new RenderRejectedException(
+                RenderRejectedException.Reason.TOO_MANY_USER_JOBS, "Busy", Duration.ofSeconds(30)))
+                .when(mailMergeService).startJob(any(), any(), any(), eq(MergeFormat.CSV), any());
+
+        mockMvc.perform(post("/pdf/merge-batch")
+                        .param("objectId", testObjectId.toHexString())
+                        .contentType("text/csv")
+                        .content("name\nAlice\n"))
+                .andExpect(status().isTooManyRequests())
+                .andExpect(header().string("Retry-After", "30"));
+
+        mockMvc.perform(post("/pdf/merge-batch")
+                        .param("objectId", "not an id")
+                        .contentType("text/csv")
+                        .content("name\nAlice\n"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    @WithMockUserPrincipal
+    public void shouldReportMergeJobProgress() throws Exception {
+        when(mailMergeService.getUserJob(testUser.getId(), "job-1")).thenReturn(Optional.of(
+                new MergeJobSummary("job-1", RenderJobStatus.RUNNING, 10, 4, 1,
+                        List.of(new MergeRowError(3, "No value for placeholder 'amount'")), null,
+                        Instant.now(), null)));
+
+        mockMvc.perform(get("/pdf/merge-batch/jobs/job-1"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.processed").value(4))
+                .andExpect(jsonPath("$.errors[0].row").value(3));
 
+        mockMvc.perform(get("/pdf/merge-batch/jobs/missing"))
+                .andExpect(status().isNotFound());
     }
 
     @TestConfiguration
@@ -0,0 +1,32 @@
+package me.mmtr.pdforge.controller;
+
+import me.mmtr.pdforge.model.UserPrincipal;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.test.context.support.WithSecurityContext;
+import org.springframework.security.test.context.support.WithSecurityContextFactory;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+@Retention(RetentionPolicy.RUNTIME)
+@WithSecurityContext(factory = WithMockUserPrincipal.Factory.class)
+public @interface WithMockUserPrincipal {
+
+    String id() default "1";
+
+    String username() default "test";
+
+    class Factory implements WithSecurityContextFactory<WithMockUserPrincipal> {
+        @Override
+        public SecurityContext createSecurityContext(WithMockUserPrincipal annotation) {
+            UserPrincipal principal = new UserPrincipal(annotation.id(), annotation.username(), "password");
+
+            SecurityContext context = SecurityContextHolder.createEmptyContext();
+            context.setAuthentication(UsernamePasswordAuthenticationToken.authenticated(
+                    principal, principal.getPassword(), principal.getAuthorities()));
+            return context;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package me.mmtr.pdforge.service;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+@SpringBootTest(properties = "pdforge.assets.release-grace=0s")
+public class AssetServiceTests {
+
+    private static final Pattern ASSET_URL = Pattern.compile(Pattern.quote(AssetService.URL_PREFIX) + "[0-9a-f]{64}");
+
+    private final String USER_ID = UUID.randomUUID().toString();
+
+    @Autowired
+    private AssetService assetService;
+
+    @Autowired
+    private PdfService pdfService;
+
+    @Autowired
+    private DocumentSourceService documentSourceService;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private final List<ObjectId> documentIds = new ArrayList<>();
+
+    @AfterEach
+    public void tearDown() {
+        documentIds.forEach(documentId -> pdfService.deleteDocument(USER_ID, documentId));
+    }
+
+    private byte[] png(int seed) throws IOException {
+        BufferedImage image = new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, seed);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", outputStream);
+        return outputStream.toByteArray();
+    }
+
+    private String dataUri(byte[] png) {
+        return "data:image/png;base64," + Base64.getEncoder().encodeToString(png);
+    }
+
+    private String assetUrl(String content) {
+        Matcher matcher = ASSET_URL.matcher(content);
+        Assertions.assertTrue(matcher.find(), "No asset URL in " + content);
+        return matcher.group();
+    }
+
+    @Test
+    public void shouldReplaceEmbeddedImagesWithOneSharedAsset() throws IOException {
+        byte[] png = png(UUID.randomUUID().hashCode());
+        String html = "<p><img src=\"" + dataUri(png) + "\"/></p><p><img src=\"" + dataUri(png) + "\"/></p>";
+        String delta = "{\"ops\":[{\"insert\":{\"image\":\"" + dataUri(png) + "\"}}]}";
+
+        String extractedHtml = assetService.extractImages(html);
+        String extractedDelta = assetService.extractImages(delta);
+
+        String url = assetUrl(extractedDelta);
+        Assertions.assertEquals(
+                "<p><img src=\"" + url + "\"/></p><p><img src=\"" + url + "\"/></p>", extractedHtml);
+        Assertions.assertEquals("{\"ops\":[{\"insert\":{\"image\":\"" + url + "\"}}]}", extractedDelta);
+
+        String hash = url.substring(AssetService.URL_PREFIX.length());
+        Assertions.assertEquals(1, mongoTemplate.getCollection("assets.files")
+                .countDocuments(new org.bson.Document("metadata.hash", hash)));
+
+        AssetService.Asset asset = assetService.getAsset(hash);
+        Assertions.assertEquals("image/png", asset.contentType());
+        Assertions.assertArrayEquals(png, asset.bytes());
+    }
+
+    @Test
+    public void shouldLeaveUnsupportedImagesInline() {
+        String svg = "data:image/svg+xml;base64,"
+                + Base64.getEncoder().encodeToString("<svg/>".getBytes(StandardCharsets.UTF_8));
+        String html = "<p><img src=\"" + svg + "\"/></p>";
+
+        Assertions.assertEquals(html, assetService.extractImages(html));
+        Assertions.assertNull(assetService.store("<svg/>".getBytes(StandardCharsets.UTF_8), "image/svg+xml"));
+    }
+
+    @Test
+    public void shouldNotServeUnknownOrMalformedHashes() {
+        Assertions.assertNull(assetService.getAsset("0".repeat(64)));
+        Assertions.assertNull(assetService.getAsset("../fs.files"));
+    }
+
+    @Test
+    public void shouldSaveDocumentsWithAssetReferencesAndRenderTheirImages() throws IOException {
+        byte[] png = png(UUID.randomUUID().hashCode());
+        ObjectId documentId = pdfService.saveAsPdf(USER_ID, "with image",
+                "<p><img src=\"" + dataUri(png) + "\"/></p>",
+                "{\"ops\":[{\"insert\":{\"image\":\"" + dataUri(png) + "\"}}]}");
+        documentIds.add(documentId);
+
+        String delta = documentSourceService.getDelta(USER_ID, documentId);
+        Assertions.assertFalse(delta.contains("data:image"));
+        assetUrl(delta);
+
+        byte[] pdf;
+        try (InputStream inputStream = pdfService.getAsResource(USER_ID, documentId).getInputStream()) {
+            pdf = inputStream.readAllBytes();
+        }
+        Assertions.assertTrue(new String(pdf, StandardCharsets.ISO_8859_1).contains("/Subtype/Image"));
+    }
+
+    @Test
+    public void shouldServeAssetsOnlyToUsersWhoseDocumentsUseThem() throws IOException {
+        byte[] png = png(UUID.randomUUID().hashCode());
+        ObjectId documentId = pdfService.saveAsPdf(USER_ID, "with image",
+                "<p><img src=\"" + dataUri(png) + "\"/></p>",
+                "{\"ops\":[{\"insert\":{\"image\":\"" + dataUri(png) + "\"}}]}");
+        documentIds.add(documentId);
+        String hash = assetUrl(documentSourceService.getDelta(USER_ID, documentId))
+                .substring(AssetService.URL_PREFIX.length());
+
+        AssetService.Asset asset = pdfService.getUserAsset(USER_ID, hash);
+        Assertions.assertNotNull(asset);
+        Assertions.assertArrayEquals(png, asset.bytes());
+        Assertions.assertNull(pdfService.getUserAsset(UUID.randomUUID().toString(), hash));
+    }
+
+    @Test
+    public void shouldDeleteAssetOnceNoFileUsesIt() throws Exception {
+        byte[] png = png(UUID.randomUUID().hashCode());
+        String html = "<p><img src=\"" + dataUri(png) + "\"/></p>";
+        ObjectId documentId = pdfService.saveAsPdf(USER_ID, "first", html, "d1");
+        ObjectId otherDocumentId = pdfService.saveAsPdf(USER_ID, "second", html + "<p>other</p>", "d2");
+        String hash = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(png));
+
+        pdfService.deleteDocument(USER_ID, documentId);
+        Assertions.assertNotNull(assetService.getAsset(hash));
+
+        pdfService.deleteDocument(USER_ID, otherDocumentId);
+        Assertions.assertNull(assetService.getAsset(hash));
+        Assertions.assertEquals(0, mongoTemplate.getCollection("assets.files")
+                .countDocuments(new org.bson.Document("metadata.hash", hash)));
+    }
+
+    @Test
+    public void shouldKeepAssetWhileRevisionsStillUseIt() throws Exception {
+        byte[] png = png(UUID.randomUUID().hashCode());
+        ObjectId documentId = pdfService.saveAsPdf(USER_ID, "revised", "<p><img src=\"" + dataUri(png) + "\"/></p>", "d1");
+        documentIds.add(documentId);
+        String hash = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(png));
+
+        pdfService.updatePdf(USER_ID, documentId, "revised", "<p>No image any more</p>", "d2");
+        // As if the cached PDF of the first revision had been released.
+        mongoTemplate.getCollection("assets.files").updateOne(
+                new org.bson.Document("metadata.hash", hash),
+                new org.bson.Document("$set", new org.bson.Document("metadata.refCount", 0)));
+
+        assetService.deleteUnreferencedAssets();
+        Assertions.assertNotNull(assetService.getAsset(hash));
+
+        pdfService.deleteDocument(USER_ID, documentId);
+        assetService.deleteUnreferencedAssets();
+        Assertions.assertNull(assetService.getAsset(hash));
+    }
+}
@@ -0,0 +1,114 @@
+package me.mmtr.pdforge.service;
+
+import com.mongodb.client.gridfs.GridFSBuckets;
+import me.mmtr.pdforge.model.DeletionJob;
+import me.mmtr.pdforge.model.DeletionJobSummary;
+import me.mmtr.pdforge.model.DocumentSort;
+import me.mmtr.pdforge.model.RenderJobStatus;
+import me.mmtr.pdforge.repository.DeletionJobRepository;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+@SpringBootTest(properties = "pdforge.documents.delete-batch-size=2")
+public class DocumentDeletionServiceTests {
+
+    private final String USER_ID = UUID.randomUUID().toString();
+
+    @Autowired
+    private DocumentDeletionService documentDeletionService;
+
+    @Autowired
+    private DeletionJobRepository deletionJobRepository;
+
+    @Autowired
+    private PdfService pdfService;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private final List<ObjectId> documentIds = new ArrayList<>();
+
+    @BeforeEach
+    public void setUp() {
+        for (int i = 0; i < 5; i++) {
+            documentIds.add(pdfService.saveAsPdf(USER_ID, "document " + i, "<p>Document " + i + "</p>", "delta"));
+        }
+    }
+
+    @AfterEach
+    public void tearDown() {
+        documentIds.forEach(documentId -> pdfService.deleteDocument(USER_ID, documentId));
+        deletionJobRepository.findSummariesByUserIdAndStatusIn(USER_ID, List.of(RenderJobStatus.values()))
+                .forEach(job -> deletionJobRepository.deleteById(job.getId()));
+    }
+
+    private DeletionJobSummary awaitFinished(String jobId) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            DeletionJobSummary job = documentDeletionService.getUserJob(USER_ID, jobId).orElseThrow();
+            if (job.status() == RenderJobStatus.DONE || job.status() == RenderJobStatus.FAILED) {
+                return job;
+            }
+            Thread.sleep(100);
+        }
+        return Assertions.fail("Deletion job did not finish in time");
+    }
+
+    @Test
+    public void shouldDeleteSelectedDocumentsInBackground() throws InterruptedException {
+        DeletionJob job = documentDeletionService.deleteDocuments(USER_ID, documentIds.subList(0, 3));
+        Assertions.assertEquals(3, job.getTotal());
+
+        DeletionJobSummary finishedJob = awaitFinished(job.getId());
+
+        Assertions.assertEquals(RenderJobStatus.DONE, finishedJob.status());
+        Assertions.assertEquals(3, finishedJob.deleted());
+        Assertions.assertNull(pdfService.getUserDocument(USER_ID, documentIds.get(0)));
+        Assertions.assertNull(pdfService.getUserDocument(USER_ID, documentIds.get(2)));
+        Assertions.assertNotNull(pdfService.getUserDocument(USER_ID, documentIds.get(3)));
+    }
+
+    @Test
+    public void shouldDeleteAllDocumentsOfUser() throws InterruptedException {
+        DeletionJob job = documentDeletionService.deleteAllDocuments(USER_ID);
+
+        DeletionJobSummary finishedJob = awaitFinished(job.getId());
+
+        Assertions.assertEquals(RenderJobStatus.DONE, finishedJob.status());
+        Assertions.assertEquals(5, finishedJob.total());
+        Assertions.assertEquals(5, finishedJob.deleted());
+        Assertions.assertTrue(pdfService.getUserDocumentsPage(USER_ID, DocumentSort.NEWEST, null, 10)
+                .documents().isEmpty());
+        Assertions.assertNull(GridFSBuckets.create(mongoTemplate.getDb())
+                .find(new Document("metadata.userId", USER_ID)).first());
+    }
+
+    @Test
+    public void shouldNotDeleteDocumentsOfAnotherUser() throws InterruptedException {
+        String otherUserId = UUID.randomUUID().toString();
+        DeletionJob job = documentDeletionService.deleteDocuments(otherUserId, documentIds);
+        Assertions.assertEquals(0, job.getTotal());
+
+        for (int i = 0; i < 100; i++) {
+            if (documentDeletionService.getUserJob(otherUserId, job.getId()).orElseThrow().status()
+                    == RenderJobStatus.DONE) {
+                break;
+            }
+            Thread.sleep(100);
+        }
+
+        Assertions.assertNotNull(pdfService.getUserDocument(USER_ID, documentIds.getFirst()));
+        Assertions.assertTrue(documentDeletionService.getUserJob(USER_ID, job.getId()).isEmpty());
+        deletionJobRepository.deleteById(job.getId());
+    }
+}
@@ -0,0 +1,111 @@
+package me.mmtr.pdforge.service;
+
+import me.mmtr.pdforge.model.DocumentRevision;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.List;
+
+@SpringBootTest(properties = "pdforge.revisions.snapshot-interval=3")
+public class DocumentRevisionServiceTests {
+
+    private final String USER_ID = "1";
+    private final ObjectId documentId = new ObjectId();
+
+    @Autowired
+    private DocumentRevisionService documentRevisionService;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @AfterEach
+    public void tearDown() {
+        documentRevisionService.deleteRevisions(documentId);
+    }
+
+    private String delta(String text) {
+        return "{\"ops\":[{\"insert\":\"" + text + "\\n\"}]}";
+    }
+
+    private DocumentRevision findStoredRevision(long number) {
+        return mongoTemplate.findOne(
+                Query.query(Criteria.where("documentId").is(documentId.toHexString()).and("number").is(number)),
+                DocumentRevision.class
+        );
+    }
+
+    @Test
+    public void shouldReconstructEveryRevision() {
+        String base = "Lorem ipsum dolor sit amet. ".repeat(200);
+        for (int i = 1; i <= 7; i++) {
+            documentRevisionService.recordRevision(
+                    documentId, USER_ID, i, "test.pdf", delta(base + i), "<p>" + base + i + "</p>");
+        }
+
+        for (int i = 1; i <= 7; i++) {
+            DocumentRevisionService.RevisionContent content =
+                    documentRevisionService.getRevisionContent(USER_ID, documentId, i);
+
+            Assertions.assertEquals(delta(base + i), content.delta());
+            Assertions.assertEquals("<p>" + base + i + "</p>", content.html());
+        }
+    }
+
+    @Test
+    public void shouldStoreDiffsBetweenSnapshots() {
+        String base = "Lorem ipsum dolor sit amet. ".repeat(200);
+        for (int i = 1; i <= 4; i++) {
+            documentRevisionService.recordRevision(
+                    documentId, USER_ID, i, "test.pdf", delta(base + i), "<p>" + base + i + "</p>");
+        }
+
+        Assertions.assertTrue(findStoredRevision(1).isSnapshot());
+        Assertions.assertFalse(findStoredRevision(2).isSnapshot());
+        Assertions.assertFalse(findStoredRevision(3).isSnapshot());
+        Assertions.assertTrue(findStoredRevision(4).isSnapshot());
+
+        DocumentRevision diff = findStoredRevision(2);
+        Assertions.assertTrue(diff.getDelta().getOriginalLength() <= 1);
+        Assertions.assertTrue(diff.getHtml().getOriginalLength() <= 1);
+    }
+
+    @Test
+    public void shouldKeepSurrogatePairsIntact() {
+        documentRevisionService.recordRevision(documentId, USER_ID, 1, "test.pdf", delta("\uD83D\uDE00"), "<p></p>");
+        documentRevisionService.recordRevision(documentId, USER_ID, 2, "test.pdf", delta("\uD83D\uDE01"), "<p></p>");
+
+        Assertions.assertEquals(
+                delta("\uD83D\uDE01"),
+                documentRevisionService.getRevisionContent(USER_ID, documentId, 2).delta()
+        );
+    }
+
+    @Test
+    public void shouldListRevisionsNewestFirstWithoutContent() {
+        documentRevisionService.recordRevision(documentId, USER_ID, 1, "first.pdf", delta("a"), "<p>a</p>");
+        documentRevisionService.recordRevision(documentId, USER_ID, 2, "second.pdf", delta("b"), "<p>b</p>");
+
+        List<DocumentRevision> revisions = documentRevisionService.getRevisions(USER_ID, documentId);
+
+        Assertions.assertEquals(List.of(2L, 1L), revisions.stream().map(DocumentRevision::getNumber).toList());
+        Assertions.assertNull(revisions.getFirst().getDelta());
+        Assertions.assertTrue(documentRevisionService.getRevisions("2", documentId).isEmpty());
+    }
+
+    @Test
+    public void shouldAttachFileOnlyOnce() {
+        documentRevisionService.recordRevision(documentId, USER_ID, 1, "test.pdf", delta("a"), "<p>a</p>");
+        ObjectId fileId = new ObjectId();
+
+        Assertions.assertTrue(documentRevisionService.attachFile(documentId, 1, fileId));
+        Assertions.assertFalse(documentRevisionService.attachFile(documentId, 1, new ObjectId()));
+        Assertions.assertEquals(List.of(fileId), documentRevisionService.deleteRevisions(documentId));
+    }
+}
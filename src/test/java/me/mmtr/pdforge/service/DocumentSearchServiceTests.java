@@ -0,0 +1,125 @@
+package me.mmtr.pdforge.service;
+
+import me.mmtr.pdforge.model.SearchHit;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+@SpringBootTest
+public class DocumentSearchServiceTests {
+
+    private final String USER_ID = UUID.randomUUID().toString();
+    private final String OTHER_USER_ID = UUID.randomUUID().toString();
+
+    @Autowired
+    private DocumentSearchService documentSearchService;
+
+    @Autowired
+    private PdfService pdfService;
+
+    private final List<ObjectId> userDocumentIds = new ArrayList<>();
+    private final List<ObjectId> otherUserDocumentIds = new ArrayList<>();
+
+    @AfterEach
+    public void tearDown() {
+        userDocumentIds.forEach(documentId -> pdfService.deleteDocument(USER_ID, documentId));
+        otherUserDocumentIds.forEach(documentId -> pdfService.deleteDocument(OTHER_USER_ID, documentId));
+    }
+
+    private ObjectId save(String userId, String filename, String html) {
+        ObjectId documentId = pdfService.saveAsPdf(userId, filename, html, "delta");
+        (userId.equals(USER_ID) ? userDocumentIds : otherUserDocumentIds).add(documentId);
+        return documentId;
+    }
+
+    @Test
+    public void shouldFindSavedDocumentWithSnippetAroundMatch() {
+        ObjectId documentId = save(USER_ID, "report",
+                "<p>" + "Filler sentence without the word. ".repeat(10) + "The <b>quarterly</b> numbers look good.</p>");
+
+        List<SearchHit> hits = documentSearchService.search(USER_ID, "quarterly");
+
+        Assertions.assertEquals(1, hits.size());
+        Assertions.assertEquals(documentId.toHexString(), hits.getFirst().id());
+        Assertions.assertEquals("report.pdf", hits.getFirst().filename());
+        Assertions.assertTrue(hits.getFirst().snippet().startsWith("…"));
+        Assertions.assertTrue(hits.getFirst().snippet().contains("The quarterly numbers look good."));
+    }
+
+    @Test
+    public void shouldRankFilenameMatchesFirst() {
+        ObjectId bodyMatch = save(USER_ID, "notes", "<p>Remember the budget meeting.</p>");
+        ObjectId filenameMatch = save(USER_ID, "budget", "<p>Rent, food and travel.</p>");
+
+        List<SearchHit> hits = documentSearchService.search(USER_ID, "budget");
+
+        Assertions.assertEquals(
+                List.of(filenameMatch.toHexString(), bodyMatch.toHexString()),
+                hits.stream().map(SearchHit::id).toList()
+        );
+    }
+
+    @Test
+    public void shouldIndexDocumentsSavedBeforeSearchExisted() {
+        ObjectId documentId = save(USER_ID, "legacy", "<p>An old note about walnuts.</p>");
+        documentSearchService.deleteText(documentId);
+        Assertions.assertTrue(documentSearchService.search(USER_ID, "walnuts").isEmpty());
+
+        documentSearchService.indexUnsearchableDocuments();
+
+        List<SearchHit> hits = documentSearchService.search(USER_ID, "walnuts");
+        Assertions.assertEquals(1, hits.size());
+        Assertions.assertEquals(documentId.toHexString(), hits.getFirst().id());
+    }
+
+    @Test
+    public void shouldKeepIndexInSyncWithUpdatesAndDeletes() throws Exception {
+        ObjectId documentId = save(USER_ID, "draft", "<p>First version mentions apples.</p>");
+
+        pdfService.updatePdf(USER_ID, documentId, "draft", "<p>Second version mentions pears.</p>", "delta 2");
+
+        Assertions.assertTrue(documentSearchService.search(USER_ID, "apples").isEmpty());
+        Assertions.assertEquals(1, documentSearchService.search(USER_ID, "pears").size());
+
+        pdfService.deleteDocument(USER_ID, documentId);
+
+        Assertions.assertTrue(documentSearchService.search(USER_ID, "pears").isEmpty());
+    }
+
+    @Test
+    public void shouldIndexMergedDocumentsWithTheirSourcesText() throws Exception {
+        ObjectId first = save(USER_ID, "first", "<p>Chapter about lighthouses.</p>");
+        ObjectId second = save(USER_ID, "second", "<p>Chapter about windmills.</p>");
+
+        ObjectId merged = pdfService.mergeDocuments(USER_ID, "book", List.of(first, second));
+        userDocumentIds.add(merged);
+
+        List<String> hitIds = documentSearchService.search(USER_ID, "windmills").stream()
+                .map(SearchHit::id)
+                .toList();
+        Assertions.assertTrue(hitIds.contains(merged.toHexString()));
+        Assertions.assertTrue(hitIds.contains(second.toHexString()));
+    }
+
+    @Test
+    public void shouldNotReturnDocumentsOfOtherUsers() {
+        save(OTHER_USER_ID, "secret", "<p>Confidential zeppelin plans.</p>");
+
+        Assertions.assertTrue(documentSearchService.search(USER_ID, "zeppelin").isEmpty());
+        Assertions.assertEquals(1, documentSearchService.search(OTHER_USER_ID, "zeppelin").size());
+    }
+
+    @Test
+    public void shouldReturnNothingForBlankQuery() {
+        save(USER_ID, "anything", "<p>Some text.</p>");
+
+        Assertions.assertTrue(documentSearchService.search(USER_ID, "  ").isEmpty());
+    }
+}
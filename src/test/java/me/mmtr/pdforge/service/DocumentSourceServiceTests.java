@@ -0,0 +1,51 @@
+package me.mmtr.pdforge.service;
+
+import me.mmtr.pdforge.model.DocumentSource;
+import me.mmtr.pdforge.repository.DocumentSourceRepository;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+@SpringBootTest
+public class DocumentSourceServiceTests {
+
+    private final String USER_ID = "1";
+    private final ObjectId documentId = new ObjectId();
+
+    @Autowired
+    private DocumentSourceService documentSourceService;
+
+    @Autowired
+    private DocumentSourceRepository documentSourceRepository;
+
+    @AfterEach
+    public void tearDown() {
+        documentSourceService.deleteDelta(documentId);
+    }
+
+    @Test
+    public void shouldStoreDeltaCompressed() {
+        String delta = "{\"ops\":[{\"insert\":\"" + "Lorem ipsum dolor sit amet. ".repeat(500) + "\"}]}";
+
+        documentSourceService.saveDelta(documentId, USER_ID, delta);
+
+        DocumentSource source = documentSourceRepository.findById(documentId.toHexString()).orElseThrow();
+        Assertions.assertTrue(source.getDelta().length < delta.length() / 10);
+        Assertions.assertEquals(delta, documentSourceService.getDelta(USER_ID, documentId));
+    }
+
+    @Test
+    public void shouldNotReturnDeltaOfAnotherUser() {
+        documentSourceService.saveDelta(documentId, USER_ID, "some delta");
+
+        Assertions.assertNull(documentSourceService.getDelta("2", documentId));
+    }
+
+    @Test
+    public void shouldReturnNullWhenDeltaDoesNotExist() {
+        Assertions.assertNull(documentSourceService.getDelta(USER_ID, new ObjectId()));
+    }
+}
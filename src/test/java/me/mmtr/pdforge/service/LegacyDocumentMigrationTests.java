@@ -0,0 +1,103 @@
+package me.mmtr.pdforge.service;
+
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import me.mmtr.pdforge.model.PdfDocument;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.time.Instant;
+import java.util.UUID;
+
+@SpringBootTest
+public class LegacyDocumentMigrationTests {
+
+    private final String USER_ID = UUID.randomUUID().toString();
+    private ObjectId legacyFileId;
+
+    @Autowired
+    private LegacyDocumentMigration legacyDocumentMigration;
+
+    @Autowired
+    private PdfService pdfService;
+
+    @Autowired
+    private DocumentSourceService documentSourceService;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @AfterEach
+    public void tearDown() {
+        pdfService.deleteDocument(USER_ID, legacyFileId);
+    }
+
+    @Test
+    public void shouldLinkLegacyFileToDocumentWithSameId() {
+        GridFSBucket gridFSBucket = GridFSBuckets.create(mongoTemplate.getDb());
+        legacyFileId = gridFSBucket.uploadFromStream(
+                "legacy.pdf",
+                new ByteArrayInputStream("pdf content".getBytes()),
+                new GridFSUploadOptions().metadata(new Document()
+                        .append("type", "PDF file")
+                        .append("delta", "legacy delta")
+                        .append("userId", USER_ID))
+        );
+
+        legacyDocumentMigration.linkLegacyFiles();
+
+        PdfDocument document = pdfService.getUserDocument(USER_ID, legacyFileId);
+        Assertions.assertNotNull(document);
+        Assertions.assertEquals("legacy.pdf", document.getFilename());
+        Assertions.assertEquals(legacyFileId, document.getFileId());
+        Assertions.assertEquals("legacy delta", documentSourceService.getDelta(USER_ID, legacyFileId));
+
+        GridFSFile file = gridFSBucket.find(new Document("_id", legacyFileId)).first();
+        Assertions.assertNotNull(file);
+        Assertions.assertNotNull(file.getMetadata());
+        Assertions.assertFalse(file.getMetadata().containsKey("delta"));
+        Assertions.assertEquals(1, file.getMetadata().getInteger("refCount"));
+        Assertions.assertTrue(file.getMetadata().getBoolean("documentLinked"));
+    }
+
+    @Test
+    public void shouldKeepReferenceCountOfAlreadyLinkedDocuments() {
+        GridFSBucket gridFSBucket = GridFSBuckets.create(mongoTemplate.getDb());
+        legacyFileId = gridFSBucket.uploadFromStream(
+                "shared.pdf",
+                new ByteArrayInputStream("pdf content".getBytes()),
+                new GridFSUploadOptions().metadata(new Document()
+                        .append("type", "PDF file")
+                        .append("userId", USER_ID)
+                        .append("refCount", 2))
+        );
+        Instant now = Instant.now();
+        mongoTemplate.insert(new PdfDocument(
+                legacyFileId.toHexString(), USER_ID, "shared.pdf", legacyFileId, now, now, 0));
+
+        legacyDocumentMigration.linkLegacyFiles();
+
+        GridFSFile file = gridFSBucket.find(new Document("_id", legacyFileId)).first();
+        Assertions.assertNotNull(file);
+        Assertions.assertNotNull(file.getMetadata());
+        Assertions.assertEquals(2, file.getMetadata().getInteger("refCount"));
+        Assertions.assertTrue(file.getMetadata().getBoolean("documentLinked"));
+    }
+
+    @Test
+    public void shouldRecordCompletedMigration() {
+        legacyDocumentMigration.migrate();
+
+        Assertions.assertNotNull(mongoTemplate.getCollection("migrations")
+                .find(new Document("_id", "legacy-document-links")).first());
+    }
+}
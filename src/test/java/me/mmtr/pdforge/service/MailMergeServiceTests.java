@@ -0,0 +1,245 @@
+package me.mmtr.pdforge.service;
+
+import me.mmtr.pdforge.model.DocumentSort;
+import me.mmtr.pdforge.model.MergeFormat;
+import me.mmtr.pdforge.model.MergeJob;
+import me.mmtr.pdforge.model.MergeJobSummary;
+import me.mmtr.pdforge.model.PdfDocument;
+import me.mmtr.pdforge.model.RenderJobStatus;
+import me.mmtr.pdforge.repository.MergeJobRepository;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+@SpringBootTest
+public class MailMergeServiceTests {
+
+    private final String USER_ID = UUID.randomUUID().toString();
+
+    @Autowired
+    private MailMergeService mailMergeService;
+
+    @Autowired
+    private MergeJobRepository mergeJobRepository;
+
+    @Autowired
+    private PdfService pdfService;
+
+    @Autowired
+    private DocumentSourceService documentSourceService;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private ObjectId templateId;
+
+    @BeforeEach
+    public void setUp() {
+        templateId = pdfService.saveAsPdf(USER_ID, "invoice",
+                "<p>Invoice for {{name}}: {{amount}}</p>",
+                "{\"ops\":[{\"insert\":\"Invoice for {{name}}: {{amount}}\\n\"}]}");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        pdfService.getUserDocumentsPage(USER_ID, DocumentSort.NEWEST, null, 100).documents()
+                .forEach(document -> pdfService.deleteDocument(USER_ID, new ObjectId(document.getId())));
+        mergeJobRepository.deleteAll(mergeJobRepository.findAll().stream()
+                .filter(job -> USER_ID.equals(job.getUserId()))
+                .toList());
+    }
+
+    private InputStream dataset(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private MergeJobSummary awaitFinished(String jobId) throws InterruptedException {
+        for (int i = 0; i < 200; i++) {
+            MergeJobSummary job = mailMergeService.getUserJob(USER_ID, jobId).orElseThrow();
+            if (job.status() == RenderJobStatus.DONE || job.status() == RenderJobStatus.FAILED) {
+                return job;
+            }
+            Thread.sleep(100);
+        }
+        return Assertions.fail("Merge job did not finish in time");
+    }
+
+    @Test
+    public void shouldStoreOneDocumentPerRowAndReportFailedRows() throws Exception {
+        MergeJob job = mailMergeService.startJob(USER_ID, templateId, "invoice {{name}}", MergeFormat.CSV,
+                dataset("name,amount\nAlice,\"1,200 €\"\nBob & Co,<30>\nCarol\n"));
+        Assertions.assertEquals(3, job.getTotal());
+
+        MergeJobSummary finishedJob = awaitFinished(job.getId());
+
+        Assertions.assertEquals(RenderJobStatus.DONE, finishedJob.status());
+        Assertions.assertEquals(3, finishedJob.processed());
+        Assertions.assertEquals(1, finishedJob.failed());
+        Assertions.assertEquals(3, finishedJob.errors().getFirst().getRow());
+        Assertions.assertEquals("No value for placeholder 'amount'", finishedJob.errors().getFirst().getMessage());
+
+        Map<String, ObjectId> documentIds = new HashMap<>();
+        for (PdfDocument document : pdfService.getUserDocumentsPage(USER_ID, DocumentSort.NEWEST, null, 10)
+                .documents()) {
+            documentIds.put(document.getFilename(), new ObjectId(document.getId()));
+        }
+        Assertions.assertEquals(Set.of("invoice.pdf", "invoice Alice.pdf", "invoice Bob & Co.pdf"),
+                documentIds.keySet());
+        Assertions.assertEquals("{\"ops\":[{\"insert\":\"Invoice for Alice: 1,200 €\\n\"}]}",
+                documentSourceService.getDelta(USER_ID, documentIds.get("invoice Alice.pdf")));
+    }
+
+    @Test
+    public void shouldStreamRowsIntoZipWithErrorReport() throws Exception {
+        MailMergeService.ZipMerge merge = mailMergeService.prepareZip(USER_ID, templateId, null,
+                MergeFormat.JSON_LINES,
+                dataset("{\"name\":\"Alice\",\"amount\":10}\n{\"name\":\"Bob\",\"amount\":20}\nnot json\n"));
+        Assertions.assertEquals(3, merge.getRows());
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        mailMergeService.writeZip(merge, outputStream);
+
+        Map<String, byte[]> entries = new HashMap<>();
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(outputStream.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                entries.put(entry.getName(), zip.readAllBytes());
+            }
+        }
+
+        Assertions.assertEquals(Set.of("invoice-1.pdf", "invoice-2.pdf", "errors.csv"), entries.keySet());
+        Assertions.assertTrue(new String(entries.get("invoice-1.pdf"), StandardCharsets.ISO_8859_1).startsWith("%PDF"));
+        Assertions.assertTrue(
+                new String(entries.get("errors.csv"), StandardCharsets.UTF_8).startsWith("row,error\r\n3,"));
+        Assertions.assertEquals(1, pdfService.getUserDocumentsPage(USER_ID, DocumentSort.NEWEST, null, 10)
+                .documents().size());
+    }
+
+    @Test
+    public void shouldRejectCsvWithoutAColumnForEveryPlaceholder() {
+        InvalidDatasetException failure = Assertions.assertThrows(InvalidDatasetException.class, () ->
+                mailMergeService.startJob(USER_ID, templateId, null, MergeFormat.CSV, dataset("name\nAlice\n")));
+
+        Assertions.assertEquals("The dataset has no column for placeholder 'amount'", failure.getMessage());
+        Assertions.assertTrue(mergeJobRepository.findAll().stream().noneMatch(job -> USER_ID.equals(job.getUserId())));
+    }
+
+    @Test
+    public void shouldRejectEmptyDatasets() {
+        Assertions.assertThrows(InvalidDatasetException.class, () ->
+                mailMergeService.prepareZip(USER_ID, templateId, null, MergeFormat.JSON_LINES, dataset("\n\n")));
+    }
+
+    @Test
+    public void shouldNotMergeTemplatesOfOtherUsers() {
+        Assertions.assertThrows(FileNotFoundException.class, () ->
+                mailMergeService.startJob(UUID.randomUUID().toString(), templateId, null, MergeFormat.CSV,
+                        dataset("name,amount\nAlice,1\n")));
+    }
+
+    @Test
+    public void shouldKeepDocumentsMergedInParallelIndependent() throws IOException, InterruptedException {
+        StringBuilder rows = new StringBuilder("name,amount\n");
+        for (int i = 1; i <= 12; i++) {
+            rows.append("customer ").append(i).append(',').append(i * 100).append('\n');
+        }
+
+        MergeJob job = mailMergeService.startJob(USER_ID, templateId, null, MergeFormat.CSV, dataset(rows.toString()));
+        MergeJobSummary finishedJob = awaitFinished(job.getId());
+
+        Assertions.assertEquals(12, finishedJob.processed());
+        Assertions.assertEquals(0, finishedJob.failed());
+
+        List<PdfDocument> documents =
+                pdfService.getUserDocumentsPage(USER_ID, DocumentSort.NEWEST, null, 100).documents();
+        Assertions.assertEquals(13, documents.size());
+        for (PdfDocument document : documents) {
+            if (!document.getFilename().equals("invoice.pdf")) {
+                long row = Long.parseLong(document.getFilename().replaceAll("\\D", ""));
+                Assertions.assertEquals(
+                        "{\"ops\":[{\"insert\":\"Invoice for customer " + row + ": " + row * 100 + "\\n\"}]}",
+                        documentSourceService.getDelta(USER_ID, new ObjectId(document.getId())));
+            }
+        }
+    }
+
+    @Test
+    public void shouldRejectMergesWhileAnotherOneIsUnfinished() {
+        MergeJob running = new MergeJob();
+        running.setUserId(USER_ID);
+        running.setStatus(RenderJobStatus.RUNNING);
+        running.setCreatedAt(Instant.now());
+        mergeJobRepository.save(running);
+
+        RenderRejectedException failure = Assertions.assertThrows(RenderRejectedException.class, () ->
+                mailMergeService.startJob(USER_ID, templateId, null, MergeFormat.CSV,
+                        dataset("name,amount\nAlice,1\n")));
+        Assertions.assertEquals(RenderRejectedException.Reason.TOO_MANY_USER_JOBS, failure.getReason());
+        Assertions.assertNotNull(failure.getRetryAfter());
+
+        Assertions.assertThrows(RenderRejectedException.class, () ->
+                mailMergeService.prepareZip(USER_ID, templateId, null, MergeFormat.CSV,
+                        dataset("name,amount\nAlice,1\n")));
+    }
+
+    @Test
+    public void shouldSendLargeDatasetsToTheBackgroundJobInsteadOfAZip() {
+        StringBuilder rows = new StringBuilder("name,amount\n");
+        for (int i = 1; i <= 201; i++) {
+            rows.append("customer ").append(i).append(',').append(i).append('\n');
+        }
+
+        InvalidDatasetException failure = Assertions.assertThrows(InvalidDatasetException.class, () ->
+                mailMergeService.prepareZip(USER_ID, templateId, null, MergeFormat.CSV, dataset(rows.toString())));
+        Assertions.assertTrue(failure.getMessage().contains("without output=zip"));
+
+        // The rejected archive no longer counts as a running merge.
+        Assertions.assertDoesNotThrow(() -> mailMergeService.writeZip(
+                mailMergeService.prepareZip(USER_ID, templateId, null, MergeFormat.CSV,
+                        dataset("name,amount\nAlice,1\n")),
+                new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void shouldDiscardJobsWhoseUploadWasInterrupted() {
+        ObjectId datasetFileId = new ObjectId();
+        mongoTemplate.getCollection("merge_datasets.chunks").insertOne(new Document("files_id", datasetFileId)
+                .append("n", 0)
+                .append("data", new Binary("name\n".getBytes(StandardCharsets.UTF_8))));
+
+        MergeJob uploading = new MergeJob();
+        uploading.setUserId(USER_ID);
+        uploading.setDatasetFileId(datasetFileId);
+        uploading.setStatus(RenderJobStatus.UPLOADING);
+        uploading.setCreatedAt(Instant.now());
+        String jobId = mergeJobRepository.save(uploading).getId();
+
+        mailMergeService.resumeUnfinishedJobs();
+
+        Assertions.assertTrue(mergeJobRepository.findById(jobId).isEmpty());
+        Assertions.assertEquals(0, mongoTemplate.getCollection("merge_datasets.chunks")
+                .countDocuments(new Document("files_id", datasetFileId)));
+    }
+}
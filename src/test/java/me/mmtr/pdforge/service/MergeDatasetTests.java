@@ -0,0 +1,73 @@
+package me.mmtr.pdforge.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import me.mmtr.pdforge.model.MergeFormat;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+public class MergeDatasetTests {
+
+    private MergeDataset open(MergeFormat format, String content) throws IOException {
+        return MergeDataset.open(
+                new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), format, new ObjectMapper());
+    }
+
+    @Test
+    public void shouldReadQuotedCsvFields() throws IOException {
+        try (MergeDataset dataset = open(MergeFormat.CSV,
+                "\uFEFFname,address\r\n\"Doe, Jane\",\"1 Main St\nSpringfield\"\r\n\"Say \"\"hi\"\"\",\r\n\nBob\n")) {
+            Assertions.assertEquals(List.of("name", "address"), dataset.columns());
+
+            Assertions.assertEquals(Map.of("name", "Doe, Jane", "address", "1 Main St\nSpringfield"),
+                    dataset.next().values());
+            Assertions.assertEquals(Map.of("name", "Say \"hi\"", "address", ""), dataset.next().values());
+
+            MergeDataset.Row shortRow = dataset.next();
+            Assertions.assertEquals(3, shortRow.number());
+            Assertions.assertEquals(Map.of("name", "Bob"), shortRow.values());
+            Assertions.assertNull(dataset.next());
+        }
+    }
+
+    @Test
+    public void shouldReportRowsWithTooManyFields() throws IOException {
+        try (MergeDataset dataset = open(MergeFormat.CSV, "name\nAlice,extra\n")) {
+            Assertions.assertEquals("Row has 2 fields but the header has 1", dataset.next().error());
+        }
+    }
+
+    @Test
+    public void shouldRejectUnterminatedQuotes() throws IOException {
+        try (MergeDataset dataset = open(MergeFormat.CSV, "name\n\"Alice\n")) {
+            Assertions.assertThrows(InvalidDatasetException.class, dataset::next);
+            Assertions.assertNull(dataset.next());
+        }
+    }
+
+    @Test
+    public void shouldRejectDuplicateColumns() {
+        Assertions.assertThrows(InvalidDatasetException.class, () -> open(MergeFormat.CSV, "name,name\n"));
+    }
+
+    @Test
+    public void shouldReadJsonLinesAndReportInvalidOnes() throws IOException {
+        try (MergeDataset dataset = open(MergeFormat.JSON_LINES,
+                "{\"name\":\"Alice\",\"amount\":12.5,\"note\":null}\n\n[1]\n{broken\n")) {
+            Assertions.assertNull(dataset.columns());
+            Assertions.assertEquals(Map.of("name", "Alice", "amount", "12.5", "note", ""), dataset.next().values());
+
+            MergeDataset.Row array = dataset.next();
+            Assertions.assertEquals(2, array.number());
+            Assertions.assertEquals("Line is not a JSON object", array.error());
+
+            Assertions.assertTrue(dataset.next().error().startsWith("Invalid JSON"));
+            Assertions.assertNull(dataset.next());
+        }
+    }
+}
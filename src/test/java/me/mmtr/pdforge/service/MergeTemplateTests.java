@@ -0,0 +1,39 @@
+package me.mmtr.pdforge.service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.Set;
+
+public class MergeTemplateTests {
+
+    @Test
+    public void shouldFillPlaceholdersWithEscapedValues() {
+        MergeTemplate template = MergeTemplate.compile("<p>Dear {{ name }}, you owe {{amount}}.</p>");
+
+        String merged = template.apply(Map.of("name", "Tom & Jerry", "amount", "<5>"), value -> value
+                .replace("&", "&amp;")
+                .replace("<", "&lt;")
+                .replace(">", "&gt;"));
+
+        Assertions.assertEquals("<p>Dear Tom &amp; Jerry, you owe &lt;5&gt;.</p>", merged);
+    }
+
+    @Test
+    public void shouldListEachPlaceholderOnce() {
+        MergeTemplate template = MergeTemplate.compile("{{a}} {{b}} {{a}} {not} {{}}");
+
+        Assertions.assertEquals(Set.of("a", "b"), template.fields());
+        Assertions.assertEquals("1 2 1 {not} {{}}", template.apply(Map.of("a", "1", "b", "2"), value -> value));
+    }
+
+    @Test
+    public void shouldRejectRowsWithoutAValueForAPlaceholder() {
+        MergeTemplate template = MergeTemplate.compile("Hello {{name}}");
+
+        IllegalArgumentException failure = Assertions.assertThrows(IllegalArgumentException.class,
+                () -> template.apply(Map.of("other", "value"), value -> value));
+        Assertions.assertEquals("No value for placeholder 'name'", failure.getMessage());
+    }
+}
@@ -0,0 +1,91 @@
+package me.mmtr.pdforge.service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+
+@DisabledOnOs(OS.WINDOWS)
+public class PdfLinearizerTests {
+
+    @TempDir
+    private Path directory;
+
+    private Path fakeQpdf(String script) throws IOException {
+        Path qpdf = directory.resolve("qpdf");
+        Files.writeString(qpdf, "#!/bin/sh\n" + script + "\n", StandardCharsets.UTF_8);
+        Files.setPosixFilePermissions(qpdf, PosixFilePermissions.fromString("rwx------"));
+        return qpdf;
+    }
+
+    @Test
+    public void shouldPassInputAndOutputToQpdf() throws IOException {
+        Path qpdf = fakeQpdf("""
+                [ "$1" = "--version" ] && exit 0
+                [ "$1" = "--linearize" ] || exit 2
+                { echo linearized; cat "$2"; } > "$3"
+                """);
+        PdfLinearizer linearizer = new PdfLinearizer(true, qpdf.toString(), Duration.ofSeconds(10));
+        Path input = Files.writeString(directory.resolve("in.pdf"), "content");
+        Path output = directory.resolve("out.pdf");
+
+        linearizer.linearize(input, output);
+
+        Assertions.assertEquals("linearized\ncontent", Files.readString(output).strip());
+    }
+
+    @Test
+    public void shouldAcceptWarningsButReportFailures() throws IOException {
+        Path qpdf = fakeQpdf("""
+                [ "$1" = "--version" ] && exit 0
+                grep -q warn "$2" && { cp "$2" "$3"; exit 3; }
+                echo "not a PDF file" >&2
+                exit 2
+                """);
+        PdfLinearizer linearizer = new PdfLinearizer(true, qpdf.toString(), Duration.ofSeconds(10));
+        Path output = directory.resolve("out.pdf");
+
+        linearizer.linearize(Files.writeString(directory.resolve("warn.pdf"), "warn"), output);
+        Assertions.assertEquals("warn", Files.readString(output));
+
+        IOException failure = Assertions.assertThrows(IOException.class, () ->
+                linearizer.linearize(Files.writeString(directory.resolve("broken.pdf"), "broken"), output));
+        Assertions.assertTrue(failure.getMessage().contains("exit code 2"));
+        Assertions.assertTrue(failure.getMessage().contains("not a PDF file"));
+    }
+
+    @Test
+    public void shouldGiveUpOnSlowQpdf() throws IOException {
+        Path qpdf = fakeQpdf("""
+                [ "$1" = "--version" ] && exit 0
+                sleep 5
+                """);
+        PdfLinearizer linearizer = new PdfLinearizer(true, qpdf.toString(), Duration.ofMillis(200));
+
+        Assertions.assertThrows(IOException.class, () ->
+                linearizer.linearize(Files.writeString(directory.resolve("in.pdf"), "content"),
+                        directory.resolve("out.pdf")));
+    }
+
+    @Test
+    public void shouldFailAtStartupWhenEnabledWithoutQpdf() {
+        Assertions.assertThrows(IllegalStateException.class, () ->
+                new PdfLinearizer(true, directory.resolve("missing-qpdf").toString(), Duration.ofSeconds(1)));
+    }
+
+    @Test
+    public void shouldNotRequireQpdfWhenDisabled() {
+        PdfLinearizer linearizer =
+                new PdfLinearizer(false, directory.resolve("missing-qpdf").toString(), Duration.ofSeconds(1));
+
+        Assertions.assertFalse(linearizer.isEnabled());
+    }
+}
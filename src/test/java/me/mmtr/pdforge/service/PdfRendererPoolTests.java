@@ -0,0 +1,265 @@
+package me.mmtr.pdforge.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class PdfRendererPoolTests {
+
+    private static final String PDF_HEADER = "%PDF";
+
+    private final RenderResources resources = new RenderResources(uri -> null,
+            DataSize.ofMegabytes(1), DataSize.ofMegabytes(1), Duration.ofSeconds(1), true, "", 150, 0.8f, true);
+
+    private byte[] render(PdfRendererPool pool, String html) throws Exception {
+        return pool.execute(renderer -> {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            renderer.setDocumentFromString(html);
+            renderer.layout();
+            renderer.createPDF(outputStream);
+            return outputStream.toByteArray();
+        });
+    }
+
+    @Test
+    public void shouldRenderConcurrentlyWithoutExceedingPoolSize() throws Exception {
+        PdfRendererPool pool = new PdfRendererPool(resources, 2, Duration.ofSeconds(30), Duration.ZERO);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                String html = "<html><body><p>Document " + i + "</p></body></html>";
+                results.add(executor.submit(() -> render(pool, html)));
+            }
+
+            for (Future<byte[]> result : results) {
+                byte[] pdf = result.get(60, TimeUnit.SECONDS);
+                Assertions.assertEquals(PDF_HEADER, new String(pdf, 0, 4, StandardCharsets.US_ASCII));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        PdfRendererPool.Statistics statistics = pool.getStatistics();
+        Assertions.assertEquals(16, statistics.checkouts());
+        Assertions.assertEquals(0, statistics.inUse());
+        Assertions.assertTrue(statistics.idle() <= 2);
+    }
+
+    @Test
+    public void shouldTimeOutWhenAllRenderersAreCheckedOut() throws Exception {
+        PdfRendererPool pool = new PdfRendererPool(resources, 1, Duration.ofMillis(50), Duration.ZERO);
+        CountDownLatch checkedOut = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+
+        Thread holder = new Thread(() -> {
+            try {
+                pool.execute(renderer -> {
+                    checkedOut.countDown();
+                    try {
+                        finish.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return null;
+                });
+            } catch (IOException ignored) {
+            }
+        });
+        holder.start();
+        checkedOut.await();
+
+        Assertions.assertThrows(RendererUnavailableException.class, () -> render(pool, "<p>Test</p>"));
+        Assertions.assertEquals(1, pool.getStatistics().timeouts());
+
+        finish.countDown();
+        holder.join();
+    }
+
+    @Test
+    public void shouldDiscardRendererWhenRenderFails() throws Exception {
+        PdfRendererPool pool = new PdfRendererPool(resources, 1, Duration.ofSeconds(1), Duration.ZERO);
+        AtomicInteger attempts = new AtomicInteger();
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> pool.execute(renderer -> {
+            attempts.incrementAndGet();
+            throw new IllegalArgumentException("broken document");
+        }));
+
+        Assertions.assertEquals(0, pool.getStatistics().idle());
+        Assertions.assertEquals(0, pool.getStatistics().inUse());
+
+        byte[] pdf = render(pool, "<html><body><p>Recovered</p></body></html>");
+        Assertions.assertEquals(PDF_HEADER, new String(pdf, 0, 4, StandardCharsets.US_ASCII));
+        Assertions.assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void shouldHoldPermitWithoutCreatingRenderer() throws Exception {
+        PdfRendererPool pool = new PdfRendererPool(resources, 1, Duration.ofMillis(100), Duration.ZERO);
+
+        PdfRendererPool.Statistics statistics = pool.withPermit(pool::getStatistics);
+
+        Assertions.assertEquals(1, statistics.inUse());
+        Assertions.assertEquals(0, pool.getStatistics().inUse());
+        Assertions.assertEquals(0, pool.getStatistics().idle());
+        Assertions.assertThrows(RendererUnavailableException.class, () ->
+                pool.withPermit(() -> pool.withPermit(() -> null)));
+    }
+
+    @Test
+    public void shouldMoveRenderingOffVirtualThreads() throws Exception {
+        PdfRendererPool pool = new PdfRendererPool(resources, 1, Duration.ofSeconds(30), Duration.ZERO);
+        AtomicReference<Thread> renderThread = new AtomicReference<>();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread caller = Thread.ofVirtual().start(() -> {
+            try {
+                pool.execute(renderer -> {
+                    renderThread.set(Thread.currentThread());
+                    return null;
+                });
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        caller.join();
+
+        Assertions.assertNull(failure.get());
+        Assertions.assertFalse(renderThread.get().isVirtual());
+        Assertions.assertTrue(renderThread.get().getName().startsWith("pdf-renderer-"));
+    }
+
+    @Test
+    public void shouldPropagateFailuresFromPlatformRenderThreads() throws Exception {
+        PdfRendererPool pool = new PdfRendererPool(resources, 1, Duration.ofSeconds(30), Duration.ZERO);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread.ofVirtual().start(() -> {
+            try {
+                pool.execute(renderer -> {
+                    throw new IllegalArgumentException("broken document");
+                });
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        }).join();
+
+        Assertions.assertInstanceOf(IllegalArgumentException.class, failure.get());
+        Assertions.assertEquals(0, pool.getStatistics().inUse());
+    }
+
+    @Test
+    public void shouldRenderInlineOnPlatformThreads() throws Exception {
+        PdfRendererPool pool = new PdfRendererPool(resources, 1, Duration.ofSeconds(30), Duration.ZERO);
+
+        Thread renderThread = pool.execute(renderer -> Thread.currentThread());
+
+        Assertions.assertSame(Thread.currentThread(), renderThread);
+    }
+
+    @Test
+    public void shouldEmbedDataUriImagesFromSharedCache() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        resources.bindTo(registry);
+        PdfRendererPool pool = new PdfRendererPool(resources, 2, Duration.ofSeconds(30), Duration.ZERO);
+
+        BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream imageBytes = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", imageBytes);
+        String html = "<html><body><img src=\"data:image/png;base64,"
+                + Base64.getEncoder().encodeToString(imageBytes.toByteArray()) + "\"/></body></html>";
+
+        byte[] firstPdf = render(pool, html);
+        byte[] secondPdf = render(pool, html);
+
+        Assertions.assertTrue(new String(firstPdf, StandardCharsets.ISO_8859_1).contains("/Subtype/Image"));
+        Assertions.assertTrue(new String(secondPdf, StandardCharsets.ISO_8859_1).contains("/Subtype/Image"));
+        Assertions.assertEquals(1, registry.get("pdforge.renderer.resources.requests")
+                .tag("result", "miss").functionCounter().count());
+    }
+
+    @Test
+    public void shouldAbandonRendersThatExceedTheRenderTimeout() throws Exception {
+        PdfRendererPool pool = new PdfRendererPool(resources, 1, Duration.ofSeconds(30), Duration.ofMillis(100));
+        CountDownLatch finish = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(1);
+
+        Assertions.assertThrows(RenderTimeoutException.class, () -> pool.execute(renderer -> {
+            // Ignores interrupts, like a layout stuck in a loop.
+            while (finish.getCount() > 0) {
+                Thread.onSpinWait();
+            }
+            finished.countDown();
+            return null;
+        }));
+
+        Assertions.assertEquals(1, pool.getStatistics().renderTimeouts());
+        Assertions.assertEquals(1, pool.getStatistics().inUse());
+
+        finish.countDown();
+        finished.await();
+        for (int i = 0; i < 50 && pool.getStatistics().inUse() > 0; i++) {
+            Thread.sleep(10);
+        }
+
+        Assertions.assertEquals(0, pool.getStatistics().inUse());
+        Assertions.assertEquals(0, pool.getStatistics().idle());
+    }
+
+    @Test
+    public void shouldDeferCleanupUntilAbandonedRenderStops() throws Exception {
+        PdfRendererPool pool = new PdfRendererPool(resources, 1, Duration.ofSeconds(30), Duration.ofMillis(100));
+        CountDownLatch finish = new CountDownLatch(1);
+
+        RenderTimeoutException timeout = Assertions.assertThrows(RenderTimeoutException.class,
+                () -> pool.execute(renderer -> {
+                    while (finish.getCount() > 0) {
+                        Thread.onSpinWait();
+                    }
+                    return null;
+                }));
+
+        CountDownLatch cleanedUp = new CountDownLatch(1);
+        AtomicInteger inUseDuringCleanup = new AtomicInteger(-1);
+        timeout.whenRenderStops(() -> {
+            inUseDuringCleanup.set(pool.getStatistics().inUse());
+            cleanedUp.countDown();
+        });
+        Assertions.assertEquals(1, cleanedUp.getCount());
+
+        finish.countDown();
+        Assertions.assertTrue(cleanedUp.await(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(1, inUseDuringCleanup.get());
+    }
+
+    @Test
+    public void shouldReturnResultsOfRendersWithinTheRenderTimeout() throws Exception {
+        PdfRendererPool pool = new PdfRendererPool(resources, 1, Duration.ofSeconds(30), Duration.ofSeconds(30));
+
+        byte[] pdf = render(pool, "<html><body><p>In time</p></body></html>");
+
+        Assertions.assertEquals(PDF_HEADER, new String(pdf, 0, 4, StandardCharsets.US_ASCII));
+        Assertions.assertEquals(0, pool.getStatistics().renderTimeouts());
+        Assertions.assertEquals(1, pool.getStatistics().idle());
+    }
+}
@@ -1,8 +1,17 @@
 package me.mmtr.pdforge.service;
 
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.parser.PdfTextExtractor;
 import com.mongodb.client.gridfs.GridFSBucket;
 import com.mongodb.client.gridfs.GridFSBuckets;
 import com.mongodb.client.gridfs.model.GridFSFile;
+import me.mmtr.pdforge.model.DeletionJob;
+import me.mmtr.pdforge.model.DocumentPage;
+import me.mmtr.pdforge.model.DocumentSort;
+import me.mmtr.pdforge.model.PdfDocument;
+import me.mmtr.pdforge.model.RenderJobStatus;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.bson.Document;
 import org.bson.types.ObjectId;
 import org.junit.jupiter.api.AfterEach;
@@ -11,13 +20,35 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.task.SyncTaskExecutor;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 @SpringBootTest
 public class PdfServiceTests {
@@ -25,6 +56,7 @@ public class PdfServiceTests {
     private final String firstFilename = UUID.randomUUID().toString();
     private final String secondFilename = UUID.randomUUID().toString();
     private final String FIRST_USER_ID = "1";
+    private final String SECOND_USER_ID = "2";
     private final String EXTENSION = ".pdf";
     private ObjectId firstObjectId;
     private ObjectId secondObjectId;
@@ -32,14 +64,39 @@ public class PdfServiceTests {
     @Autowired
     private PdfService pdfService;
 
+    @Autowired
+    private DocumentSourceService documentSourceService;
+
+    @Autowired
+    private DocumentRevisionService documentRevisionService;
+
+    @Autowired
+    private ThumbnailService thumbnailService;
+
+    @Autowired
+    private DocumentSearchService documentSearchService;
+
+    @Autowired
+    private PdfLinearizer pdfLinearizer;
+
+    @Autowired
+    private AssetService assetService;
+
+    @Autowired
+    private PdfRendererPool rendererPool;
+
+    @Autowired
+    private RenderResources renderResources;
+
     @Autowired
     private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
     private GridFSBucket gridFSBucket;
 
     @BeforeEach
     public void setUp() {
-        final String SECOND_USER_ID = "2";
-
         gridFSBucket = GridFSBuckets.create(mongoTemplate.getDb());
         firstObjectId = pdfService.saveAsPdf(
                 FIRST_USER_ID,
@@ -58,78 +115,174 @@ public class PdfServiceTests {
 
     @AfterEach
     public void tearDown() {
-        gridFSBucket.find(new Document("_id", firstObjectId)).forEach(gridFSObject ->
-                gridFSBucket.delete(gridFSObject.getObjectId()));
+        pdfService.deleteDocument(FIRST_USER_ID, firstObjectId);
+        pdfService.deleteDocument(SECOND_USER_ID, secondObjectId);
+    }
+
+    private GridFSFile findFile(ObjectId documentId, String userId) {
+        PdfDocument document = pdfService.getUserDocument(userId, documentId);
+        Assertions.assertNotNull(document);
+        return gridFSBucket.find(new Document("_id", document.getFileId())).first();
+    }
 
-        gridFSBucket.find(new Document("_id", secondObjectId)).forEach(gridFSObject ->
-                gridFSBucket.delete(gridFSObject.getObjectId()));
+    private byte[] readPdf(String userId, ObjectId documentId) throws IOException {
+        try (InputStream inputStream = pdfService.getAsResource(userId, documentId).getInputStream()) {
+            return inputStream.readAllBytes();
+        }
+    }
+
+    private void awaitFileDeleted(ObjectId fileId) throws InterruptedException {
+        for (int i = 0; i < 50; i++) {
+            if (gridFSBucket.find(new Document("_id", fileId)).first() == null) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        Assertions.fail("File was not released in time");
+    }
+
+    private ObjectId awaitRevisionFile(ObjectId documentId, long revision) throws InterruptedException {
+        for (int i = 0; i < 50; i++) {
+            ObjectId fileId = documentRevisionService.getRevision(FIRST_USER_ID, documentId, revision).getFileId();
+            if (fileId != null) {
+                return fileId;
+            }
+            Thread.sleep(100);
+        }
+        return Assertions.fail("Previous file was not attached to its revision in time");
     }
 
     @Test
     public void shouldCorrectlySaveAsPdf() {
-        GridFSFile gridFSFile = gridFSBucket.find(new Document("filename", firstFilename + EXTENSION))
-                .first();
+        PdfDocument document = pdfService.getUserDocument(FIRST_USER_ID, firstObjectId);
+        Assertions.assertNotNull(document);
+        Assertions.assertEquals(firstFilename + EXTENSION, document.getFilename());
+
+        GridFSFile gridFSFile = gridFSBucket.find(new Document("_id", document.getFileId())).first();
         Assertions.assertNotNull(gridFSFile);
-        Assertions.assertEquals(firstFilename + EXTENSION, gridFSFile.getFilename());
     }
 
     @Test
-    public void shouldCorrectlyFindAndReturnFileAsByteArray()
-            throws IOException {
-        String contentToSave = "Some string for testing";
-        InputStream inputStream = new ByteArrayInputStream(contentToSave.getBytes());
+    public void shouldCorrectlyStreamDocumentAsResource() throws IOException {
+        GridFSFile file = findFile(firstObjectId, FIRST_USER_ID);
+        Assertions.assertNotNull(file);
 
-        GridFSBucket gridFSBucket = GridFSBuckets.create(mongoTemplate.getDb());
+        GridFSFileResource resource = pdfService.getAsResource(FIRST_USER_ID, firstObjectId);
 
-        ObjectId objectId = gridFSBucket.uploadFromStream(firstFilename + EXTENSION, inputStream);
-
-        byte[] bytes = pdfService.getAsByteArray(objectId);
-
-        Assertions.assertEquals(contentToSave, new String(bytes));
+        Assertions.assertEquals(file.getLength(), resource.contentLength());
+        try (InputStream resourceStream = resource.getInputStream()) {
+            byte[] content = resourceStream.readAllBytes();
+            Assertions.assertEquals(file.getLength(), content.length);
+            Assertions.assertEquals("%PDF", new String(content, 0, 4));
+        }
+    }
 
-        gridFSBucket.find(new Document("_id", objectId))
-                .forEach(file -> gridFSBucket.delete(file.getObjectId()));
+    @Test
+    public void shouldThrowAnExceptionWhenTryingToGetNonExistingFileAsResource() {
+        Assertions.assertThrows(IOException.class, () ->
+                pdfService.getAsResource(FIRST_USER_ID, new ObjectId())
+        );
     }
 
     @Test
-    public void shouldThrowAnExceptionWhenTryingToGetNonExistingFileAsByteArray() {
+    public void shouldNotReturnFileOfAnotherUserAsResource() {
         Assertions.assertThrows(IOException.class, () ->
-                pdfService.getAsByteArray(new ObjectId())
+                pdfService.getAsResource(SECOND_USER_ID, firstObjectId)
         );
     }
 
+    @Test
+    public void shouldStoreDeltaOutsideOfGridFSMetadata() {
+        GridFSFile file = findFile(firstObjectId, FIRST_USER_ID);
+
+        Assertions.assertNotNull(file);
+        Assertions.assertNotNull(file.getMetadata());
+        Assertions.assertFalse(file.getMetadata().containsKey("delta"));
+        Assertions.assertEquals("some delta 1", documentSourceService.getDelta(FIRST_USER_ID, firstObjectId));
+    }
+
+    @Test
+    public void shouldRecordImageSizesBeforeAndAfterOptimization() {
+        GridFSFile file = findFile(firstObjectId, FIRST_USER_ID);
+
+        Assertions.assertNotNull(file);
+        Assertions.assertNotNull(file.getMetadata());
+        Assertions.assertEquals(0L, file.getMetadata().get("imageBytes", Number.class).longValue());
+        Assertions.assertEquals(0L, file.getMetadata().get("optimizedImageBytes", Number.class).longValue());
+    }
+
     @Test
     public void shouldCorrectlyReturnUserFiles() {
-        List<GridFSFile> userFiles = pdfService.getUserGridFSFiles(FIRST_USER_ID);
-        Assertions.assertEquals(1, userFiles.size());
-        GridFSFile file = userFiles.getFirst();
+        DocumentPage page = pdfService.getUserDocumentsPage(FIRST_USER_ID, DocumentSort.NEWEST, null, 10);
+        Assertions.assertEquals(1, page.documents().size());
+        GridFSFile file = findFile(firstObjectId, FIRST_USER_ID);
 
         Assertions.assertNotNull(file.getMetadata());
         Assertions.assertEquals(FIRST_USER_ID, file.getMetadata().get("userId"));
     }
 
     @Test
-    public void shouldCorrectlyReturnGridFSFile() {
+    public void shouldReturnUserDocumentsPage() {
+        DocumentPage page = pdfService.getUserDocumentsPage(FIRST_USER_ID, DocumentSort.NEWEST, null, 10);
+
+        Assertions.assertEquals(1, page.documents().size());
+        Assertions.assertFalse(page.hasNext());
+        Assertions.assertEquals(firstObjectId.toHexString(), page.documents().getFirst().getId());
+    }
+
+    @Test
+    public void shouldPaginateUserDocumentsWithCursor() {
+        String userId = UUID.randomUUID().toString();
+        List<ObjectId> savedIds = List.of(
+                pdfService.saveAsPdf(userId, "b", "<p>b</p>", "delta"),
+                pdfService.saveAsPdf(userId, "a", "<p>a</p>", "delta"),
+                pdfService.saveAsPdf(userId, "c", "<p>c</p>", "delta")
+        );
 
-        GridFSBucket gridFSBucket = GridFSBuckets.create(mongoTemplate.getDb());
+        try {
+            DocumentPage firstPage = pdfService.getUserDocumentsPage(userId, DocumentSort.NAME, null, 2);
+            Assertions.assertEquals(
+                    List.of("a" + EXTENSION, "b" + EXTENSION),
+                    firstPage.documents().stream().map(PdfDocument::getFilename).toList()
+            );
+            Assertions.assertTrue(firstPage.hasNext());
 
-        GridFSFile foundFile = gridFSBucket.find(
-                new Document("filename", firstFilename + EXTENSION)
-        ).first();
+            DocumentPage secondPage = pdfService.getUserDocumentsPage(
+                    userId, DocumentSort.NAME, firstPage.nextCursor(), 2);
+            Assertions.assertEquals(
+                    List.of("c" + EXTENSION),
+                    secondPage.documents().stream().map(PdfDocument::getFilename).toList()
+            );
+            Assertions.assertFalse(secondPage.hasNext());
+        } finally {
+            savedIds.forEach(id -> pdfService.deleteDocument(userId, id));
+        }
+    }
 
-        Assertions.assertNotNull(foundFile);
+    @Test
+    public void shouldCorrectlyReturnUserDocument() {
+        PdfDocument document = pdfService.getUserDocument(FIRST_USER_ID, firstObjectId);
 
-        ObjectId foundFileObjectId = foundFile.getObjectId();
-        GridFSFile file = pdfService.getAsGridFSFile(FIRST_USER_ID, foundFileObjectId);
+        Assertions.assertNotNull(document);
+        Assertions.assertEquals(firstObjectId.toHexString(), document.getId());
+        Assertions.assertEquals(FIRST_USER_ID, document.getUserId());
+    }
 
-        Assertions.assertEquals(file, foundFile);
+    @Test
+    public void shouldNotReturnDocumentOfAnotherUser() {
+        Assertions.assertNull(pdfService.getUserDocument(SECOND_USER_ID, firstObjectId));
+    }
+
+    @Test
+    public void shouldNotDeleteDocumentOfAnotherUser() {
+        pdfService.deleteDocument(SECOND_USER_ID, firstObjectId);
+
+        Assertions.assertNotNull(pdfService.getUserDocument(FIRST_USER_ID, firstObjectId));
     }
 
     @Test
     public void shouldCorrectlyDeleteGridFSFile() {
-        GridFSFile foundFile = gridFSBucket.find(
-                new Document("filename", firstFilename + EXTENSION)
-        ).first();
+        GridFSFile foundFile = findFile(firstObjectId, FIRST_USER_ID);
 
         Assertions.assertNotNull(foundFile);
 
@@ -139,4 +292,612 @@ public class PdfServiceTests {
                 gridFSBucket.find(new Document("_id", foundFileObjectId)).first()
         );
     }
+
+    @Test
+    public void shouldCorrectlyDeleteDocumentWithItsFileAndDelta() {
+        GridFSFile file = findFile(firstObjectId, FIRST_USER_ID);
+        Assertions.assertNotNull(file);
+
+        pdfService.deleteDocument(FIRST_USER_ID, firstObjectId);
+
+        Assertions.assertNull(pdfService.getUserDocument(FIRST_USER_ID, firstObjectId));
+        Assertions.assertNull(gridFSBucket.find(new Document("_id", file.getObjectId())).first());
+        Assertions.assertNull(documentSourceService.getDelta(FIRST_USER_ID, firstObjectId));
+    }
+
+    @Test
+    public void shouldShareStoredFileWhenContentIsUnchanged() {
+        ObjectId copyObjectId = pdfService.saveAsPdf(
+                FIRST_USER_ID,
+                UUID.randomUUID().toString(),
+                "<p>Test 1</p>",
+                "some delta 1"
+        );
+
+        try {
+            Assertions.assertNotEquals(firstObjectId, copyObjectId);
+
+            GridFSFile file = findFile(firstObjectId, FIRST_USER_ID);
+            Assertions.assertNotNull(file);
+            Assertions.assertEquals(file.getObjectId(), findFile(copyObjectId, FIRST_USER_ID).getObjectId());
+            Assertions.assertNotNull(file.getMetadata());
+            Assertions.assertEquals(2, file.getMetadata().getInteger("refCount"));
+        } finally {
+            pdfService.deleteDocument(FIRST_USER_ID, copyObjectId);
+        }
+    }
+
+    @Test
+    public void shouldDeleteFileOnlyWhenLastReferenceIsReleased() {
+        ObjectId copyObjectId = pdfService.saveAsPdf(FIRST_USER_ID, firstFilename, "<p>Test 1</p>", "some delta 1");
+        GridFSFile file = findFile(firstObjectId, FIRST_USER_ID);
+        Assertions.assertNotNull(file);
+
+        pdfService.deleteDocument(FIRST_USER_ID, firstObjectId);
+        Assertions.assertNotNull(gridFSBucket.find(new Document("_id", file.getObjectId())).first());
+
+        pdfService.deleteDocument(FIRST_USER_ID, copyObjectId);
+        Assertions.assertNull(gridFSBucket.find(new Document("_id", file.getObjectId())).first());
+    }
+
+    @Test
+    public void shouldRenderNewFileWhenContentChanges() {
+        ObjectId changedObjectId = pdfService.saveAsPdf(
+                FIRST_USER_ID,
+                firstFilename,
+                "<p>Test 1 changed</p>",
+                "some delta 1"
+        );
+
+        try {
+            Assertions.assertNotEquals(
+                    findFile(firstObjectId, FIRST_USER_ID).getObjectId(),
+                    findFile(changedObjectId, FIRST_USER_ID).getObjectId()
+            );
+        } finally {
+            pdfService.deleteDocument(FIRST_USER_ID, changedObjectId);
+        }
+    }
+
+    @Test
+    public void shouldUpdateDocumentInPlaceAndKeepPreviousFileForHistory() throws Exception {
+        ObjectId previousFileId = findFile(firstObjectId, FIRST_USER_ID).getObjectId();
+
+        ObjectId updatedObjectId = pdfService.updatePdf(
+                FIRST_USER_ID,
+                firstObjectId,
+                "renamed",
+                "<p>Test 1 updated</p>",
+                "some delta 1 updated"
+        );
+
+        Assertions.assertEquals(firstObjectId, updatedObjectId);
+
+        PdfDocument document = pdfService.getUserDocument(FIRST_USER_ID, firstObjectId);
+        Assertions.assertNotNull(document);
+        Assertions.assertEquals("renamed" + EXTENSION, document.getFilename());
+        Assertions.assertNotEquals(previousFileId, document.getFileId());
+        Assertions.assertEquals("some delta 1 updated", documentSourceService.getDelta(FIRST_USER_ID, firstObjectId));
+        Assertions.assertEquals(2, document.getRevision());
+
+        Assertions.assertEquals(previousFileId, awaitRevisionFile(firstObjectId, 1));
+    }
+
+    @Test
+    public void shouldReleaseHistoricFilesBeyondCacheLimit() throws Exception {
+        ObjectId firstRevisionFileId = findFile(firstObjectId, FIRST_USER_ID).getObjectId();
+
+        for (int i = 2; i <= 5; i++) {
+            pdfService.updatePdf(FIRST_USER_ID, firstObjectId, firstFilename, "<p>Test 1 v" + i + "</p>", "delta " + i);
+            awaitRevisionFile(firstObjectId, i - 1);
+        }
+
+        awaitFileDeleted(firstRevisionFileId);
+        Assertions.assertNull(documentRevisionService.getRevision(FIRST_USER_ID, firstObjectId, 1).getFileId());
+    }
+
+    @Test
+    public void shouldRenderOldRevisionOnDemand() throws Exception {
+        ObjectId firstRevisionFileId = findFile(firstObjectId, FIRST_USER_ID).getObjectId();
+
+        for (int i = 2; i <= 5; i++) {
+            pdfService.updatePdf(FIRST_USER_ID, firstObjectId, firstFilename, "<p>Test 1 v" + i + "</p>", "delta " + i);
+            awaitRevisionFile(firstObjectId, i - 1);
+        }
+        awaitFileDeleted(firstRevisionFileId);
+
+        GridFSFileResource resource = pdfService.getRevisionAsResource(FIRST_USER_ID, firstObjectId, 1);
+
+        try (InputStream inputStream = resource.getInputStream()) {
+            Assertions.assertEquals("%PDF", new String(inputStream.readNBytes(4)));
+        }
+        Assertions.assertEquals(
+                resource.getFile().getObjectId(),
+                documentRevisionService.getRevision(FIRST_USER_ID, firstObjectId, 1).getFileId()
+        );
+    }
+
+    @Test
+    public void shouldNotReturnRevisionOfAnotherUser() {
+        Assertions.assertThrows(FileNotFoundException.class, () ->
+                pdfService.getRevisionAsResource(SECOND_USER_ID, firstObjectId, 1)
+        );
+    }
+
+    @Test
+    public void shouldDeleteRevisionsWithDocument() throws Exception {
+        ObjectId previousFileId = findFile(firstObjectId, FIRST_USER_ID).getObjectId();
+        pdfService.updatePdf(FIRST_USER_ID, firstObjectId, firstFilename, "<p>Test 1 updated</p>", "delta 2");
+        awaitRevisionFile(firstObjectId, 1);
+
+        pdfService.deleteDocument(FIRST_USER_ID, firstObjectId);
+
+        Assertions.assertTrue(documentRevisionService.getRevisions(FIRST_USER_ID, firstObjectId).isEmpty());
+        Assertions.assertNull(gridFSBucket.find(new Document("_id", previousFileId)).first());
+    }
+
+    @Test
+    public void shouldDeleteDocumentsInBatchesAndReleaseSharedFilesOnce() {
+        ObjectId copyObjectId = pdfService.saveAsPdf(FIRST_USER_ID, firstFilename, "<p>Test 1</p>", "some delta 1");
+        ObjectId fileId = findFile(firstObjectId, FIRST_USER_ID).getObjectId();
+        String claim = new ObjectId().toHexString();
+        List<ObjectId> selection = List.of(firstObjectId, copyObjectId, secondObjectId);
+
+        Assertions.assertEquals(1, pdfService.deleteDocuments(FIRST_USER_ID, claim, selection, 1));
+        Assertions.assertNotNull(gridFSBucket.find(new Document("_id", fileId)).first());
+
+        Assertions.assertEquals(1, pdfService.deleteDocuments(FIRST_USER_ID, claim, selection, 1));
+        Assertions.assertEquals(0, pdfService.deleteDocuments(FIRST_USER_ID, claim, selection, 1));
+
+        Assertions.assertNull(pdfService.getUserDocument(FIRST_USER_ID, firstObjectId));
+        Assertions.assertNull(pdfService.getUserDocument(FIRST_USER_ID, copyObjectId));
+        Assertions.assertNull(gridFSBucket.find(new Document("_id", fileId)).first());
+        Assertions.assertEquals(0, mongoTemplate.getCollection("fs.chunks")
+                .countDocuments(new Document("files_id", fileId)));
+        Assertions.assertNull(documentSourceService.getDelta(FIRST_USER_ID, copyObjectId));
+        Assertions.assertNotNull(pdfService.getUserDocument(SECOND_USER_ID, secondObjectId));
+    }
+
+    @Test
+    public void shouldReleaseFilesOfBatchInterruptedAfterItsDocumentsWereRemoved() {
+        String userId = UUID.randomUUID().toString();
+        ObjectId documentId = pdfService.saveAsPdf(userId, firstFilename, "<p>Interrupted</p>", "delta");
+        ObjectId fileId = findFile(documentId, userId).getObjectId();
+        String claim = new ObjectId().toHexString();
+
+        // The state a crash leaves behind between removing the documents and releasing their files.
+        DeletionJob job = new DeletionJob();
+        job.setId(claim);
+        job.setUserId(userId);
+        job.setStatus(RenderJobStatus.RUNNING);
+        job.setPendingDocumentIds(List.of(documentId.toHexString()));
+        job.setPendingReferences(Map.of(fileId.toHexString(), 1));
+        mongoTemplate.insert(job);
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is(documentId)), PdfDocument.class);
+
+        try {
+            Assertions.assertEquals(1, pdfService.deleteDocuments(userId, claim, null, 10));
+            Assertions.assertEquals(0, pdfService.deleteDocuments(userId, claim, null, 10));
+
+            Assertions.assertNull(gridFSBucket.find(new Document("_id", fileId)).first());
+            Assertions.assertNull(documentSourceService.getDelta(userId, documentId));
+            DeletionJob finishedBatch = mongoTemplate.findById(claim, DeletionJob.class);
+            Assertions.assertNotNull(finishedBatch);
+            Assertions.assertNull(finishedBatch.getPendingDocumentIds());
+        } finally {
+            mongoTemplate.remove(job);
+        }
+    }
+
+    @Test
+    public void shouldNotExportDocumentsClaimedForDeletion() throws IOException {
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(firstObjectId)),
+                Update.update("deletionJobId", new ObjectId().toHexString()), PdfDocument.class);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        pdfService.exportDocuments(FIRST_USER_ID, List.of(firstObjectId), outputStream);
+
+        try (ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(outputStream.toByteArray()))) {
+            Assertions.assertNull(zipInputStream.getNextEntry());
+        } finally {
+            mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(firstObjectId)),
+                    new Update().unset("deletionJobId"), PdfDocument.class);
+        }
+    }
+
+    @Test
+    public void shouldDeleteAllDocumentsOfUserWithTheirRevisions() throws Exception {
+        String userId = UUID.randomUUID().toString();
+        ObjectId documentId = pdfService.saveAsPdf(userId, firstFilename, "<p>Purge 1</p>", "delta 1");
+        ObjectId otherDocumentId = pdfService.saveAsPdf(userId, secondFilename, "<p>Purge 2</p>", "delta 2");
+        ObjectId previousFileId = findFile(documentId, userId).getObjectId();
+        pdfService.updatePdf(userId, documentId, firstFilename, "<p>Purge 1 updated</p>", "delta 3");
+        for (int i = 0; i < 50 && documentRevisionService.getRevision(userId, documentId, 1).getFileId() == null; i++) {
+            Thread.sleep(100);
+        }
+
+        Assertions.assertEquals(2, pdfService.deleteDocuments(userId, new ObjectId().toHexString(), null, 10));
+
+        Assertions.assertNull(pdfService.getUserDocument(userId, documentId));
+        Assertions.assertNull(pdfService.getUserDocument(userId, otherDocumentId));
+        Assertions.assertTrue(documentRevisionService.getRevisions(userId, documentId).isEmpty());
+        Assertions.assertNull(gridFSBucket.find(new Document("_id", previousFileId)).first());
+        Assertions.assertNull(gridFSBucket.find(new Document("metadata.userId", userId)).first());
+        Assertions.assertNotNull(pdfService.getUserDocument(FIRST_USER_ID, firstObjectId));
+    }
+
+    @Test
+    public void shouldKeepFileWhenUpdatingWithUnchangedContent() throws Exception {
+        ObjectId fileId = findFile(firstObjectId, FIRST_USER_ID).getObjectId();
+
+        pdfService.updatePdf(FIRST_USER_ID, firstObjectId, firstFilename, "<p>Test 1</p>", "some delta 1");
+        Thread.sleep(200);
+
+        GridFSFile file = gridFSBucket.find(new Document("_id", fileId)).first();
+        Assertions.assertNotNull(file);
+        Assertions.assertNotNull(file.getMetadata());
+        Assertions.assertEquals(2, file.getMetadata().getInteger("refCount"));
+    }
+
+    @Test
+    public void shouldNotUpdateDocumentOfAnotherUser() {
+        Assertions.assertThrows(FileNotFoundException.class, () ->
+                pdfService.updatePdf(SECOND_USER_ID, firstObjectId, "test", "<p>Test</p>", "some delta")
+        );
+    }
+
+    @Test
+    public void shouldExportSelectedDocumentsAsStoredZipEntries() throws IOException {
+        ObjectId duplicateNameId = pdfService.saveAsPdf(FIRST_USER_ID, firstFilename, "<p>Other</p>", "d");
+
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            pdfService.exportDocuments(FIRST_USER_ID, List.of(firstObjectId, duplicateNameId, secondObjectId),
+                    outputStream);
+
+            List<String> entryNames = new ArrayList<>();
+            try (ZipInputStream zipInputStream = new ZipInputStream(
+                    new ByteArrayInputStream(outputStream.toByteArray()))) {
+                ZipEntry entry;
+                while ((entry = zipInputStream.getNextEntry()) != null) {
+                    entryNames.add(entry.getName());
+                    Assertions.assertEquals(ZipEntry.STORED, entry.getMethod());
+                    Assertions.assertEquals("%PDF", new String(zipInputStream.readNBytes(4)));
+                }
+            }
+
+            Assertions.assertEquals(
+                    List.of(firstFilename + EXTENSION, firstFilename + " (2)" + EXTENSION),
+                    entryNames
+            );
+        } finally {
+            pdfService.deleteDocument(FIRST_USER_ID, duplicateNameId);
+        }
+    }
+
+    @Test
+    public void shouldExportAllDocumentsWhenNothingIsSelected() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        pdfService.exportDocuments(SECOND_USER_ID, List.of(), outputStream);
+
+        try (ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(outputStream.toByteArray()))) {
+            ZipEntry entry = zipInputStream.getNextEntry();
+            Assertions.assertNotNull(entry);
+            Assertions.assertEquals(secondFilename + EXTENSION, entry.getName());
+
+            byte[] content = zipInputStream.readAllBytes();
+            Assertions.assertArrayEquals(readPdf(SECOND_USER_ID, secondObjectId),
+                    content);
+        }
+    }
+
+    @Test
+    public void shouldMergeDocumentsPageByPageInGivenOrder() throws IOException {
+        ObjectId otherObjectId = pdfService.saveAsPdf(FIRST_USER_ID, "other", "<p>Other</p>", "d");
+        ObjectId mergedObjectId = pdfService.mergeDocuments(
+                FIRST_USER_ID, "merged", List.of(otherObjectId, firstObjectId, otherObjectId));
+
+        try {
+            PdfDocument mergedDocument = pdfService.getUserDocument(FIRST_USER_ID, mergedObjectId);
+            Assertions.assertEquals("merged" + EXTENSION, mergedDocument.getFilename());
+
+            PdfReader reader = new PdfReader(readPdf(FIRST_USER_ID, mergedObjectId));
+            try {
+                PdfTextExtractor textExtractor = new PdfTextExtractor(reader);
+
+                Assertions.assertEquals(3, reader.getNumberOfPages());
+                Assertions.assertTrue(textExtractor.getTextFromPage(1).contains("Other"));
+                Assertions.assertTrue(textExtractor.getTextFromPage(2).contains("Test 1"));
+                Assertions.assertTrue(textExtractor.getTextFromPage(3).contains("Other"));
+            } finally {
+                reader.close();
+            }
+        } finally {
+            pdfService.deleteDocument(FIRST_USER_ID, mergedObjectId);
+            pdfService.deleteDocument(FIRST_USER_ID, otherObjectId);
+        }
+    }
+
+    @Test
+    public void shouldReuseMergedFileForSameSources() throws IOException {
+        ObjectId firstMergeId = pdfService.mergeDocuments(FIRST_USER_ID, "merged", List.of(firstObjectId));
+        ObjectId secondMergeId = pdfService.mergeDocuments(FIRST_USER_ID, "merged", List.of(firstObjectId));
+
+        try {
+            ObjectId fileId = pdfService.getUserDocument(FIRST_USER_ID, firstMergeId).getFileId();
+
+            Assertions.assertEquals(fileId, pdfService.getUserDocument(FIRST_USER_ID, secondMergeId).getFileId());
+            Assertions.assertEquals(2, findFile(firstMergeId, FIRST_USER_ID).getMetadata().getInteger("refCount"));
+        } finally {
+            pdfService.deleteDocument(FIRST_USER_ID, firstMergeId);
+            pdfService.deleteDocument(FIRST_USER_ID, secondMergeId);
+        }
+    }
+
+    @Test
+    public void shouldNotMergeDocumentsOfOtherUsers() {
+        Assertions.assertThrows(FileNotFoundException.class,
+                () -> pdfService.mergeDocuments(FIRST_USER_ID, "merged", List.of(firstObjectId, secondObjectId)));
+    }
+
+    @Test
+    public void shouldRenderThumbnailOnFirstRequestAndDeleteItWithFile() throws IOException {
+        ObjectId fileId = findFile(firstObjectId, FIRST_USER_ID).getObjectId();
+        GridFSBucket thumbnailBucket = GridFSBuckets.create(mongoTemplate.getDb(), "thumbnails");
+        Assertions.assertNull(thumbnailBucket.find(new Document("metadata.fileId", fileId)).first());
+
+        byte[] thumbnail = pdfService.getThumbnail(FIRST_USER_ID, firstObjectId);
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(thumbnail));
+        Assertions.assertEquals(200, image.getWidth());
+        Assertions.assertNotNull(thumbnailBucket.find(new Document("metadata.fileId", fileId)).first());
+        Assertions.assertArrayEquals(thumbnail, pdfService.getThumbnail(FIRST_USER_ID, firstObjectId));
+
+        pdfService.deleteDocument(FIRST_USER_ID, firstObjectId);
+
+        Assertions.assertNull(thumbnailBucket.find(new Document("metadata.fileId", fileId)).first());
+        Assertions.assertNull(thumbnailService.getThumbnail(fileId));
+    }
+
+    @Test
+    public void shouldKeepOneIntactThumbnailWhenStoredConcurrently() throws Exception {
+        ObjectId fileId = new ObjectId();
+        byte[] thumbnail = new byte[64 * 1024];
+        new Random(7).nextBytes(thumbnail);
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> stores = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                stores.add(executor.submit(() -> thumbnailService.storeThumbnail(fileId, FIRST_USER_ID, thumbnail)));
+            }
+            for (Future<?> store : stores) {
+                store.get();
+            }
+        }
+
+        GridFSBucket thumbnailBucket = GridFSBuckets.create(mongoTemplate.getDb(), "thumbnails");
+        List<GridFSFile> stored = thumbnailBucket.find(new Document("metadata.fileId", fileId)).into(new ArrayList<>());
+        Assertions.assertEquals(1, stored.size());
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        thumbnailBucket.downloadToStream(stored.getFirst().getObjectId(), outputStream);
+        Assertions.assertArrayEquals(thumbnail, outputStream.toByteArray());
+
+        thumbnailService.deleteThumbnails(List.of(fileId));
+        Assertions.assertEquals(0, mongoTemplate.getCollection("thumbnails.chunks")
+                .countDocuments(new Document("files_id", stored.getFirst().getObjectId())));
+    }
+
+    @Test
+    public void shouldNotServeThumbnailsOfOtherUsers() {
+        Assertions.assertThrows(FileNotFoundException.class,
+                () -> pdfService.getThumbnail(FIRST_USER_ID, secondObjectId));
+    }
+
+    @Test
+    public void shouldReuseFirstSourceThumbnailForMergedDocument() throws IOException {
+        byte[] thumbnail = pdfService.getThumbnail(FIRST_USER_ID, firstObjectId);
+        ObjectId mergedObjectId = pdfService.mergeDocuments(FIRST_USER_ID, "merged", List.of(firstObjectId));
+
+        try {
+            Assertions.assertArrayEquals(thumbnail, pdfService.getThumbnail(FIRST_USER_ID, mergedObjectId));
+        } finally {
+            pdfService.deleteDocument(FIRST_USER_ID, mergedObjectId);
+        }
+    }
+
+    @Test
+    public void shouldStoreChecksumOfRenderedFile() throws IOException {
+        GridFSFile file = findFile(firstObjectId, FIRST_USER_ID);
+        CRC32 checksum = new CRC32();
+        checksum.update(readPdf(FIRST_USER_ID, firstObjectId));
+
+        Assertions.assertNotNull(file.getMetadata());
+        Assertions.assertEquals(checksum.getValue(), file.getMetadata().getLong("crc32"));
+    }
+
+    @Test
+    public void shouldRecordRenderStageAndStorageMetrics() {
+        long layouts = meterRegistry.get("pdforge.render.stage").tag("stage", "layout").timer().count();
+        long uploads = meterRegistry.get("pdforge.storage.gridfs").tag("operation", "upload").timer().count();
+
+        ObjectId documentId = pdfService.saveAsPdf(FIRST_USER_ID, "metrics", "<p>" + UUID.randomUUID() + "</p>", "d");
+
+        try {
+            Assertions.assertEquals(layouts + 1,
+                    meterRegistry.get("pdforge.render.stage").tag("stage", "layout").timer().count());
+            Assertions.assertEquals(uploads + 1,
+                    meterRegistry.get("pdforge.storage.gridfs").tag("operation", "upload").timer().count());
+            Assertions.assertTrue(meterRegistry.get("pdforge.documents.pages").summary().totalAmount() >= 1);
+        } finally {
+            pdfService.deleteDocument(FIRST_USER_ID, documentId);
+        }
+    }
+
+    @Test
+    public void shouldStoreLinearizedOutputWhenEnabled() throws IOException {
+        List<Path> linearizedInputs = new ArrayList<>();
+        PdfLinearizer linearizer = new PdfLinearizer(false, "qpdf", Duration.ofSeconds(1)) {
+            @Override
+            public boolean isEnabled() {
+                return true;
+            }
+
+            @Override
+            public void linearize(Path input, Path output) throws IOException {
+                linearizedInputs.add(input);
+                Files.write(output, Files.readAllBytes(input));
+                Files.writeString(output, "%linearized\n", StandardOpenOption.APPEND);
+            }
+        };
+        PdfService linearizingPdfService = new PdfService(
+                mongoTemplate,
+                rendererPool,
+                documentSourceService,
+                documentRevisionService,
+                thumbnailService,
+                documentSearchService,
+                linearizer,
+                assetService,
+                new SyncTaskExecutor(),
+                new SimpleMeterRegistry()
+        );
+        String userId = UUID.randomUUID().toString();
+
+        ObjectId documentId = linearizingPdfService.saveAsPdf(userId, "test", "<p>Linearized</p>", "delta");
+        try {
+            byte[] pdf = readPdf(userId, documentId);
+
+            Assertions.assertEquals(1, linearizedInputs.size());
+            Assertions.assertFalse(Files.exists(linearizedInputs.getFirst()));
+            Assertions.assertTrue(new String(pdf, StandardCharsets.ISO_8859_1).startsWith("%PDF-"));
+            Assertions.assertTrue(new String(pdf, StandardCharsets.ISO_8859_1).endsWith("%linearized\n"));
+        } finally {
+            pdfService.deleteDocument(userId, documentId);
+        }
+    }
+
+    @Test
+    public void shouldCountRenderFailures() {
+        SimpleMeterRegistry failureRegistry = new SimpleMeterRegistry();
+        PdfRendererPool failingPool = new PdfRendererPool(renderResources, 1, Duration.ofSeconds(1), Duration.ZERO) {
+            @Override
+            public <T> T execute(RendererTask<T> task) {
+                throw new IllegalStateException("Rendering failed");
+            }
+        };
+        PdfService failingPdfService = new PdfService(
+                mongoTemplate,
+                failingPool,
+                documentSourceService,
+                documentRevisionService,
+                thumbnailService,
+                documentSearchService,
+                pdfLinearizer,
+                assetService,
+                new SyncTaskExecutor(),
+                failureRegistry
+        );
+
+        Assertions.assertThrows(IllegalStateException.class, () ->
+                failingPdfService.saveAsPdf(FIRST_USER_ID, "test", "<p>" + UUID.randomUUID() + "</p>", "d")
+        );
+
+        Assertions.assertEquals(1, failureRegistry.get("pdforge.render.failures")
+                .tag("exception", "IllegalStateException").counter().count());
+    }
+
+    @Test
+    public void shouldKeepPreviousVersionWhenUpdateFailsToRender() {
+        PdfRendererPool failingPool = new PdfRendererPool(renderResources, 1, Duration.ofSeconds(1), Duration.ZERO) {
+            @Override
+            public <T> T execute(RendererTask<T> task) {
+                throw new IllegalStateException("Rendering failed");
+            }
+        };
+        PdfService failingPdfService = new PdfService(
+                mongoTemplate,
+                failingPool,
+                documentSourceService,
+                documentRevisionService,
+                thumbnailService,
+                documentSearchService,
+                pdfLinearizer,
+                assetService,
+                new SyncTaskExecutor(),
+                new SimpleMeterRegistry()
+        );
+        ObjectId fileId = findFile(firstObjectId, FIRST_USER_ID).getObjectId();
+
+        Assertions.assertThrows(IllegalStateException.class, () ->
+                failingPdfService.updatePdf(FIRST_USER_ID, firstObjectId, "test", "<p>Broken</p>", "broken delta")
+        );
+
+        Assertions.assertEquals(fileId, findFile(firstObjectId, FIRST_USER_ID).getObjectId());
+        Assertions.assertEquals("some delta 1", documentSourceService.getDelta(FIRST_USER_ID, firstObjectId));
+    }
+
+    @Test
+    public void shouldRestorePreviousVersionWhenSourceCannotBeSaved() {
+        DocumentSourceService failingSourceService = new DocumentSourceService(null) {
+            @Override
+            public void saveDelta(ObjectId documentId, String userId, String delta) {
+                throw new IllegalStateException("Source write failed");
+            }
+        };
+        PdfService failingPdfService = new PdfService(
+                mongoTemplate,
+                rendererPool,
+                failingSourceService,
+                documentRevisionService,
+                thumbnailService,
+                documentSearchService,
+                pdfLinearizer,
+                assetService,
+                new SyncTaskExecutor(),
+                new SimpleMeterRegistry()
+        );
+        PdfDocument document = pdfService.getUserDocument(FIRST_USER_ID, firstObjectId);
+
+        Assertions.assertThrows(IllegalStateException.class, () ->
+                failingPdfService.updatePdf(FIRST_USER_ID, firstObjectId, "test", "<p>Unsaved</p>", "unsaved delta")
+        );
+
+        PdfDocument restoredDocument = pdfService.getUserDocument(FIRST_USER_ID, firstObjectId);
+        Assertions.assertEquals(document.getFileId(), restoredDocument.getFileId());
+        Assertions.assertEquals(document.getFilename(), restoredDocument.getFilename());
+        Assertions.assertEquals(document.getRevision(), restoredDocument.getRevision());
+        Assertions.assertEquals("some delta 1", documentSourceService.getDelta(FIRST_USER_ID, firstObjectId));
+    }
+
+    @Test
+    public void shouldAbortUploadWhenRenderingFails() {
+        PdfRendererPool failingPool = new PdfRendererPool(renderResources, 1, Duration.ofSeconds(1), Duration.ZERO) {
+            @Override
+            public <T> T execute(RendererTask<T> task) {
+                throw new IllegalStateException("Rendering failed");
+            }
+        };
+        PdfService failingPdfService = new PdfService(
+                mongoTemplate,
+                failingPool,
+                documentSourceService,
+                documentRevisionService,
+                thumbnailService,
+                documentSearchService,
+                pdfLinearizer,
+                assetService,
+                new SyncTaskExecutor(),
+                new SimpleMeterRegistry()
+        );
+        String userId = UUID.randomUUID().toString();
+
+        Assertions.assertThrows(IllegalStateException.class, () ->
+                failingPdfService.saveAsPdf(userId, "test", "<p>Test</p>", "some delta")
+        );
+
+        Assertions.assertNull(gridFSBucket.find(new Document("metadata.userId", userId)).first());
+        Assertions.assertTrue(failingPdfService.getUserDocumentsPage(userId, DocumentSort.NEWEST, null, 10)
+                .documents().isEmpty());
+    }
 }
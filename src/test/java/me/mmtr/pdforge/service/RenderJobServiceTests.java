@@ -0,0 +1,203 @@
+package me.mmtr.pdforge.service;
+
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import me.mmtr.pdforge.model.RenderJob;
+import me.mmtr.pdforge.model.RenderJobStatus;
+import me.mmtr.pdforge.model.RenderJobSummary;
+import me.mmtr.pdforge.repository.RenderJobRepository;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+@SpringBootTest(properties = {
+        "pdforge.render-jobs.max-html-size=1KB",
+        "pdforge.render-jobs.max-unfinished-per-user=3"
+})
+public class RenderJobServiceTests {
+
+    private final String USER_ID = UUID.randomUUID().toString();
+
+    @Autowired
+    private RenderJobService renderJobService;
+
+    @Autowired
+    private RenderJobRepository renderJobRepository;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private PdfService pdfService;
+
+    @AfterEach
+    public void tearDown() {
+        renderJobRepository.findSummariesByUserId(USER_ID).forEach(job -> {
+            if (job.getResultObjectId() != null) {
+                pdfService.deleteDocument(USER_ID, new ObjectId(job.getResultObjectId()));
+            }
+            renderJobRepository.deleteById(job.getId());
+        });
+    }
+
+    private RenderJobSummary awaitFinished(String jobId) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            RenderJobSummary job = renderJobService.getUserJob(USER_ID, jobId).orElseThrow();
+            if (job.status() == RenderJobStatus.DONE || job.status() == RenderJobStatus.FAILED) {
+                return job;
+            }
+            Thread.sleep(100);
+        }
+        return Assertions.fail("Render job did not finish in time");
+    }
+
+    @Test
+    public void shouldRenderEnqueuedJobAndStoreResult() throws InterruptedException {
+        RenderJob job = renderJobService.enqueue(USER_ID, "test", "<p>Test</p>", "some delta", null);
+        Assertions.assertEquals(RenderJobStatus.PENDING, job.getStatus());
+
+        RenderJobSummary finishedJob = awaitFinished(job.getId());
+
+        Assertions.assertEquals(RenderJobStatus.DONE, finishedJob.status());
+        Assertions.assertNotNull(finishedJob.objectId());
+
+        RenderJob storedJob = renderJobRepository.findById(job.getId()).orElseThrow();
+        Assertions.assertNull(storedJob.getHtmlContent());
+        Assertions.assertNull(storedJob.getDelta());
+    }
+
+    @Test
+    public void shouldUpdateExistingDocumentWhenDocumentIdIsGiven() throws InterruptedException {
+        RenderJob firstJob = renderJobService.enqueue(USER_ID, "test", "<p>Test 1</p>", "some delta", null);
+        ObjectId documentId = new ObjectId(awaitFinished(firstJob.getId()).objectId());
+        ObjectId firstFileId = pdfService.getUserDocument(USER_ID, documentId).getFileId();
+
+        RenderJob secondJob = renderJobService.enqueue(
+                USER_ID, "test", "<p>Test 2</p>", "some delta", documentId.toHexString());
+        RenderJobSummary finishedJob = awaitFinished(secondJob.getId());
+
+        Assertions.assertEquals(RenderJobStatus.DONE, finishedJob.status());
+        Assertions.assertEquals(documentId.toHexString(), finishedJob.objectId());
+        Assertions.assertNotEquals(firstFileId, pdfService.getUserDocument(USER_ID, documentId).getFileId());
+    }
+
+    @Test
+    public void shouldKeepExistingFileWhenContentIsUnchanged() throws InterruptedException {
+        RenderJob firstJob = renderJobService.enqueue(USER_ID, "test", "<p>Test</p>", "some delta", null);
+        ObjectId documentId = new ObjectId(awaitFinished(firstJob.getId()).objectId());
+        ObjectId fileId = pdfService.getUserDocument(USER_ID, documentId).getFileId();
+
+        RenderJob secondJob = renderJobService.enqueue(
+                USER_ID, "test", "<p>Test</p>", "some delta", documentId.toHexString());
+        RenderJobSummary finishedJob = awaitFinished(secondJob.getId());
+
+        Assertions.assertEquals(documentId.toHexString(), finishedJob.objectId());
+        Assertions.assertEquals(fileId, pdfService.getUserDocument(USER_ID, documentId).getFileId());
+        GridFSBucket gridFSBucket = GridFSBuckets.create(mongoTemplate.getDb());
+        Assertions.assertNotNull(gridFSBucket.find(new Document("_id", fileId)).first());
+    }
+
+    @Test
+    public void shouldFailJobWhenUpdatedDocumentDoesNotExist() throws InterruptedException {
+        RenderJob job = renderJobService.enqueue(
+                USER_ID, "test", "<p>Test</p>", "some delta", new ObjectId().toHexString());
+
+        RenderJobSummary finishedJob = awaitFinished(job.getId());
+
+        Assertions.assertEquals(RenderJobStatus.FAILED, finishedJob.status());
+        Assertions.assertNull(finishedJob.objectId());
+    }
+
+    @Test
+    public void shouldMergeDocumentsOnRenderWorker() throws InterruptedException {
+        RenderJob firstJob = renderJobService.enqueue(USER_ID, "first", "<p>First</p>", "some delta", null);
+        RenderJob secondJob = renderJobService.enqueue(USER_ID, "second", "<p>Second</p>", "some delta", null);
+        String firstDocumentId = awaitFinished(firstJob.getId()).objectId();
+        String secondDocumentId = awaitFinished(secondJob.getId()).objectId();
+
+        RenderJob mergeJob = renderJobService.enqueueMerge(
+                USER_ID, "merged", List.of(secondDocumentId, firstDocumentId));
+        RenderJobSummary finishedJob = awaitFinished(mergeJob.getId());
+
+        Assertions.assertEquals(RenderJobStatus.DONE, finishedJob.status());
+        Assertions.assertEquals("merged.pdf",
+                pdfService.getUserDocument(USER_ID, new ObjectId(finishedJob.objectId())).getFilename());
+    }
+
+    @Test
+    public void shouldFailMergeJobWhenSourceDocumentDoesNotExist() throws InterruptedException {
+        RenderJob job = renderJobService.enqueueMerge(USER_ID, "merged", List.of(new ObjectId().toHexString()));
+
+        RenderJobSummary finishedJob = awaitFinished(job.getId());
+
+        Assertions.assertEquals(RenderJobStatus.FAILED, finishedJob.status());
+        Assertions.assertNull(finishedJob.objectId());
+    }
+
+    @Test
+    public void shouldRejectOversizedDocumentsWithoutStoringAJob() {
+        RenderRejectedException exception = Assertions.assertThrows(RenderRejectedException.class,
+                () -> renderJobService.enqueue(USER_ID, "test", "<p>" + "x".repeat(2048) + "</p>", "d", null));
+
+        Assertions.assertEquals(RenderRejectedException.Reason.CONTENT_TOO_LARGE, exception.getReason());
+        Assertions.assertTrue(renderJobService.getUserJobs(USER_ID).isEmpty());
+    }
+
+    @Test
+    public void shouldMeasureDocumentSizeInUtf8Bytes() {
+        // 600 characters, but 1800 bytes once encoded.
+        RenderRejectedException exception = Assertions.assertThrows(RenderRejectedException.class,
+                () -> renderJobService.enqueue(USER_ID, "test", "€".repeat(600), "d", null));
+
+        Assertions.assertEquals(RenderRejectedException.Reason.CONTENT_TOO_LARGE, exception.getReason());
+        Assertions.assertTrue(renderJobService.getUserJobs(USER_ID).isEmpty());
+    }
+
+    @Test
+    public void shouldRejectUsersWithTooManyUnfinishedJobs() {
+        for (int i = 0; i < 3; i++) {
+            RenderJob job = new RenderJob();
+            job.setUserId(USER_ID);
+            job.setFilename("queued " + i);
+            job.setStatus(RenderJobStatus.PENDING);
+            job.setCreatedAt(Instant.now());
+            renderJobRepository.save(job);
+        }
+
+        RenderRejectedException exception = Assertions.assertThrows(RenderRejectedException.class,
+                () -> renderJobService.enqueue(USER_ID, "test", "<p>Test</p>", "d", null));
+
+        Assertions.assertEquals(RenderRejectedException.Reason.TOO_MANY_USER_JOBS, exception.getReason());
+        Assertions.assertTrue(exception.getRetryAfter().toSeconds() >= 1);
+        Assertions.assertEquals(3, renderJobService.getUserJobs(USER_ID).size());
+    }
+
+    @Test
+    public void shouldDropPayloadOfFailedJobs() throws InterruptedException {
+        RenderJob job = renderJobService.enqueue(USER_ID, "test", "<p>Test</p>", "some delta",
+                new ObjectId().toHexString());
+
+        Assertions.assertEquals(RenderJobStatus.FAILED, awaitFinished(job.getId()).status());
+
+        RenderJob storedJob = renderJobRepository.findById(job.getId()).orElseThrow();
+        Assertions.assertNotNull(storedJob.getFinishedAt());
+        Assertions.assertNull(storedJob.getHtmlContent());
+        Assertions.assertNull(storedJob.getDelta());
+    }
+
+    @Test
+    public void shouldNotExposeJobsOfOtherUsers() {
+        RenderJob job = renderJobService.enqueue(USER_ID, "test", "<p>Test</p>", "some delta", null);
+
+        Assertions.assertTrue(renderJobService.getUserJob("another user", job.getId()).isEmpty());
+    }
+}
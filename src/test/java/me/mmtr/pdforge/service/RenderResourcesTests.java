@@ -0,0 +1,194 @@
+package me.mmtr.pdforge.service;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RenderResourcesTests {
+
+    private RenderResources resources(DataSize cacheSize, boolean offline) {
+        return new RenderResources(uri -> null,
+                cacheSize, DataSize.ofKilobytes(64), Duration.ofSeconds(1), offline, "", 150, 0.8f, true);
+    }
+
+    private RenderResources imageResources(int maxImageDpi) {
+        return new RenderResources(uri -> null,
+                DataSize.ofMegabytes(32), DataSize.ofMegabytes(16), Duration.ofSeconds(1), true, "",
+                maxImageDpi, 0.8f, true);
+    }
+
+    private String pngDataUri(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, (x * y) ^ (x << 8) ^ (y << 16));
+            }
+        }
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", outputStream);
+        return "data:image/png;base64," + Base64.getEncoder().encodeToString(outputStream.toByteArray());
+    }
+
+    private String dataUri(String content) {
+        return "data:text/css;base64," + Base64.getEncoder().encodeToString(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void shouldDecodeDataUriOnceAndServeItFromCache() {
+        RenderResources resources = resources(DataSize.ofMegabytes(1), true);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        resources.bindTo(registry);
+        String uri = dataUri("p { color: red; }");
+
+        Assertions.assertEquals("p { color: red; }", new String(resources.getBytes(uri), StandardCharsets.UTF_8));
+        Assertions.assertEquals("p { color: red; }", new String(resources.getBytes(uri), StandardCharsets.UTF_8));
+
+        Assertions.assertEquals(1, registry.get("pdforge.renderer.resources.requests")
+                .tag("result", "miss").functionCounter().count());
+        Assertions.assertEquals(1, registry.get("pdforge.renderer.resources.requests")
+                .tag("result", "hit").functionCounter().count());
+    }
+
+    @Test
+    public void shouldDecodePlainDataUri() {
+        RenderResources resources = resources(DataSize.ofMegabytes(1), true);
+
+        Assertions.assertEquals("a b", new String(resources.getBytes("data:text/plain,a%20b"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void shouldNotFetchRemoteResourcesWhenOffline() {
+        RenderResources resources = resources(DataSize.ofMegabytes(1), true);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        resources.bindTo(registry);
+
+        Assertions.assertNull(resources.getBytes("http://localhost:1/style.css"));
+        Assertions.assertEquals(1, registry.get("pdforge.renderer.resources.blocked").functionCounter().count());
+    }
+
+    @Test
+    public void shouldNeverReadLocalFiles() {
+        RenderResources resources = resources(DataSize.ofMegabytes(1), false);
+
+        Assertions.assertNull(resources.getBytes("file:///etc/hostname"));
+        Assertions.assertNull(resources.getBytes("jar:file:///app.jar!/application.properties"));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedResourcesBeyondCacheSize() {
+        RenderResources resources = resources(DataSize.ofBytes(10), true);
+
+        resources.getBytes(dataUri("12345"));
+        resources.getBytes(dataUri("67890"));
+        Assertions.assertEquals(10, resources.getCachedBytes());
+
+        resources.getBytes(dataUri("abcde"));
+        Assertions.assertEquals(10, resources.getCachedBytes());
+    }
+
+    @Test
+    public void shouldDownsampleImagesBeyondMaximumDpiWithoutChangingTheirSize() throws IOException {
+        RenderResources resources = imageResources(150);
+
+        RenderResources.RenderImage image = resources.getImage(pngDataUri(2400, 600));
+
+        Assertions.assertTrue(image.storedBytes() < image.originalBytes());
+        Assertions.assertEquals(2400, image.image().getPlainWidth());
+        Assertions.assertEquals(600, image.image().getPlainHeight());
+        Assertions.assertTrue(image.image().getWidth() < 2400);
+    }
+
+    @Test
+    public void shouldKeepImagesWithinMaximumDpiAsTheyAre() throws IOException {
+        String uri = pngDataUri(400, 300);
+
+        RenderResources.RenderImage small = imageResources(150).getImage(uri);
+        RenderResources.RenderImage unlimited = imageResources(0).getImage(pngDataUri(2400, 600));
+
+        Assertions.assertEquals(small.originalBytes(), small.storedBytes());
+        Assertions.assertEquals(400, small.image().getWidth());
+        Assertions.assertEquals(unlimited.originalBytes(), unlimited.storedBytes());
+        Assertions.assertEquals(2400, unlimited.image().getWidth());
+    }
+
+    @Test
+    public void shouldLoadStoredAssetsOnceThroughTheAssetLoader() {
+        AtomicInteger loads = new AtomicInteger();
+        RenderResources resources = new RenderResources(uri -> {
+            loads.incrementAndGet();
+            return uri.equals(AssetService.URL_PREFIX + "abc") ? "asset".getBytes(StandardCharsets.UTF_8) : null;
+        }, DataSize.ofMegabytes(1), DataSize.ofKilobytes(64), Duration.ofSeconds(1), true, "", 150, 0.8f, true);
+
+        Assertions.assertEquals("asset",
+                new String(resources.getBytes(AssetService.URL_PREFIX + "abc"), StandardCharsets.UTF_8));
+        Assertions.assertEquals("asset",
+                new String(resources.getBytes(AssetService.URL_PREFIX + "abc"), StandardCharsets.UTF_8));
+        Assertions.assertNull(resources.getBytes("/other/abc"));
+        Assertions.assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void shouldCountDecodedImagesAgainstCacheSize() throws IOException {
+        RenderResources resources = imageResources(150);
+        String uri = pngDataUri(2400, 600);
+
+        long encodedBytes = resources.getBytes(uri).length;
+        Assertions.assertEquals(encodedBytes, resources.getCachedBytes());
+
+        RenderResources.RenderImage image = resources.getImage(uri);
+        Assertions.assertEquals(encodedBytes + image.storedBytes(), resources.getCachedBytes());
+    }
+
+    @Test
+    public void shouldCheckEveryRedirectBeforeFollowingIt() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/style.css", exchange -> {
+            byte[] body = "p { color: red; }".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.createContext("/moved", exchange -> redirect(exchange, "/style.css"));
+        server.createContext("/local", exchange -> redirect(exchange, "file:///etc/hostname"));
+        server.start();
+
+        try {
+            RenderResources resources = resources(DataSize.ofMegabytes(1), false);
+            String base = "http://127.0.0.1:" + server.getAddress().getPort();
+
+            Assertions.assertEquals("p { color: red; }",
+                    new String(resources.getBytes(base + "/moved"), StandardCharsets.UTF_8));
+            Assertions.assertNull(resources.getBytes(base + "/local"));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private void redirect(HttpExchange exchange, String location) throws IOException {
+        exchange.getResponseHeaders().add("Location", location);
+        exchange.sendResponseHeaders(302, -1);
+        exchange.close();
+    }
+
+    @Test
+    public void shouldRejectResourcesLargerThanMaximumSize() {
+        RenderResources resources = resources(DataSize.ofMegabytes(1), true);
+
+        Assertions.assertNull(resources.getBytes(dataUri("x".repeat(64 * 1024 + 1))));
+        Assertions.assertEquals(0, resources.getCachedBytes());
+    }
+}
@@ -0,0 +1,83 @@
+package me.mmtr.pdforge.service;
+
+import me.mmtr.pdforge.model.User;
+import me.mmtr.pdforge.repository.UserRepository;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.time.Duration;
+import java.util.Optional;
+
+import static org.mockito.Mockito.*;
+
+public class UserLookupServiceTests {
+
+    private final User testUser = new User("1", "test", "password");
+
+    private UserRepository userRepository;
+
+    @BeforeEach
+    public void setUp() {
+        userRepository = Mockito.mock(UserRepository.class);
+        when(userRepository.findByUsername("test")).thenReturn(Optional.of(testUser));
+    }
+
+    @Test
+    public void shouldServeRepeatedLookupsFromCache() {
+        UserLookupService userLookupService = new UserLookupService(userRepository, 10, Duration.ofMinutes(5));
+
+        Assertions.assertEquals(Optional.of(testUser), userLookupService.findByUsername("test"));
+        Assertions.assertEquals(Optional.of(testUser), userLookupService.findByUsername("test"));
+
+        verify(userRepository, times(1)).findByUsername("test");
+    }
+
+    @Test
+    public void shouldNotCacheMissingUsers() {
+        UserLookupService userLookupService = new UserLookupService(userRepository, 10, Duration.ofMinutes(5));
+        when(userRepository.findByUsername("new")).thenReturn(Optional.empty());
+
+        Assertions.assertTrue(userLookupService.findByUsername("new").isEmpty());
+
+        User registeredUser = new User("2", "new", "password");
+        when(userRepository.findByUsername("new")).thenReturn(Optional.of(registeredUser));
+
+        Assertions.assertEquals(Optional.of(registeredUser), userLookupService.findByUsername("new"));
+    }
+
+    @Test
+    public void shouldReloadUserAfterEviction() {
+        UserLookupService userLookupService = new UserLookupService(userRepository, 10, Duration.ofMinutes(5));
+
+        userLookupService.findByUsername("test");
+        userLookupService.evict("test");
+        userLookupService.findByUsername("test");
+
+        verify(userRepository, times(2)).findByUsername("test");
+    }
+
+    @Test
+    public void shouldReloadUserAfterTimeToLive() throws InterruptedException {
+        UserLookupService userLookupService = new UserLookupService(userRepository, 10, Duration.ofMillis(20));
+
+        userLookupService.findByUsername("test");
+        Thread.sleep(50);
+        userLookupService.findByUsername("test");
+
+        verify(userRepository, times(2)).findByUsername("test");
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedUsersBeyondMaxSize() {
+        UserLookupService userLookupService = new UserLookupService(userRepository, 2, Duration.ofMinutes(5));
+        for (int i = 0; i < 5; i++) {
+            String username = "user" + i;
+            when(userRepository.findByUsername(username)).thenReturn(Optional.of(new User(String.valueOf(i), username, "")));
+            userLookupService.findByUsername(username);
+        }
+
+        Assertions.assertEquals(2, userLookupService.size());
+    }
+}